@@ -0,0 +1,286 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Finds the lines of a log with text in an alert style, such as red, along with their offsets and the style at their
+ * start, so that they can be rendered without rendering the log before them.
+ * <p>
+ * Alert styles are given as SGR parameters separated by spaces, e.g. {@code 31 41 1;33}. Text is in an alert style if
+ * each slot set by the parameters, e.g. the foreground color, is set the same way, whatever the other slots.
+ * <p>
+ * The recorded lines are kept in a file, see {@link #writeTo} and {@link Recorded#read}: the number of lines as an
+ * {@code int}, then the offset, number and style of each line as a {@code long}, an {@code int} and a UTF string.
+ */
+final class AlertIndex extends OutputStream implements AnsiParser.Listener {
+
+    /**
+     * The most lines which are recorded, the others are only counted.
+     */
+    static final int MAX_ALERTS = 10_000;
+
+    private final long[] alertStyles;
+    private final long[] alertMasks;
+    private final AnsiParser parser = new AnsiParser(this, true);
+    private final AnsiStyle style = new AnsiStyle();
+    private final AnsiStyle lineStartStyle = new AnsiStyle();
+    private long offset;
+    private long lineStart;
+    private int line;
+    private boolean alert;
+
+    private int count;
+    private long[] offsets = new long[16];
+    private int[] lines = new int[16];
+    private String[] styles = new String[16];
+
+    /**
+     * @throws IllegalArgumentException if the alert styles are malformed
+     */
+    AlertIndex(String alertStyles) {
+        final String[] specs = split(alertStyles);
+        this.alertStyles = new long[specs.length];
+        this.alertMasks = new long[specs.length];
+        for (int i = 0; i < specs.length; i++) {
+            final AnsiStyle.Change change = parseSgr(specs[i]);
+            if (change == null) {
+                throw new IllegalArgumentException("Malformed alert style: " + specs[i]);
+            }
+            for (int t = 0; t < change.touchedCount; t++) {
+                alertMasks[i] |= AnsiStyle.SLOT_MASKS[change.touched[t]];
+            }
+            this.alertStyles[i] = change.set & alertMasks[i];
+        }
+    }
+
+    private static String[] split(String alertStyles) {
+        final String trimmed = alertStyles.trim();
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("[\\s,]+");
+    }
+
+    @CheckForNull
+    private static AnsiStyle.Change parseSgr(String spec) {
+        final AnsiStyle.Change[] change = new AnsiStyle.Change[1];
+        final AnsiParser parser = new AnsiParser(new AnsiParser.Listener() {
+            @Override
+            public void text(byte[] b, int off, int len) {
+                change[0] = null;
+            }
+
+            @Override
+            public void sgr(int[] params, int count) {
+                change[0] = AnsiStyle.Change.of(params, count);
+            }
+        });
+        final byte[] sequence = ("\033[" + spec + "m").getBytes(StandardCharsets.US_ASCII);
+        try {
+            parser.parse(sequence, 0, sequence.length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // cannot happen, nothing is written to a stream
+        }
+        return spec.matches("[0-9;]+") && !parser.isInSequence() && change[0] != null && change[0].touchedCount > 0 ? change[0] : null;
+    }
+
+    /**
+     * @return the first malformed alert style, or null if there is none
+     */
+    @CheckForNull
+    static String findMalformed(String alertStyles) {
+        for (String spec : split(alertStyles)) {
+            if (parseSgr(spec) == null) {
+                return spec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether no alert styles are given, so that there is nothing to find
+     */
+    boolean isEmpty() {
+        return alertStyles.length == 0;
+    }
+
+    private boolean isAlert(long s) {
+        for (int i = 0; i < alertStyles.length; i++) {
+            if ((s & alertMasks[i]) == alertStyles[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int from = off;
+        while (from < end) {
+            int to = from;
+            while (to < end && b[to] != '\n') {
+                to++;
+            }
+            if (to == end) {
+                parser.parse(b, from, to - from);
+                offset += to - from;
+                return;
+            }
+            parser.parse(b, from, to + 1 - from);
+            offset += to + 1 - from;
+            endLine();
+            from = to + 1;
+        }
+    }
+
+    /**
+     * Ends the last line, if it was not ended by a line break.
+     */
+    void finish() {
+        if (offset > lineStart) {
+            endLine();
+        }
+    }
+
+    @Override
+    public void text(byte[] b, int off, int len) {
+        if (!alert && !style.isConcealed()) {
+            for (int i = off; i < off + len; i++) {
+                if (b[i] != ' ' && b[i] != '\t' && b[i] != '\r' && b[i] != '\n') {
+                    alert = isAlert(style.getStyle());
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void note(byte[] b, int off, int len) {
+        // Console notes are not part of the text
+    }
+
+    @Override
+    public void sgr(int[] params, int count) {
+        final AnsiStyle.Change change = parser.getSgrChange();
+        style.apply(change != null ? change : AnsiStyle.Change.of(params, count));
+    }
+
+    private void endLine() {
+        if (parser.isInSequence()) {
+            // An unfinished sequence does not go on to the next line
+            parser.reset();
+        }
+        if (alert) {
+            if (count < MAX_ALERTS) {
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    lines = Arrays.copyOf(lines, count * 2);
+                    styles = Arrays.copyOf(styles, count * 2);
+                }
+                offsets[count] = lineStart;
+                lines[count] = line;
+                styles[count] = StyleRunOutputStream.formatStyle(lineStartStyle);
+            }
+            count++;
+            alert = false;
+        }
+        line++;
+        lineStart = offset;
+        // Concealing never lasts beyond the end of the line
+        style.set(style.getStyle() & ~AnsiStyle.CONCEAL, style.getOrder());
+        lineStartStyle.set(style.getStyle(), style.getOrder());
+    }
+
+    /**
+     * @return the number of lines in an alert style, including those beyond {@link #MAX_ALERTS}
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the offsets into the log of the recorded lines
+     */
+    long[] getOffsets() {
+        return Arrays.copyOf(offsets, Math.min(count, MAX_ALERTS));
+    }
+
+    /**
+     * @return the numbers of the recorded lines, starting with 0
+     */
+    int[] getLines() {
+        return Arrays.copyOf(lines, Math.min(count, MAX_ALERTS));
+    }
+
+    /**
+     * @return the styles at the start of the recorded lines, see {@link StyleRunOutputStream#formatStyle}
+     */
+    String[] getStyles() {
+        return Arrays.copyOf(styles, Math.min(count, MAX_ALERTS));
+    }
+
+    /**
+     * Writes the recorded lines to a file, which is replaced.
+     */
+    void writeTo(File file) throws IOException {
+        final int recorded = Math.min(count, MAX_ALERTS);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+            out.writeInt(recorded);
+            for (int i = 0; i < recorded; i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lines[i]);
+                out.writeUTF(styles[i]);
+            }
+        }
+    }
+
+    /**
+     * The lines recorded by an index, as read back from its file.
+     */
+    static final class Recorded {
+        final long[] offsets;
+        final int[] lines;
+        final String[] styles;
+
+        Recorded(long[] offsets, int[] lines, String[] styles) {
+            this.offsets = offsets;
+            this.lines = lines;
+            this.styles = styles;
+        }
+
+        static Recorded read(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+                final int recorded = in.readInt();
+                if (recorded < 0 || recorded > MAX_ALERTS) {
+                    throw new IOException("Malformed alert index " + file);
+                }
+                final long[] offsets = new long[recorded];
+                final int[] lines = new int[recorded];
+                final String[] styles = new String[recorded];
+                for (int i = 0; i < recorded; i++) {
+                    offsets[i] = in.readLong();
+                    lines[i] = in.readInt();
+                    styles[i] = in.readUTF();
+                }
+                return new Recorded(offsets, lines, styles);
+            }
+        }
+
+        int size() {
+            return offsets.length;
+        }
+    }
+}
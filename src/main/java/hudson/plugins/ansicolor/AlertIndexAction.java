@@ -0,0 +1,244 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.plugins.ansicolor.action.ColorizedActions;
+import jenkins.model.Jenkins;
+import jenkins.model.RunAction2;
+import jenkins.util.Timer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets users go through the lines of a completed run which have text in an alert style, see {@link AlertIndex}, one
+ * by one, each rendered from its offset on, instead of searching the whole console for them.
+ * <p>
+ * When {@link AnsiColorBuildWrapper.DescriptorImpl#getAlertStyles()} is set, the log of each run which completes is
+ * indexed in the background, and the run gets this action if any lines were found. The lines are kept in
+ * {@value #INDEX_FILE} in the directory of the run, only their number is saved with the run.
+ */
+@SuppressFBWarnings(value = "UWF_UNWRITTEN_FIELD", justification = "The lines saved by older versions are read from build.xml")
+public final class AlertIndexAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(AlertIndexAction.class.getName());
+
+    /**
+     * The number of lines shown for each alert, starting with its own.
+     */
+    static final int CONTEXT_LINES = 50;
+
+    static final String INDEX_FILE = "ansicolor-alerts.idx";
+
+    private final int count;
+    // Older versions saved the lines with the run, they are read from there for the runs they indexed
+    @CheckForNull
+    private long[] offsets;
+    @CheckForNull
+    private int[] lines;
+    @CheckForNull
+    private String[] styles;
+
+    private transient Run<?, ?> run;
+
+    AlertIndexAction(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        run = r;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-warning";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.AlertIndexAction_DisplayName(count);
+    }
+
+    @Override
+    public String getUrlName() {
+        return "ansicolor-alerts";
+    }
+
+    /**
+     * @return the number of lines found, which may be more than {@link #getAlerts()}
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public List<Alert> getAlerts() throws IOException {
+        final AlertIndex.Recorded recorded = readRecorded();
+        return new AbstractList<Alert>() {
+            @Override
+            public Alert get(int index) {
+                return new Alert(recorded, index);
+            }
+
+            @Override
+            public int size() {
+                return recorded.size();
+            }
+        };
+    }
+
+    /**
+     * Serves each alert at its index.
+     */
+    @CheckForNull
+    public Alert getDynamic(String token) throws IOException {
+        final long n = ColoredLogAction.parseLong(token, -1);
+        if (n < 0 || n >= AlertIndex.MAX_ALERTS) {
+            return null;
+        }
+        final AlertIndex.Recorded recorded = readRecorded();
+        return n < recorded.size() ? new Alert(recorded, (int) n) : null;
+    }
+
+    /**
+     * @return the recorded lines, none if the file is gone
+     */
+    private AlertIndex.Recorded readRecorded() throws IOException {
+        if (offsets != null && lines != null && styles != null) {
+            return new AlertIndex.Recorded(offsets, lines, styles);
+        }
+        final File file = new File(run.getRootDir(), INDEX_FILE);
+        if (!file.isFile()) {
+            return new AlertIndex.Recorded(new long[0], new int[0], new String[0]);
+        }
+        return AlertIndex.Recorded.read(file);
+    }
+
+    /**
+     * @return the color map the run was colored in: that of its first {@code ansiColor} block or build wrapper, or
+     * the global one
+     */
+    private AnsiColorMap getColorMap() {
+        final AnsiColorBuildWrapper.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+        final String colorMapName = ColorizedActions.getFirstColorMapName(run);
+        return descriptor.getColorMap(colorMapName != null ? colorMapName : descriptor.getGlobalColorMapName());
+    }
+
+    /**
+     * A line with text in an alert style.
+     */
+    public final class Alert {
+        private final AlertIndex.Recorded recorded;
+        private final int n;
+
+        Alert(AlertIndex.Recorded recorded, int n) {
+            this.recorded = recorded;
+            this.n = n;
+        }
+
+        public Run<?, ?> getRun() {
+            return run;
+        }
+
+        public AlertIndexAction getAction() {
+            return AlertIndexAction.this;
+        }
+
+        public int getNumber() {
+            return n;
+        }
+
+        /**
+         * @return the number of the line, starting with 1 like editors do
+         */
+        public int getLine() {
+            return recorded.lines[n] + 1;
+        }
+
+        @CheckForNull
+        public Alert getPrevious() {
+            return n > 0 ? new Alert(recorded, n - 1) : null;
+        }
+
+        @CheckForNull
+        public Alert getNext() {
+            return n + 1 < recorded.size() ? new Alert(recorded, n + 1) : null;
+        }
+
+        /**
+         * @return the HTML of the line and the ones after it, rendered from its offset in the color map of the run
+         */
+        public String getHtml() throws IOException {
+            final AnsiStyle style = StyleRunOutputStream.parseStyle(recorded.styles[n]);
+            final long offset = recorded.offsets[n];
+            final ByteArrayOutputStream html = new ByteArrayOutputStream();
+            try (InputStream in = run.getLogInputStream()) {
+                if (IOUtils.skip(in, offset) == offset) {
+                    HtmlLogExport.writeLines(in, html, getColorMap(), style != null ? style : new AnsiStyle(), CONTEXT_LINES);
+                }
+            }
+            return html.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void index(Run<?, ?> run, String alertStyles) throws IOException {
+        final AlertIndex index = new AlertIndex(alertStyles);
+        try (InputStream in = run.getLogInputStream()) {
+            final byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                index.write(buffer, 0, read);
+            }
+        }
+        index.finish();
+        if (index.getCount() > 0) {
+            // Written before the action is added, which reads it
+            index.writeTo(new File(run.getRootDir(), INDEX_FILE));
+            run.addOrReplaceAction(new AlertIndexAction(index.getCount()));
+            run.save();
+        }
+        LOGGER.log(Level.FINE, "Found {0} lines in alert styles in {1}", new Object[]{index.getCount(), run});
+    }
+
+    /**
+     * Indexes the log of each run which completes.
+     */
+    @Extension
+    public static final class Listener extends RunListener<Run<?, ?>> {
+        // Once the log is closed
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            final String alertStyles = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).getAlertStyles();
+            if (alertStyles == null || alertStyles.isBlank()) {
+                return;
+            }
+            Timer.get().submit(() -> {
+                try {
+                    index(run, alertStyles);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not index the alerts of " + run, e);
+                }
+            });
+        }
+    }
+}
@@ -24,6 +24,10 @@ class AnsiAttributeElement implements Serializable {
     String name;
     String attributes;
 
+    // The tags are emitted over and over by renderers which reuse their elements.
+    private transient String openingTagHtml;
+    private transient String closingTagHtml;
+
     public interface Emitter {
         void emitHtml(@NonNull String html);
 
@@ -47,12 +51,16 @@ class AnsiAttributeElement implements Serializable {
     }
 
     public void emitOpen(Emitter emitter) {
-        final String openingTagHtml = "<" + name + (attributes.trim().equals("") ? "" : " " + attributes) + ">";
+        if (openingTagHtml == null) {
+            openingTagHtml = "<" + name + (attributes.trim().equals("") ? "" : " " + attributes) + ">";
+        }
         emitter.emitHtml(openingTagHtml);
     }
 
     public void emitClose(Emitter emitter) {
-        String closingTagHtml = "</" + name + ">";
+        if (closingTagHtml == null) {
+            closingTagHtml = "</" + name + ">";
+        }
         emitter.emitHtml(closingTagHtml);
     }
 
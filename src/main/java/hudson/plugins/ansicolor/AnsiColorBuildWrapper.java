@@ -27,6 +27,8 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.console.ConsoleLogFilter;
 import hudson.model.AbstractProject;
 import hudson.model.Run;
 import hudson.model.TaskListener;
@@ -39,16 +41,19 @@ import hudson.util.ListBoxModel;
 import jenkins.tasks.SimpleBuildWrapper;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 
 import jakarta.servlet.ServletException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.function.Function;
 
 /**
@@ -61,6 +66,8 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
     private static final long serialVersionUID = 1L;
 
     private final String colorMapName;
+    private boolean compactProgress;
+    private boolean normalizeSequences;
 
     /**
      * Create a new {@link AnsiColorBuildWrapper}.
@@ -75,6 +82,32 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
         return colorMapName == null ? AnsiColorMap.DefaultName : colorMapName;
     }
 
+    public boolean isCompactProgress() {
+        return compactProgress;
+    }
+
+    /**
+     * @param compactProgress whether only the last frame of progress lines is written to the log, see
+     *                        {@link ProgressCompactingOutputStream}
+     */
+    @DataBoundSetter
+    public void setCompactProgress(boolean compactProgress) {
+        this.compactProgress = compactProgress;
+    }
+
+    public boolean isNormalizeSequences() {
+        return normalizeSequences;
+    }
+
+    /**
+     * @param normalizeSequences whether escape sequences are written to the log in their shortest form, see
+     *                           {@link SgrNormalizingOutputStream}
+     */
+    @DataBoundSetter
+    public void setNormalizeSequences(boolean normalizeSequences) {
+        this.normalizeSequences = normalizeSequences;
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl) super.getDescriptor();
@@ -87,6 +120,37 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
         listener.annotate(new ActionNote(action));
     }
 
+    @Override
+    public ConsoleLogFilter createLoggerDecorator(Run<?, ?> build) {
+        return compactProgress || normalizeSequences ? new CompactingLogFilter(compactProgress, normalizeSequences) : null;
+    }
+
+    /**
+     * @return the logger, with overwritten progress frames and redundant escape sequences dropped as requested
+     */
+    static OutputStream compact(OutputStream logger, boolean compactProgress, boolean normalizeSequences) {
+        final OutputStream normalized = normalizeSequences ? new SgrNormalizingOutputStream(logger) : logger;
+        return compactProgress ? new ProgressCompactingOutputStream(normalized) : normalized;
+    }
+
+    private static final class CompactingLogFilter extends ConsoleLogFilter implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean compactProgress;
+        private final boolean normalizeSequences;
+
+        CompactingLogFilter(boolean compactProgress, boolean normalizeSequences) {
+            this.compactProgress = compactProgress;
+            this.normalizeSequences = normalizeSequences;
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public OutputStream decorateLogger(Run build, OutputStream logger) {
+            return compact(logger, compactProgress, normalizeSequences);
+        }
+    }
+
     /**
      * Registers {@link AnsiColorBuildWrapper} as a {@link BuildWrapper}.
      */
@@ -96,6 +160,21 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
         private static final Map<String, Function<AnsiColorMap, String>> VALIDATED_FIELDS = new HashMap<>();
         private AnsiColorMap[] colorMaps = new AnsiColorMap[0];
         private String globalColorMapName;
+        // Thresholds for limiting the colors of large logs or under load, see ColorConsoleAnnotator.Policy, 0 for no limit
+        private int budgetLogSizeMB;
+        private int stripLogSizeMB;
+        private int maxConcurrentAnnotations;
+        private boolean collapseProgressLines;
+        // Whether escape sequences are stripped from the logs of all freestyle builds which do not use colors, see UncoloredLogStripping
+        private boolean stripUncoloredBuilds;
+        // Whether the consoles of running builds are rendered once for all viewers, see PrerenderedConsoleAction
+        private boolean prerenderConsole;
+        // Whether consoles are colored by the browsers of the viewers, see ColorConsoleAnnotator.Policy#CLIENT
+        private boolean clientSideRendering;
+        // Disk quota for the rendered consoles of completed builds, see PrerenderedConsoleAction, 0 for none
+        private int renderedCacheMB;
+        // SGR parameters of the styles whose lines are indexed when builds complete, see AlertIndexAction
+        private String alertStyles;
 
         static {
             VALIDATED_FIELDS.put("black", AnsiColorMap::getBlack);
@@ -152,8 +231,26 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
                 if (!globalColorMapName.isEmpty() && colorMaps.stream().noneMatch(cm -> cm.getName().equals(globalColorMapName))) {
                     throw new FormException("Global color map name must match one of the color maps", "globalColorMapName");
                 }
+                final int budgetLogSizeMB = getNonNegativeInt(req.getSubmittedForm(), "budgetLogSizeMB");
+                final int stripLogSizeMB = getNonNegativeInt(req.getSubmittedForm(), "stripLogSizeMB");
+                final int maxConcurrentAnnotations = getNonNegativeInt(req.getSubmittedForm(), "maxConcurrentAnnotations");
+                final int renderedCacheMB = getNonNegativeInt(req.getSubmittedForm(), "renderedCacheMB");
+                final String alertStyles = req.getSubmittedForm().optString("alertStyles", "").trim();
+                final FormValidation alertStylesValidation = doCheckAlertStyles(alertStyles);
+                if (alertStylesValidation.kind != FormValidation.Kind.OK) {
+                    throw new FormException(alertStylesValidation.getMessage(), "alertStyles");
+                }
                 setColorMaps(colorMaps.toArray(new AnsiColorMap[0]));
                 setGlobalColorMapName(globalColorMapName.isEmpty() ? null : globalColorMapName);
+                setBudgetLogSizeMB(budgetLogSizeMB);
+                setStripLogSizeMB(stripLogSizeMB);
+                setMaxConcurrentAnnotations(maxConcurrentAnnotations);
+                setCollapseProgressLines(req.getSubmittedForm().optBoolean("collapseProgressLines"));
+                setStripUncoloredBuilds(req.getSubmittedForm().optBoolean("stripUncoloredBuilds"));
+                setPrerenderConsole(req.getSubmittedForm().optBoolean("prerenderConsole"));
+                setClientSideRendering(req.getSubmittedForm().optBoolean("clientSideRendering"));
+                setRenderedCacheMB(renderedCacheMB);
+                setAlertStyles(alertStyles.isEmpty() ? null : alertStyles);
                 save();
                 return true;
             } catch (ServletException e) {
@@ -161,6 +258,15 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
             }
         }
 
+        private int getNonNegativeInt(JSONObject form, String fieldName) throws FormException {
+            final String value = form.optString(fieldName, "").trim();
+            final FormValidation validation = validateNonNegativeInteger(value);
+            if (validation.kind != FormValidation.Kind.OK) {
+                throw new FormException(validation.getMessage(), fieldName);
+            }
+            return value.isEmpty() ? 0 : Integer.parseInt(value);
+        }
+
         private void validateFieldName(String fieldValue) throws FormException {
             final FormValidation validation = doCheckName(fieldValue);
             if (validation.kind != FormValidation.Kind.OK) {
@@ -185,6 +291,27 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
             return value.isEmpty() ? FormValidation.ok() : validateColorMapName(value);
         }
 
+        public FormValidation doCheckBudgetLogSizeMB(@QueryParameter String value) {
+            return validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckStripLogSizeMB(@QueryParameter String value) {
+            return validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxConcurrentAnnotations(@QueryParameter String value) {
+            return validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckAlertStyles(@QueryParameter String value) {
+            final String malformed = AlertIndex.findMalformed(value);
+            return malformed == null ? FormValidation.ok() : FormValidation.error("Alert styles must be SGR parameters like 31 or 1;31, not " + malformed);
+        }
+
+        private FormValidation validateNonNegativeInteger(String value) {
+            return value.trim().isEmpty() ? FormValidation.ok() : FormValidation.validateNonNegativeInteger(value.trim());
+        }
+
         @SuppressWarnings("unused")
         public FormValidation doCheckName(@QueryParameter final String value) {
             return validateColorMapName(value);
@@ -272,6 +399,98 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
             globalColorMapName = colorMapName;
         }
 
+        public int getBudgetLogSizeMB() {
+            return budgetLogSizeMB;
+        }
+
+        public void setBudgetLogSizeMB(int budgetLogSizeMB) {
+            this.budgetLogSizeMB = budgetLogSizeMB;
+        }
+
+        public int getStripLogSizeMB() {
+            return stripLogSizeMB;
+        }
+
+        public void setStripLogSizeMB(int stripLogSizeMB) {
+            this.stripLogSizeMB = stripLogSizeMB;
+        }
+
+        public int getMaxConcurrentAnnotations() {
+            return maxConcurrentAnnotations;
+        }
+
+        public void setMaxConcurrentAnnotations(int maxConcurrentAnnotations) {
+            this.maxConcurrentAnnotations = maxConcurrentAnnotations;
+        }
+
+        public boolean isCollapseProgressLines() {
+            return collapseProgressLines;
+        }
+
+        public void setCollapseProgressLines(boolean collapseProgressLines) {
+            this.collapseProgressLines = collapseProgressLines;
+        }
+
+        public boolean isStripUncoloredBuilds() {
+            return stripUncoloredBuilds;
+        }
+
+        public void setStripUncoloredBuilds(boolean stripUncoloredBuilds) {
+            this.stripUncoloredBuilds = stripUncoloredBuilds;
+        }
+
+        public boolean isPrerenderConsole() {
+            return prerenderConsole;
+        }
+
+        public void setPrerenderConsole(boolean prerenderConsole) {
+            this.prerenderConsole = prerenderConsole;
+        }
+
+        public boolean isClientSideRendering() {
+            return clientSideRendering;
+        }
+
+        public void setClientSideRendering(boolean clientSideRendering) {
+            this.clientSideRendering = clientSideRendering;
+        }
+
+        public int getRenderedCacheMB() {
+            return renderedCacheMB;
+        }
+
+        public void setRenderedCacheMB(int renderedCacheMB) {
+            this.renderedCacheMB = renderedCacheMB;
+        }
+
+        public String getAlertStyles() {
+            return alertStyles;
+        }
+
+        public void setAlertStyles(String alertStyles) {
+            this.alertStyles = alertStyles;
+        }
+
+        /**
+         * @return a digest of the settings which the rendering of a console depends on, so that consoles rendered
+         * with other settings are not served
+         */
+        public String getRenderingFingerprint() {
+            final StringBuilder settings = new StringBuilder()
+                .append(globalColorMapName).append('\n')
+                .append(collapseProgressLines).append('\n');
+            for (AnsiColorMap colorMap : getColorMaps()) {
+                settings.append(colorMap.getName())
+                    .append(',').append(colorMap.getDefaultForeground())
+                    .append(',').append(colorMap.getDefaultBackground());
+                for (Function<AnsiColorMap, String> field : new TreeMap<>(VALIDATED_FIELDS).values()) {
+                    settings.append(',').append(field.apply(colorMap));
+                }
+                settings.append('\n');
+            }
+            return Util.getDigestOf(settings.toString());
+        }
+
         public AnsiColorMap[] getColorMaps() {
             return withDefaults(colorMaps);
         }
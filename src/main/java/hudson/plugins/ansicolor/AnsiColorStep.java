@@ -6,15 +6,20 @@ import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.plugins.ansicolor.AnsiColorBuildWrapper.DescriptorImpl;
 import hudson.plugins.ansicolor.action.ActionNote;
+import hudson.plugins.ansicolor.action.ColorMapAction;
 import hudson.plugins.ansicolor.action.ColorizedAction;
+import hudson.plugins.ansicolor.action.ColorizedActions;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.log.TaskListenerDecorator;
 import org.jenkinsci.plugins.workflow.steps.*;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -25,6 +30,8 @@ import java.util.logging.Logger;
 public class AnsiColorStep extends Step {
 
     private final String colorMapName;
+    private boolean compactProgress;
+    private boolean normalizeSequences;
 
     /**
      * Create a new {@link AnsiColorStep}.
@@ -39,13 +46,39 @@ public class AnsiColorStep extends Step {
         return colorMapName;
     }
 
+    public boolean isCompactProgress() {
+        return compactProgress;
+    }
+
+    /**
+     * @param compactProgress whether only the last frame of progress lines is written to the log, see
+     *                        {@link ProgressCompactingOutputStream}
+     */
+    @DataBoundSetter
+    public void setCompactProgress(boolean compactProgress) {
+        this.compactProgress = compactProgress;
+    }
+
+    public boolean isNormalizeSequences() {
+        return normalizeSequences;
+    }
+
+    /**
+     * @param normalizeSequences whether escape sequences are written to the log in their shortest form, see
+     *                           {@link SgrNormalizingOutputStream}
+     */
+    @DataBoundSetter
+    public void setNormalizeSequences(boolean normalizeSequences) {
+        this.normalizeSequences = normalizeSequences;
+    }
+
     private static DescriptorImpl getWrapperDescriptor() {
         return Jenkins.get().getDescriptorByType(DescriptorImpl.class);
     }
 
     @Override
     public StepExecution start(StepContext context) throws Exception {
-        return new ExecutionImpl(context, colorMapName);
+        return new ExecutionImpl(context, colorMapName, compactProgress, normalizeSequences);
     }
 
     /**
@@ -56,10 +89,14 @@ public class AnsiColorStep extends Step {
         private static final long serialVersionUID = 1L;
 
         private final String colorMapName;
+        private final boolean compactProgress;
+        private final boolean normalizeSequences;
 
-        ExecutionImpl(StepContext context, String colorMapName) {
+        ExecutionImpl(StepContext context, String colorMapName, boolean compactProgress, boolean normalizeSequences) {
             super(context);
             this.colorMapName = colorMapName;
+            this.compactProgress = compactProgress;
+            this.normalizeSequences = normalizeSequences;
         }
 
         /**
@@ -71,10 +108,14 @@ public class AnsiColorStep extends Step {
 
             EnvironmentExpander currentEnvironment = context.get(EnvironmentExpander.class);
             EnvironmentExpander terminalEnvironment = EnvironmentExpander.constant(Collections.singletonMap("TERM", colorMapName));
-            context.newBodyInvoker()
+            BodyInvoker invoker = context.newBodyInvoker()
                 .withContext(EnvironmentExpander.merge(currentEnvironment, terminalEnvironment))
-                .withCallback(new AnsiColorExecution(colorMapName))
-                .start();
+                .withCallback(new AnsiColorExecution(colorMapName));
+            if (compactProgress || normalizeSequences) {
+                invoker.withContext(TaskListenerDecorator.merge(context.get(TaskListenerDecorator.class),
+                    new CompactingDecorator(compactProgress, normalizeSequences)));
+            }
+            invoker.start();
             return false;
         }
     }
@@ -117,6 +158,24 @@ public class AnsiColorStep extends Step {
         }
     }
 
+    private static final class CompactingDecorator extends TaskListenerDecorator {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean compactProgress;
+        private final boolean normalizeSequences;
+
+        CompactingDecorator(boolean compactProgress, boolean normalizeSequences) {
+            this.compactProgress = compactProgress;
+            this.normalizeSequences = normalizeSequences;
+        }
+
+        @NonNull
+        @Override
+        public OutputStream decorate(@NonNull OutputStream logger) {
+            return AnsiColorBuildWrapper.compact(logger, compactProgress, normalizeSequences);
+        }
+    }
+
     private static class AnsiColorExecution extends BodyExecutionCallback {
         private static final Logger LOGGER = Logger.getLogger(AnsiColorExecution.class.getName());
 
@@ -141,6 +200,7 @@ public class AnsiColorStep extends Step {
 
         @Override
         public void onStart(StepContext context) {
+            markBody(context);
             issueAction(context, new ColorizedAction(colorMapName, ColorizedAction.Command.START));
             super.onStart(context);
         }
@@ -157,20 +217,28 @@ public class AnsiColorStep extends Step {
             context.onFailure(t);
         }
 
+        /**
+         * Marks the start of the body, which the logs of the nodes within are colored by, see {@link ColorMapAction}.
+         */
+        private void markBody(StepContext context) {
+            try {
+                final FlowNode node = context.get(FlowNode.class);
+                if (node != null) {
+                    node.addAction(new ColorMapAction(colorMapName));
+                }
+            } catch (IOException | InterruptedException e) {
+                LOGGER.log(Level.WARNING, "Could not mark the body. Logs of its steps may not be colored.", e);
+            }
+        }
+
         private void issueAction(StepContext context, ColorizedAction action) {
             try {
                 final TaskListener taskListener = context.get(TaskListener.class);
                 final Run<?, ?> run = context.get(Run.class);
                 if (taskListener != null && run != null) {
-                    run.addAction(action);
+                    ColorizedActions.of(run).add(action);
                     taskListener.annotate(new ActionNote(action));
                     ensureRendering(taskListener);
-                    final ColorizedAction currentAction = new ColorizedAction(action.getColorMapName(), ColorizedAction.Command.CURRENT);
-                    if (action.getCommand().equals(ColorizedAction.Command.START)) {
-                        run.addAction(currentAction);
-                    } else {
-                        run.removeAction(currentAction);
-                    }
                 }
             } catch (IOException | InterruptedException e) {
                 LOGGER.log(Level.WARNING, "Could not annotate. Ansicolor plugin will not work correctly.", e);
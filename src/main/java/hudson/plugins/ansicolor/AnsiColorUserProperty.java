@@ -0,0 +1,57 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.User;
+import hudson.model.UserProperty;
+import hudson.model.UserPropertyDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Per user settings of how consoles are colored.
+ */
+public final class AnsiColorUserProperty extends UserProperty {
+
+    private boolean clientSideRendering;
+
+    @DataBoundConstructor
+    public AnsiColorUserProperty() {
+    }
+
+    public boolean isClientSideRendering() {
+        return clientSideRendering;
+    }
+
+    @DataBoundSetter
+    public void setClientSideRendering(boolean clientSideRendering) {
+        this.clientSideRendering = clientSideRendering;
+    }
+
+    /**
+     * @return whether the user has their consoles colored by the browser, see {@link ColorConsoleAnnotator.Policy#CLIENT}
+     */
+    static boolean isClientSideRendering(@CheckForNull User user) {
+        if (user == null) {
+            return false;
+        }
+        final AnsiColorUserProperty property = user.getProperty(AnsiColorUserProperty.class);
+        return property != null && property.isClientSideRendering();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends UserPropertyDescriptor {
+
+        @Override
+        public UserProperty newInstance(User user) {
+            return new AnsiColorUserProperty();
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return Messages.AnsiColorUserProperty_DisplayName();
+        }
+    }
+}
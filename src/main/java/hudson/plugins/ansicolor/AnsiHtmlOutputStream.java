@@ -30,59 +30,91 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Stack;
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 /**
  * Filters an output stream of ANSI escape sequences and emits appropriate HTML elements instead.
  *
- * Overlapping ANSI attribute combinations are handled by rewinding the HTML element stack.
+ * The graphic rendition is tracked as an {@link AnsiStyle}, and the HTML elements are only brought up to date when
+ * there is text to render: elements which are still wanted are kept, the others are closed, and the missing ones are
+ * opened in the order their attributes were last changed. Escape sequences which do not change the rendering of any
+ * text produce no HTML at all.
  *
  * How the HTML is actually emitted depends on the specified {@link AnsiAttributeElement.Emitter}.
  * For Jenkins, the Emitter creates {@link ConsoleNote}s as part of the stream, but for
  * other software or testing the HTML may be emitted otherwise.
  *
  * The only thing that ties this class to Jenkins is the rather unfortunate {@link ConsoleNote} preamble/postamble
- * handling via state machine. Simply remove this if you plan to use this class somewhere else.
+ * handling, which {@link AnsiParser} takes care of. Simply turn it off if you plan to use this class somewhere else.
  */
 public class AnsiHtmlOutputStream extends AnsiOutputStream {
+    private static final long COLORS = AnsiStyle.INVERSE | AnsiStyle.FG | AnsiStyle.BG;
+
     private final AnsiColorMap colorMap;
+    // Counts the markup before passing it on
     private final AnsiAttributeElement.Emitter emitter;
 
-    private enum State {
-        INIT, DATA, PREAMBLE, NOTE, POSTAMBLE
-    }
-    private State state = State.INIT;
-    private int amblePos = 0;
+    private boolean initialized = false;
+    private AnsiAttributeElement defaultColors;
+
+    // The style selected by the escape sequences so far
+    private final AnsiStyle style;
+    // Whether escape sequences were processed since the HTML was last brought up to date
+    private boolean pending;
+
+    // The elements which are currently open, from outermost to innermost, along with the slot and the style bits they render
+    private final AnsiAttributeElement[] openElements = new AnsiAttributeElement[AnsiStyle.SLOT_MASKS.length];
+    private final int[] openSlots = new int[AnsiStyle.SLOT_MASKS.length];
+    private final long[] openKeys = new long[AnsiStyle.SLOT_MASKS.length];
+    private int openCount;
+
+    // Limits for the text since the last start, see setLimits
+    private int maxSequences = Integer.MAX_VALUE;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxMarkup = Integer.MAX_VALUE;
+    private int sequences;
+    private int markup;
+    private boolean stripped;
 
-    private String currentForegroundColor = null;
-    private String currentBackgroundColor = null;
-    private boolean swapColors = false;  // true if negative / inverse mode is active (esc[7m)
+    // The element last created for each slot, along with the style bits it renders
+    private final AnsiAttributeElement[] elements = new AnsiAttributeElement[AnsiStyle.SLOT_MASKS.length];
+    private final long[] elementKeys = new long[AnsiStyle.SLOT_MASKS.length];
 
-    // A Deque might be a better choice, but we are constrained by the Java 5 API.
-    private final ArrayList<AnsiAttributeElement> openTags;
+    // Scratch space for the wanted elements
+    private final int[] wantedSlots = new int[AnsiStyle.SLOT_MASKS.length];
+    private final long[] wantedKeys = new long[AnsiStyle.SLOT_MASKS.length];
 
     private final OutputStream logOutput;
 
     /**
-     * @param tagsToOpen A list of tags to open in the given order immediately after opening the tag for the default
-     * foreground/background colors (if such colors are specified by the color map) before any data is written to the
-     * underlying stream.
+     * @param initialStyle The style to start with, its elements are opened immediately after opening the tag for the
+     * default foreground/background colors (if such colors are specified by the color map) before any text is written
+     * to the underlying stream.
      */
     /*package*/ AnsiHtmlOutputStream(final OutputStream os, final AnsiColorMap colorMap,
-        final AnsiAttributeElement.Emitter emitter, @NonNull List<AnsiAttributeElement> tagsToOpen) {
-        super(os);
+        final AnsiAttributeElement.Emitter emitter, @NonNull AnsiStyle initialStyle) {
+        super(os, true);
         this.logOutput = os;
         this.colorMap = colorMap;
-        this.emitter = emitter;
-        this.openTags = new ArrayList<>(tagsToOpen);
+        this.emitter = new AnsiAttributeElement.Emitter() {
+            @Override
+            public void emitHtml(@NonNull String html) {
+                markup += html.length();
+                emitter.emitHtml(html);
+            }
+
+            @Override
+            public void emitInvisibleSequence() {
+                emitter.emitInvisibleSequence();
+            }
+        };
+        this.style = new AnsiStyle();
+        start(initialStyle);
     }
 
     public AnsiHtmlOutputStream(final OutputStream os, final AnsiColorMap colorMap,
         final AnsiAttributeElement.Emitter emitter) {
-        this(os, colorMap, emitter, Collections.emptyList());
+        this(os, colorMap, emitter, new AnsiStyle());
     }
 
     // Debug output for plugin developers. Puts the debug message into the html page
@@ -107,206 +139,315 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
         this.out = logOutput;
     }
 
+    private void start(AnsiStyle initialStyle) {
+        style.set(initialStyle.getStyle(), initialStyle.getOrder());
+        pending = !style.isDefault();
+        sequences = 0;
+        markup = 0;
+        stripped = false;
+        if (style.isConcealed()) {
+            startConcealing();
+        } else {
+            stopConcealing();
+        }
+    }
+
     /**
-     * @return A copy of the {@link AnsiAttributeElement}s which are currently opened, in order from outermost to innermost tag.
+     * Starts over with the given style, as if the stream had just been created, so that one stream can render many
+     * independent pieces of text, each followed by {@link #finish()}.
      */
-    /*package*/ List<AnsiAttributeElement> getOpenTags() {
-        return new ArrayList<>(openTags);
+    /*package*/ void restart(@NonNull AnsiStyle initialStyle) {
+        resetParser();
+        // Elements left open by a failed render are dropped, they are not part of the new text.
+        while (openCount > 0) {
+            openElements[--openCount] = null;
+        }
+        initialized = false;
+        start(initialStyle);
     }
 
-    private void openTag(AnsiAttributeElement tag) {
-        openTags.add(tag);
-        tag.emitOpen(emitter);
+    /**
+     * Limits the work spent on pathological text, like lines with thousands of escape sequences. Once a limit is
+     * exceeded, all elements are closed and the rest of the text, until the stream is {@link #restart restarted}, is
+     * rendered without any markup. The escape sequences are still filtered out, and the style is still tracked.
+     *
+     * @param maxSequences the number of escape sequences
+     * @param maxDepth the number of nested elements
+     * @param maxMarkup the number of chars of emitted HTML
+     */
+    /*package*/ void setLimits(int maxSequences, int maxDepth, int maxMarkup) {
+        this.maxSequences = maxSequences;
+        this.maxDepth = maxDepth;
+        this.maxMarkup = maxMarkup;
     }
 
-    private void closeOpenTags(AnsiAttrType until) {
-        // If this method is called because we saw SGR0 (reset graphics), but there are no open tags to close, then the
-        // current SGR0 is redundant. If `until` is null, then instead of seeing SGR0 it means the stream is closing,
-        // so we don't do anything special.
-        if (until == AnsiAttrType.DEFAULT && (openTags.isEmpty() || openTags.get(0).ansiAttrType == AnsiAttrType.DEFAULT)) {
-            emitter.emitInvisibleSequence();
-        }
-        while (!openTags.isEmpty()) {
-            int index = openTags.size() - 1;
-            if (until != null && openTags.get(index).ansiAttrType == until)
-                break;
+    /**
+     * @return whether a limit was exceeded since the stream was created or restarted
+     */
+    /*package*/ boolean isStripped() {
+        return stripped;
+    }
 
-            openTags.remove(index).emitClose(emitter);
-        }
+    /**
+     * @return A copy of the style selected so far, which may not have been rendered yet.
+     */
+    /*package*/ AnsiStyle getStyle() {
+        return new AnsiStyle(style.getStyle(), style.getOrder());
     }
 
-    /* ANSI Attributes, unlike HTML elements, can overlap.
-     * This method implements the unwinding of elements up until the element of the requested type.
-     * That last element is just closed, while the others before it have to be reopened.
-     *
-     * Nothing happens when trying to close an element which has never been opened (i.e. "bold off" when there
-     * was no "bold" before).
-     *
-     * Special handling is applied for AnsiAttrType.FGBG, as there will be closed all FG, BG and FGBG elements.
+    /**
+     * Copies the style selected so far, which may not have been rendered yet, into the given one.
      */
-    private void closeTagOfType(AnsiAttrType ansiAttrType) {
-        if (ansiAttrType == AnsiAttrType.FGBG) {
-            closeTagsOfTypeFGBG();
-            return;
-        }
-        int sameTypePos;
+    /*package*/ void copyStyleTo(AnsiStyle target) {
+        target.set(style.getStyle(), style.getOrder());
+    }
 
-        // Search for an element with matching type.
-        for (sameTypePos = openTags.size(); sameTypePos > 0; sameTypePos--) {
-            if (openTags.get(sameTypePos - 1).ansiAttrType == ansiAttrType) {
-                break;
-            }
+    @Override
+    public void write(int data) throws IOException {
+        init();
+        super.write(data);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len > 0) {
+            init();
+            super.write(b, off, len);
         }
+    }
 
-        if (sameTypePos == 0) {
-            // No need to unwind anything if the attribute has not been touched yet.
-            emitter.emitInvisibleSequence();
+    private void init() {
+        if (initialized) {
             return;
         }
+        Integer defaultFg = colorMap.getDefaultForeground();
+        Integer defaultBg = colorMap.getDefaultBackground();
 
-        Stack<AnsiAttributeElement> reopen = new Stack<>();
-
-        // Unwind ...
-        for (int unwindAt = openTags.size(); unwindAt > sameTypePos; unwindAt--) {
-            AnsiAttributeElement tag = openTags.remove(unwindAt-1);
-            tag.emitClose(emitter);
-            reopen.push(tag);
+        if (defaultFg != null || defaultBg != null) {
+            if (defaultColors == null) {
+                defaultColors = new AnsiAttributeElement(AnsiAttrType.DEFAULT, "div", "style=\"" +
+                        (defaultBg != null ? "background-color: " + colorMap.getNormal(defaultBg) + ";" : "") +
+                        (defaultFg != null ? "color: " + colorMap.getNormal(defaultFg) + ";" : "") + "\"");
+            }
+            defaultColors.emitOpen(emitter);
         }
+        initialized = true;
+    }
 
-        // ... close matching element ...
-        AnsiAttributeElement offendingTag = openTags.remove(sameTypePos-1);
-        offendingTag.emitClose(emitter);
+    @Override
+    protected void processText(byte[] b, int off, int len) throws IOException {
+        if (!style.isConcealed()) {
+            render();
+        }
+        out.write(b, off, len);
+    }
 
-        // ... reopen.
-        while (!reopen.isEmpty()) {
-            AnsiAttributeElement tag = reopen.pop();
-            tag.emitOpen(emitter);
-            openTags.add(tag);
+    @Override
+    protected void processConsoleNote(byte[] b, int off, int len) throws IOException {
+        if (!style.isConcealed()) {
+            render();
         }
+        out.write(b, off, len);
     }
 
-    // Like closeTagOfType(), but closes all FG, BG and FGBG elements.
-    private void closeTagsOfTypeFGBG() {
-        int firstMatch;
+    private void processSequence() {
+        pending = true;
+        sequences++;
+    }
 
-        // Search for first element with matching type.
-        for (firstMatch = 0 ; firstMatch < openTags.size(); firstMatch++) {
-            AnsiAttrType attrtype = openTags.get(firstMatch).ansiAttrType;
-            if (attrtype == AnsiAttrType.FG || attrtype == AnsiAttrType.BG || attrtype == AnsiAttrType.FGBG)
-                break;
+    @Override
+    protected void processSelectGraphicRendition(int[] params, int count) {
+        processSequence();
+        final AnsiStyle.Change change = getSgrChange();
+        style.apply(change != null ? change : AnsiStyle.Change.of(params, count));
+        if (style.isConcealed()) {
+            startConcealing();
+        } else {
+            stopConcealing();
         }
+    }
 
-        if (firstMatch >= openTags.size())
-            // No need to unwind anything if none of the attributes has not been touched yet.
+    /**
+     * Brings the open elements up to date with the style, if any escape sequence was processed since the last call.
+     */
+    private void render() {
+        if (!pending) {
             return;
-
-        Stack<AnsiAttributeElement> reopen = new Stack<>();
-
-        // Unwind, close all elements until firstMatch (including all FG, BG, FGBG)
-        for (int unwindAt = openTags.size(); unwindAt > firstMatch;) {
-            unwindAt--;
-            AnsiAttributeElement tag = openTags.remove(unwindAt);
-            tag.emitClose(emitter);
-            AnsiAttrType attrtype = tag.ansiAttrType;
-            if (!(attrtype == AnsiAttrType.FG || attrtype == AnsiAttrType.BG || attrtype == AnsiAttrType.FGBG))
-                reopen.push(tag);
         }
-
-        // reopen stacked tags
-        while (!reopen.isEmpty()) {
-            AnsiAttributeElement tag = reopen.pop();
-            tag.emitOpen(emitter);
-            openTags.add(tag);
+        pending = false;
+        if (sequences > maxSequences || markup > maxMarkup) {
+            stripped = true;
+        }
+        int wantedCount = stripped ? 0 : collectWantedElements();
+        if (wantedCount > maxDepth) {
+            stripped = true;
+            wantedCount = 0;
         }
-    }
-
-    @Override
-    public void write(int data) throws IOException {
-        // This little state machine only exists to handle embedded notes from other sources, whereas
-        // the preamble is an ANSI escape sequence itself.
-
-        if (state == State.INIT) {
-            List<AnsiAttributeElement> tagsToOpen = new ArrayList<>(openTags);
-            openTags.clear();
-
-            Integer defaultFg = colorMap.getDefaultForeground();
-            Integer defaultBg = colorMap.getDefaultBackground();
-
-            if (defaultFg != null || defaultBg != null) {
-                openTag(new AnsiAttributeElement(AnsiAttrType.DEFAULT, "div", "style=\"" +
-                        (defaultBg != null ? "background-color: " + colorMap.getNormal(defaultBg) + ";" : "") +
-                        (defaultFg != null ? "color: " + colorMap.getNormal(defaultFg) + ";" : "") + "\""));
-            }
 
-            for (AnsiAttributeElement tag : tagsToOpen) {
-                openTag(tag);
+        // Keep the outermost elements which are still wanted, ...
+        int keep = 0;
+        while (keep < openCount && indexOf(openSlots[keep], openKeys[keep], wantedCount) >= 0) {
+            keep++;
+        }
+        boolean changed = openCount > keep;
+        // ... close the others ...
+        while (openCount > keep) {
+            openCount--;
+            openElements[openCount].emitClose(emitter);
+            openElements[openCount] = null;
+        }
+        // ... and open the missing ones in order.
+        for (int i = 0; i < wantedCount; i++) {
+            if (!isOpen(wantedSlots[i], keep)) {
+                final AnsiAttributeElement element = getElement(wantedSlots[i], wantedKeys[i]);
+                element.emitOpen(emitter);
+                openElements[openCount] = element;
+                openSlots[openCount] = wantedSlots[i];
+                openKeys[openCount] = wantedKeys[i];
+                openCount++;
+                changed = true;
             }
-
-            state = State.DATA;
         }
+        if (!changed) {
+            emitter.emitInvisibleSequence();
+        }
+    }
 
-        switch (state) {
-            case DATA:
-                if (data == ConsoleNote.PREAMBLE[0]) {
-                    state = State.PREAMBLE;
-                    amblePos = 0;
-                    collectAmbleCharacter(data, ConsoleNote.PREAMBLE);
-                } else {
-                    super.write(data);
+    /**
+     * Fills {@link #wantedSlots} and {@link #wantedKeys} with the elements the style calls for, from outermost to
+     * innermost. In negative mode both colors are rendered by a single element in place of the inverse slot, which is
+     * nested like the latest of the inverse, foreground and background slots.
+     *
+     * @return the number of wanted elements
+     */
+    private int collectWantedElements() {
+        final long current = style.getStyle();
+        final long order = style.getOrder();
+        final boolean inverse = (current & AnsiStyle.INVERSE) != 0;
+        int lastColorSlot = -1;
+        if (inverse) {
+            for (int position = 0, slot; (slot = AnsiStyle.slotAt(order, position)) >= 0; position++) {
+                if (slot == AnsiStyle.SLOT_INVERSE || slot == AnsiStyle.SLOT_FG || slot == AnsiStyle.SLOT_BG) {
+                    lastColorSlot = slot;
                 }
-                break;
-            case NOTE:
-                if (data == ConsoleNote.POSTAMBLE[0]) {
-                    state = State.POSTAMBLE;
-                    amblePos = 0;
-                    collectAmbleCharacter(data, ConsoleNote.POSTAMBLE);
-                } else {
-                    out.write(data); // Note that notes are directly written out, no ANSI interpretation.
+            }
+        }
+        int count = 0;
+        for (int position = 0, slot; (slot = AnsiStyle.slotAt(order, position)) >= 0; position++) {
+            if (slot == AnsiStyle.SLOT_INVERSE || slot == AnsiStyle.SLOT_FG || slot == AnsiStyle.SLOT_BG) {
+                if (inverse) {
+                    if (slot != lastColorSlot) {
+                        continue;
+                    }
+                    wantedSlots[count] = AnsiStyle.SLOT_INVERSE;
+                    wantedKeys[count] = current & COLORS;
+                    count++;
+                    continue;
                 }
-                break;
-            case PREAMBLE:
-                collectAmbleCharacter(data, ConsoleNote.PREAMBLE);
-                break;
-            case POSTAMBLE:
-                collectAmbleCharacter(data, ConsoleNote.POSTAMBLE);
-                break;
-            default:
-                throw new IllegalStateException("State " + state + " should not be reached");
+            }
+            wantedSlots[count] = slot;
+            wantedKeys[count] = current & AnsiStyle.SLOT_MASKS[slot];
+            count++;
         }
+        return count;
     }
 
-    private void collectAmbleCharacter(int data, byte[] amble) throws IOException {
-        // The word "amble" is a cute generalization of preamble and postamble.
-
-        if (data != amble[amblePos]) {
-            // This was not an amble after all, so replay everything and try interpreting it as ANSI.
-            for (int i = 0; i < amblePos; i++) {
-                super.write(amble[i]);
+    private int indexOf(int slot, long key, int wantedCount) {
+        for (int i = 0; i < wantedCount; i++) {
+            if (wantedSlots[i] == slot) {
+                return wantedKeys[i] == key ? i : -1;
             }
+        }
+        return -1;
+    }
 
-            // Replay the new character in the state machine (may or may not be part of another amble).
-            state = state == State.POSTAMBLE ? State.NOTE : State.DATA;
-            amblePos = 0;
-            this.write(data);
-        } else if (amblePos == amble.length - 1) {
-            // Successfully read a whole preamble.
+    private boolean isOpen(int slot, int count) {
+        for (int i = 0; i < count; i++) {
+            if (openSlots[i] == slot) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            out.write(amble);
+    private AnsiAttributeElement getElement(int slot, long key) {
+        if (elements[slot] == null || elementKeys[slot] != key) {
+            elements[slot] = createElement(slot, key);
+            elementKeys[slot] = key;
+        }
+        return elements[slot];
+    }
+
+    private AnsiAttributeElement createElement(int slot, long key) {
+        switch (slot) {
+            case AnsiStyle.SLOT_BOLD:
+                return AnsiAttributeElement.bold();
+            case AnsiStyle.SLOT_FAINT:
+                return AnsiAttributeElement.faint();
+            case AnsiStyle.SLOT_ITALIC:
+                return AnsiAttributeElement.italic();
+            case AnsiStyle.SLOT_UNDERLINE:
+                // Double underlining is handled entirely different from single underlining, by using a CSS border
+                // instead of a u-element, but it's still of the same attribute type.
+                return (key & AnsiStyle.UNDERLINE_DOUBLE) != 0 ? AnsiAttributeElement.underlineDouble() : AnsiAttributeElement.underline();
+            case AnsiStyle.SLOT_STRIKEOUT:
+                // <strike> is deprecated in HTML 4 and obsoleted in HTML5 (but still worked in my firefox 51.0.1)
+                // alternatives are <del> <s> (both tested and successfully rendered in firefox 51.0.1)
+                // but I finally decide for "text-decoration: line-through"
+                return AnsiAttributeElement.strikeout();
+            case AnsiStyle.SLOT_FRAMED:
+                return AnsiAttributeElement.framed();
+            case AnsiStyle.SLOT_OVERLINE:
+                return AnsiAttributeElement.overline();
+            case AnsiStyle.SLOT_FG:
+                return new AnsiAttributeElement(AnsiAttrType.FG, "span", "style=\"color: " + getColor(key, AnsiStyle.FG_SHIFT) + ";\"");
+            case AnsiStyle.SLOT_BG:
+                return new AnsiAttributeElement(AnsiAttrType.BG, "span", "style=\"background-color: " + getColor(key, AnsiStyle.BG_SHIFT) + ";\"");
+            default:
+                // swap foreground / background colors
+                final String fg = (key & AnsiStyle.FG) != 0 ? getColor(key, AnsiStyle.FG_SHIFT) : getDefaultForegroundColor();
+                final String bg = (key & AnsiStyle.BG) != 0 ? getColor(key, AnsiStyle.BG_SHIFT) : getDefaultBackgroundColor();
+                return new AnsiAttributeElement(AnsiAttrType.FGBG, "span", "style=\"background-color: " + fg + "; color: " + bg + ";\"");
+        }
+    }
 
-            state = state == State.POSTAMBLE ? State.DATA : State.NOTE;
-            amblePos = 0;
-        } else {
-            amblePos++;
+    private String getColor(long key, int shift) {
+        final int color = (int) (key >>> shift) & ((1 << 26) - 1);
+        final int value = color & 0xFFFFFF;
+        if ((color & AnsiStyle.COLOR_RGB) != 0) {
+            return getRgbColor(value >> 16, (value >> 8) & 0xFF, value & 0xFF);
         }
+        return getPaletteColor(value);
     }
 
     @Override
     public void close() throws IOException {
-        stopConcealing();
-        closeOpenTags(null);
+        finish();
         super.close();
     }
 
+    /**
+     * Closes all elements, like {@link #close()}, but leaves the underlying stream open.
+     */
+    /*package*/ void finish() {
+        stopConcealing();
+        // Sequences at the very end are not rendered, but they are still gone.
+        boolean changed = openCount > 0;
+        while (openCount > 0) {
+            openCount--;
+            openElements[openCount].emitClose(emitter);
+            openElements[openCount] = null;
+        }
+        if (pending && !changed) {
+            emitter.emitInvisibleSequence();
+        }
+        pending = false;
+        if (initialized && defaultColors != null) {
+            defaultColors.emitClose(emitter);
+        }
+        initialized = false;
+    }
+
     private String getDefaultForegroundColor() {
         String color = null;
         Integer defaultFgIndex = colorMap.getDefaultForeground();
@@ -329,28 +470,6 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
         return color;
     }
 
-    // @in  color  Html color value like e.g. "#AABBCC" or null for default color
-    private void setForegroundColor(String color) {
-        AnsiAttrType attrType = !swapColors ? AnsiAttrType.FG : AnsiAttrType.BG;
-        String attrName = !swapColors ? "color" : "background-color";
-        if (color == null && swapColors) color = getDefaultForegroundColor();
-        closeTagOfType(attrType);
-        if (color != null)
-            openTag(new AnsiAttributeElement(attrType, "span", "style=\"" + attrName + ": " + color + ";\""));
-        currentForegroundColor = color;
-    }
-
-    // @in  color  Html color value like e.g. "#AABBCC" or null for default color
-    public void setBackgroundColor(String color) {
-        AnsiAttrType attrType = !swapColors ? AnsiAttrType.BG : AnsiAttrType.FG;
-        String attrName = !swapColors ? "background-color" : "color";
-        if (color == null && swapColors) color = getDefaultBackgroundColor();
-        closeTagOfType(attrType);
-        if (color != null)
-            openTag(new AnsiAttributeElement(attrType, "span", "style=\"" + attrName + ": " + color + ";\""));
-        currentBackgroundColor = color;
-    }
-
     // add attribute constants which are currently missing in jansi
     // see also <https://en.wikipedia.org/wiki/ANSI_escape_code#graphics>
     protected static final int ATTRIBUTE_STRIKEOUT       =  9;
@@ -362,115 +481,6 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
     protected static final int ATTRIBUTE_FRAMED_OFF      = 54;  // framed and encircled off
     protected static final int ATTRIBUTE_OVERLINE_OFF    = 55;
 
-    @Override
-    protected void processSetAttribute(int attribute) {
-        //System.out.println("processSetAttribute(" + attribute + ")");
-        // For some reason, AnsiOutputStream.processEscapeCommand() sometimes won't call our processSetFore/BackgroundColor().
-        // Seems that this could be happen, if there was an old version of jansi in jenkins home directory, e.g. `/home/jenkins/.jenkins/war/WEB-INF/lib/jansi-1.9.jar`.
-        // See also: https://github.com/jenkinsci/ansicolor-plugin/issues/91
-        if (attribute >= 90 && attribute <= 97) {
-            processSetForegroundColor(attribute - 90, true);
-        }
-        else if (attribute >= 10 && attribute <= 19) {
-            // Select Primary(Default) / n-th alternate font
-        }
-        else if (attribute >= 100 && attribute <= 107) {
-            processSetBackgroundColor(attribute - 100, true);
-        }
-        else switch (attribute) {
-        case ATTRIBUTE_CONCEAL_ON:
-            startConcealing();
-            break;
-        case ATTRIBUTE_CONCEAL_OFF:
-            stopConcealing();
-            break;
-        case ATTRIBUTE_INTENSITY_BOLD:
-            closeTagOfType(AnsiAttrType.BOLD);
-            openTag(AnsiAttributeElement.bold());
-            break;
-        case ATTRIBUTE_INTENSITY_FAINT:
-            final AnsiAttributeElement faint = AnsiAttributeElement.faint();
-            closeTagOfType(faint.ansiAttrType);
-            openTag(faint);
-            break;
-        case ATTRIBUTE_INTENSITY_NORMAL:
-            closeTagOfType(AnsiAttrType.BOLD);
-            closeTagOfType(AnsiAttrType.FAINT);
-            break;
-        case ATTRIBUTE_ITALIC:
-            closeTagOfType(AnsiAttrType.ITALIC);
-            openTag(AnsiAttributeElement.italic());
-            break;
-        case ATTRIBUTE_ITALIC_OFF:
-            closeTagOfType(AnsiAttrType.ITALIC);
-            break;
-        case ATTRIBUTE_UNDERLINE:
-            closeTagOfType(AnsiAttrType.UNDERLINE);
-            openTag(AnsiAttributeElement.underline());
-            break;
-        case ATTRIBUTE_UNDERLINE_DOUBLE:
-            // Double underlining is handled entirely different from single underlining, by using a CSS border
-            // instead of a u-element, but it's still of the same attribute type and previously opened elements of
-            // either type are closed accordingly.
-            closeTagOfType(AnsiAttrType.UNDERLINE);
-            openTag(AnsiAttributeElement.underlineDouble());
-            break;
-        case ATTRIBUTE_UNDERLINE_OFF:
-            closeTagOfType(AnsiAttrType.UNDERLINE);
-            break;
-        case ATTRIBUTE_NEGATIVE_ON:
-        case ATTRIBUTE_NEGATIVE_Off:
-            // swap foreground / background colors
-            boolean swapNow = attribute == ATTRIBUTE_NEGATIVE_ON;
-            if (swapNow == swapColors) break; // nothing to do
-            swapColors = swapNow;
-            String bg = currentBackgroundColor;
-            String fg = currentForegroundColor;
-            if (swapColors) {
-                if (bg == null) bg = getDefaultBackgroundColor();
-                if (fg == null) fg = getDefaultForegroundColor();
-                String tmp = fg;
-                fg = bg;
-                bg = tmp;
-            }
-            closeTagOfType(AnsiAttrType.FGBG);
-            if (fg != null && bg != null) {
-                openTag(new AnsiAttributeElement(AnsiAttrType.FGBG, "span", "style=\"background-color: " + bg + "; color: " + fg + ";\""));
-            } else {
-                if (bg != null) openTag(new AnsiAttributeElement(AnsiAttrType.BG, "span", "style=\"background-color: " + bg + ";\""));
-                if (fg != null) openTag(new AnsiAttributeElement(AnsiAttrType.FG, "span", "style=\"color: " + fg + ";\""));
-            }
-            break;
-        case ATTRIBUTE_STRIKEOUT:
-            // <strike> is deprecated in HTML 4 and obsoleted in HTML5 (but still worked in my firefox 51.0.1)
-            // alternatives are <del> <s> (both tested and successfully rendered in firefox 51.0.1)
-            // but I finally decide for "text-decoration: line-through"
-            closeTagOfType(AnsiAttrType.STRIKEOUT);
-            openTag(AnsiAttributeElement.strikeout());
-            // openTag(new AnsiAttributeElement(AnsiAttrType.STRIKEOUT, "s", "")); // alternate approach
-            break;
-        case ATTRIBUTE_STRIKEOUT_OFF:
-            closeTagOfType(AnsiAttrType.STRIKEOUT);
-            break;
-        case ATTRIBUTE_FRAMED:
-            closeTagOfType(AnsiAttrType.FRAMED);
-            openTag(AnsiAttributeElement.framed());
-            break;
-        case ATTRIBUTE_FRAMED_OFF:
-            closeTagOfType(AnsiAttrType.FRAMED);
-            break;
-        case ATTRIBUTE_OVERLINE:
-            closeTagOfType(AnsiAttrType.OVERLINE);
-            openTag(AnsiAttributeElement.overline());
-            break;
-        case ATTRIBUTE_OVERLINE_OFF:
-            closeTagOfType(AnsiAttrType.OVERLINE);
-            break;
-        default:
-            break;
-        }
-    }
-
     private String getRgbColor(int r, int g, int b) {
         if (r < 0 || r > 255 || g < 0 || g > 255 || b < 0 || b > 255)
             throw new IllegalArgumentException();
@@ -532,159 +542,98 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
         }
     }
 
-    @Override
-    protected void processAttributeRest() {
-        currentForegroundColor = null;
-        currentBackgroundColor = null;
-        swapColors = false;
-        stopConcealing();
-        closeOpenTags(AnsiAttrType.DEFAULT);
-    }
-
-    @Override
-    protected void processSetForegroundColor(int color) {
-        setForegroundColor(colorMap.getNormal(color));
-    }
-
-    // set foreground color to non standard ANSI colors (90 - 97)
-    @Override
-    protected void processSetForegroundColor(int color, boolean bright) {
-        setForegroundColor(colorMap.getBright(color));
-    }
-
-    @Override
-    protected void processSetForegroundColorExt(int paletteIndex) {
-        setForegroundColor(getPaletteColor(paletteIndex));
-    }
-
-    @Override
-    protected void processSetForegroundColorExt(int r, int g, int b) {
-        setForegroundColor(getRgbColor(r, g, b));
-    }
-
-    @Override
-    protected void processSetBackgroundColor(int color) {
-        setBackgroundColor(colorMap.getNormal(color));
-    }
-
-    // set background color to non standard ANSI colors (100 - 107)
-    @Override
-    protected void processSetBackgroundColor(int color, boolean bright) {
-        setBackgroundColor(colorMap.getBright(color));
-    }
-
-    @Override
-    protected void processSetBackgroundColorExt(int paletteIndex) {
-        setBackgroundColor(getPaletteColor(paletteIndex));
-    }
-
-    @Override
-    protected void processSetBackgroundColorExt(int r, int g, int b) {
-        setBackgroundColor(getRgbColor(r, g, b));
-    }
-
-    @Override
-    protected void processDefaultTextColor() {
-        setForegroundColor(null);
-    }
-
-    @Override
-    protected void processDefaultBackgroundColor() {
-        setBackgroundColor(null);
-    }
-
     @Override
     protected void processEraseLine(int eraseOption) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCursorDown(int count) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCursorUp(int count) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCursorLeft(int count) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCursorUpLine(int count) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processRestoreCursorPosition() {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processSaveCursorPosition() {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processScrollDown(int optionInt) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processScrollUp(int optionInt) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processEraseScreen(int eraseOption) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCursorTo(int row, int col) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCursorToColumn(int x) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCursorDownLine(int count) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCursorRight(int count) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processUnknownExtension(ArrayList<Object> options, int command) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processChangeIconName(String label) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processChangeWindowTitle(String label) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processUnknownOperatingSystemCommand(int command, String param) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 
     @Override
     protected void processCharsetSelect(int set, char seq) {
-        emitter.emitInvisibleSequence();
+        processSequence();
     }
 }
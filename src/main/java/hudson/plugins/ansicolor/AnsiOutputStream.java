@@ -23,7 +23,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Iterator;
 
 /**
  * A ANSI output stream extracts ANSI escape codes written to
@@ -36,6 +35,9 @@ import java.util.Iterator;
  * sent out to the underlying OutputStream.  Subclasses should
  * actually perform the ANSI escape behaviors.
  *
+ * The escape codes are recognized by an {@link AnsiParser}, consumers which do not
+ * need an {@link OutputStream} may as well use the parser directly.
+ *
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  * @author Joris Kuipers
  * @since 1.0
@@ -44,385 +46,239 @@ public class AnsiOutputStream extends FilterOutputStream {
 
     public static final byte[] REST_CODE = resetCode();
 
+    private final AnsiParser parser;
+
     public AnsiOutputStream(OutputStream os) {
+        this(os, false);
+    }
+
+    /**
+     * @param consoleNotes whether embedded {@link hudson.console.ConsoleNote}s are recognized and passed to
+     *                     {@link #processConsoleNote} instead of being interpreted
+     */
+    protected AnsiOutputStream(OutputStream os, boolean consoleNotes) {
         super(os);
+        this.parser = new AnsiParser(new ParserListener(), consoleNotes);
     }
 
-    private final static int MAX_ESCAPE_SEQUENCE_LENGTH = 100;
-    private byte[] buffer = new byte[MAX_ESCAPE_SEQUENCE_LENGTH];
-    private int pos = 0;
-    private int startOfValue;
-    private final ArrayList<Object> options = new ArrayList<Object>();
+    private final class ParserListener implements AnsiParser.Listener {
+        @Override
+        public void text(byte[] b, int off, int len) throws IOException {
+            processText(b, off, len);
+        }
 
-    private static final int LOOKING_FOR_FIRST_ESC_CHAR = 0;
-    private static final int LOOKING_FOR_SECOND_ESC_CHAR = 1;
-    private static final int LOOKING_FOR_NEXT_ARG = 2;
-    private static final int LOOKING_FOR_STR_ARG_END = 3;
-    private static final int LOOKING_FOR_INT_ARG_END = 4;
-    private static final int LOOKING_FOR_OSC_COMMAND = 5;
-    private static final int LOOKING_FOR_OSC_COMMAND_END = 6;
-    private static final int LOOKING_FOR_OSC_PARAM = 7;
-    private static final int LOOKING_FOR_ST = 8;
-    private static final int LOOKING_FOR_CHARSET = 9;
+        @Override
+        public void note(byte[] b, int off, int len) throws IOException {
+            processConsoleNote(b, off, len);
+        }
 
-    int state = LOOKING_FOR_FIRST_ESC_CHAR;
+        @Override
+        public void sgr(int[] params, int count) throws IOException {
+            processSelectGraphicRendition(params, count);
+        }
 
-    private static final int FIRST_ESC_CHAR = 27;
-    private static final int SECOND_ESC_CHAR = '[';
-    private static final int SECOND_OSC_CHAR = ']';
-    private static final int BEL = 7;
-    private static final int SECOND_ST_CHAR = '\\';
-    private static final int SECOND_CHARSET0_CHAR = '(';
-    private static final int SECOND_CHARSET1_CHAR = ')';
+        @Override
+        public void cursor(int command, int[] params, int count) throws IOException {
+            processCursorCommand(command, params, count);
+        }
 
-    // TODO: implement to get perf boost: public void write(byte[] b, int off, int len)
+        @Override
+        public void osc(int command, String param) throws IOException {
+            processOperatingSystemCommand(command, param);
+        }
 
-    public void write(int data) throws IOException {
-        switch (state) {
-            case LOOKING_FOR_FIRST_ESC_CHAR:
-                if (data == FIRST_ESC_CHAR) {
-                    buffer[pos++] = (byte) data;
-                    state = LOOKING_FOR_SECOND_ESC_CHAR;
-                } else {
-                    out.write(data);
-                }
-                break;
+        @Override
+        public void charset(int set, char seq) {
+            // Historically the set is passed as the character '0' or '1'.
+            processCharsetSelect('0' + set, seq);
+        }
 
-            case LOOKING_FOR_SECOND_ESC_CHAR:
-                buffer[pos++] = (byte) data;
-                if (data == SECOND_ESC_CHAR) {
-                    state = LOOKING_FOR_NEXT_ARG;
-                } else if (data == SECOND_OSC_CHAR) {
-                    state = LOOKING_FOR_OSC_COMMAND;
-                } else if (data == SECOND_CHARSET0_CHAR) {
-                    options.add(new Integer('0'));
-                    state = LOOKING_FOR_CHARSET;
-                } else if (data == SECOND_CHARSET1_CHAR) {
-                    options.add(new Integer('1'));
-                    state = LOOKING_FOR_CHARSET;
-                } else {
-                    reset(false);
+        @Override
+        public void unknown(int command, int[] params, int count) {
+            final ArrayList<Object> options = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                switch (params[i]) {
+                    case AnsiParser.DEFAULT_PARAM:
+                        options.add(null);
+                        break;
+                    case AnsiParser.PARAM_QUESTION:
+                        options.add('?');
+                        break;
+                    case AnsiParser.PARAM_EQUALS:
+                        options.add('=');
+                        break;
+                    case AnsiParser.PARAM_STRING:
+                        options.add(parser.getStringParam(i));
+                        break;
+                    default:
+                        options.add(params[i]);
                 }
-                break;
+            }
+            processUnknownExtension(options, command);
+        }
+    }
 
-            case LOOKING_FOR_NEXT_ARG:
-                buffer[pos++] = (byte) data;
-                if ('"' == data) {
-                    startOfValue = pos - 1;
-                    state = LOOKING_FOR_STR_ARG_END;
-                } else if ('0' <= data && data <= '9') {
-                    startOfValue = pos - 1;
-                    state = LOOKING_FOR_INT_ARG_END;
-                } else if (';' == data) {
-                    options.add(null);
-                } else if ('?' == data) {
-                    options.add(new Character('?'));
-                } else if ('=' == data) {
-                    options.add(new Character('='));
-                } else {
-                    reset(processEscapeCommand(options, data));
-                }
+    @Override
+    public void write(int data) throws IOException {
+        parser.parse(data);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        parser.parse(b, off, len);
+    }
+
+    private static int param(int[] params, int count, int index, int defaultValue) {
+        return index < count && params[index] != AnsiParser.DEFAULT_PARAM ? params[index] : defaultValue;
+    }
+
+    private void processCursorCommand(int command, int[] params, int count) throws IOException {
+        switch (command) {
+            case 'A':
+                processCursorUp(param(params, count, 0, 1));
                 break;
-            default:
+            case 'B':
+                processCursorDown(param(params, count, 0, 1));
                 break;
-
-            case LOOKING_FOR_INT_ARG_END:
-                buffer[pos++] = (byte) data;
-                if (!('0' <= data && data <= '9')) {
-                    String strValue = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
-                    Integer value = new Integer(strValue);
-                    options.add(value);
-                    if (data == ';') {
-                        state = LOOKING_FOR_NEXT_ARG;
-                    } else {
-                        reset(processEscapeCommand(options, data));
-                    }
-                }
+            case 'C':
+                processCursorRight(param(params, count, 0, 1));
                 break;
-
-            case LOOKING_FOR_STR_ARG_END:
-                buffer[pos++] = (byte) data;
-                if ('"' != data) {
-                    String value = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
-                    options.add(value);
-                    if (data == ';') {
-                        state = LOOKING_FOR_NEXT_ARG;
-                    } else {
-                        reset(processEscapeCommand(options, data));
-                    }
-                }
+            case 'D':
+                processCursorLeft(param(params, count, 0, 1));
                 break;
-
-            case LOOKING_FOR_OSC_COMMAND:
-                buffer[pos++] = (byte) data;
-                if ('0' <= data && data <= '9') {
-                    startOfValue = pos - 1;
-                    state = LOOKING_FOR_OSC_COMMAND_END;
-                } else {
-                    reset(false);
-                }
+            case 'E':
+                processCursorDownLine(param(params, count, 0, 1));
                 break;
-
-            case LOOKING_FOR_OSC_COMMAND_END:
-                buffer[pos++] = (byte) data;
-                if (';' == data) {
-                    String strValue = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
-                    Integer value = new Integer(strValue);
-                    options.add(value);
-                    startOfValue = pos;
-                    state = LOOKING_FOR_OSC_PARAM;
-                } else if ('0' <= data && data <= '9') {
-                    // already pushed digit to buffer, just keep looking
-                } else {
-                    // oops, did not expect this
-                    reset(false);
-                }
+            case 'F':
+                processCursorUpLine(param(params, count, 0, 1));
                 break;
-
-            case LOOKING_FOR_OSC_PARAM:
-                buffer[pos++] = (byte) data;
-                if (BEL == data) {
-                    String value = new String(buffer, startOfValue, (pos - 1) - startOfValue, "UTF-8");
-                    options.add(value);
-                    reset(processOperatingSystemCommand(options));
-                } else if (FIRST_ESC_CHAR == data) {
-                    state = LOOKING_FOR_ST;
-                } else {
-                    // just keep looking while adding text
-                }
+            case 'G':
+                processCursorToColumn(params[0]);
                 break;
-
-            case LOOKING_FOR_ST:
-                buffer[pos++] = (byte) data;
-                if (SECOND_ST_CHAR == data) {
-                    String value = new String(buffer, startOfValue, (pos - 2) - startOfValue, "UTF-8");
-                    options.add(value);
-                    reset(processOperatingSystemCommand(options));
-                } else {
-                    state = LOOKING_FOR_OSC_PARAM;
-                }
+            case 'H':
+            case 'f':
+                processCursorTo(param(params, count, 0, 1), param(params, count, 1, 1));
                 break;
-
-            case LOOKING_FOR_CHARSET:
-                options.add(new Character((char) data));
-                reset(processCharsetSelect(options));
+            case 'J':
+                processEraseScreen(param(params, count, 0, 0));
+                break;
+            case 'K':
+                processEraseLine(param(params, count, 0, 0));
+                break;
+            case 'S':
+                processScrollUp(param(params, count, 0, 1));
+                break;
+            case 'T':
+                processScrollDown(param(params, count, 0, 1));
+                break;
+            case 's':
+                processSaveCursorPosition();
+                break;
+            case 'u':
+                processRestoreCursorPosition();
+                break;
+            default:
                 break;
-        }
-
-        // Is it just too long?
-        if (pos >= buffer.length) {
-            reset(false);
         }
     }
 
     /**
-     * Resets all state to continue with regular parsing
-     * @param skipBuffer if current buffer should be skipped or written to out
-     * @throws IOException
+     * Drops any partially written escape sequence or console note.
      */
-    private void reset(boolean skipBuffer) throws IOException {
-        if (!skipBuffer) {
-            out.write(buffer, 0, pos);
-        }
-        pos = 0;
-        startOfValue = 0;
-        options.clear();
-        state = LOOKING_FOR_FIRST_ESC_CHAR;
+    void resetParser() {
+        parser.reset();
     }
 
     /**
-     * Helper for processEscapeCommand() to iterate over integer options
-     * @param  optionsIterator  the underlying iterator
-     * @throws IOException      if no more non-null values left
+     * @return the effect of the SGR sequence being processed, if the parser has it at hand
      */
-    private int getNextOptionInt(Iterator<Object> optionsIterator) throws IOException {
-        for (;;) {
-            if (!optionsIterator.hasNext())
-                throw new IllegalArgumentException();
-            Object arg = optionsIterator.next();
-            if (arg != null)
-                return ((Integer)arg).intValue();
-        }
+    AnsiStyle.Change getSgrChange() {
+        return parser.getSgrChange();
     }
 
     /**
-     *
-     * @param options
-     * @param command
-     * @return true if the escape command was processed.
+     * @param params the parameters of the sequence, already validated by the parser, with omitted ones as
+     *               {@link AnsiParser#DEFAULT_PARAM}
      */
-    private boolean processEscapeCommand(ArrayList<Object> options, int command) throws IOException {
-        try {
-            switch (command) {
-                case 'A':
-                    processCursorUp(optionInt(options, 0, 1));
-                    return true;
-                case 'B':
-                    processCursorDown(optionInt(options, 0, 1));
-                    return true;
-                case 'C':
-                    processCursorRight(optionInt(options, 0, 1));
-                    return true;
-                case 'D':
-                    processCursorLeft(optionInt(options, 0, 1));
-                    return true;
-                case 'E':
-                    processCursorDownLine(optionInt(options, 0, 1));
-                    return true;
-                case 'F':
-                    processCursorUpLine(optionInt(options, 0, 1));
-                    return true;
-                case 'G':
-                    processCursorToColumn(optionInt(options, 0));
-                    return true;
-                case 'H':
-                case 'f':
-                    processCursorTo(optionInt(options, 0, 1), optionInt(options, 1, 1));
-                    return true;
-                case 'J':
-                    processEraseScreen(optionInt(options, 0, 0));
-                    return true;
-                case 'K':
-                    processEraseLine(optionInt(options, 0, 0));
-                    return true;
-                case 'S':
-                    processScrollUp(optionInt(options, 0, 1));
-                    return true;
-                case 'T':
-                    processScrollDown(optionInt(options, 0, 1));
-                    return true;
-                case 'm':
-                    // Validate all options are ints...
-                    for (Object next : options) {
-                        if (next != null && next.getClass() != Integer.class) {
-                            throw new IllegalArgumentException();
-                        }
-                    }
-
-                    int count = 0;
-                    Iterator<Object> optionsIterator = options.iterator();
-                    while (optionsIterator.hasNext()) {
-                        Object next = optionsIterator.next();
-                        if (next != null) {
-                            count++;
-                            int value = (Integer) next;
-                            if (30 <= value && value <= 37) {
-                                processSetForegroundColor(value - 30);
-                            } else if (40 <= value && value <= 47) {
-                                processSetBackgroundColor(value - 40);
-                            } else if (90 <= value && value <= 97) {
-                                processSetForegroundColor(value - 90, true);
-                            } else if (100 <= value && value <= 107) {
-                                processSetBackgroundColor(value - 100, true);
-                            } else if ((value == 38 || value == 48)) {
-                                if (!optionsIterator.hasNext()) {
-                                    continue;
-                                }
-                                // extended color like `esc[38;5;<index>m` or `esc[38;2;<r>;<g>;<b>m`
-                                int arg2or5 = getNextOptionInt(optionsIterator);
-                                if (arg2or5 == 2) {
-                                    // 24 bit color style like `esc[38;2;<r>;<g>;<b>m`
-                                    int r = getNextOptionInt(optionsIterator);
-                                    int g = getNextOptionInt(optionsIterator);
-                                    int b = getNextOptionInt(optionsIterator);
-                                    if (r >= 0 && r <= 255 && g >= 0 && g <= 255 && b >= 0 && b <= 255) {
-                                        if (value == 38)
-                                            processSetForegroundColorExt(r, g, b);
-                                        else
-                                            processSetBackgroundColorExt(r, g, b);
-                                    } else {
-                                        throw new IllegalArgumentException();
-                                    }
-                                }
-                                else if (arg2or5 == 5) {
-                                    // 256 color style like `esc[38;5;<index>m`
-                                    int paletteIndex = getNextOptionInt(optionsIterator);
-                                    if (paletteIndex >= 0 && paletteIndex <= 255) {
-                                        if (value == 38)
-                                            processSetForegroundColorExt(paletteIndex);
-                                        else
-                                            processSetBackgroundColorExt(paletteIndex);
-                                    } else {
-                                        throw new IllegalArgumentException();
-                                    }
-                                }
-                                else {
-                                    throw new IllegalArgumentException();
-                                }
-                            } else {
-                                switch (value) {
-                                    case 39:
-                                        processDefaultTextColor();
-                                        break;
-                                    case 49:
-                                        processDefaultBackgroundColor();
-                                        break;
-                                    case 0:
-                                        processAttributeRest();
-                                        break;
-                                    default:
-                                        processSetAttribute(value);
-                                }
-                            }
-                        }
-                    }
-                    if (count == 0) {
+    protected void processSelectGraphicRendition(int[] params, int count) throws IOException {
+        int processed = 0;
+        for (int i = 0; i < count; i++) {
+            int value = params[i];
+            if (value == AnsiParser.DEFAULT_PARAM) {
+                continue;
+            }
+            processed++;
+            if (30 <= value && value <= 37) {
+                processSetForegroundColor(value - 30);
+            } else if (40 <= value && value <= 47) {
+                processSetBackgroundColor(value - 40);
+            } else if (90 <= value && value <= 97) {
+                processSetForegroundColor(value - 90, true);
+            } else if (100 <= value && value <= 107) {
+                processSetBackgroundColor(value - 100, true);
+            } else if ((value == 38 || value == 48)) {
+                if (i + 1 >= count) {
+                    continue;
+                }
+                // extended color like `esc[38;5;<index>m` or `esc[38;2;<r>;<g>;<b>m`, already validated by the parser
+                i = AnsiParser.nextParam(params, count, i);
+                if (params[i] == 2) {
+                    // 24 bit color style like `esc[38;2;<r>;<g>;<b>m`
+                    int r = params[i = AnsiParser.nextParam(params, count, i)];
+                    int g = params[i = AnsiParser.nextParam(params, count, i)];
+                    int b = params[i = AnsiParser.nextParam(params, count, i)];
+                    if (value == 38)
+                        processSetForegroundColorExt(r, g, b);
+                    else
+                        processSetBackgroundColorExt(r, g, b);
+                } else {
+                    // 256 color style like `esc[38;5;<index>m`
+                    int paletteIndex = params[i = AnsiParser.nextParam(params, count, i)];
+                    if (value == 38)
+                        processSetForegroundColorExt(paletteIndex);
+                    else
+                        processSetBackgroundColorExt(paletteIndex);
+                }
+            } else {
+                switch (value) {
+                    case 39:
+                        processDefaultTextColor();
+                        break;
+                    case 49:
+                        processDefaultBackgroundColor();
+                        break;
+                    case 0:
                         processAttributeRest();
-                    }
-                    return true;
-                case 's':
-                    processSaveCursorPosition();
-                    return true;
-                case 'u':
-                    processRestoreCursorPosition();
-                    return true;
-
-                default:
-                    if ('a' <= command && 'z' <= command) {
-                        processUnknownExtension(options, command);
-                        return true;
-                    }
-                    if ('A' <= command && 'Z' <= command) {
-                        processUnknownExtension(options, command);
-                        return true;
-                    }
-                    return false;
+                        break;
+                    default:
+                        processSetAttribute(value);
+                }
             }
-        } catch (IllegalArgumentException ignore) {
         }
-        return false;
+        if (processed == 0) {
+            processAttributeRest();
+        }
     }
 
-    /**
-     *
-     * @param options
-     * @return true if the operating system command was processed.
-     */
-    private boolean processOperatingSystemCommand(ArrayList<Object> options) throws IOException {
-        int command = optionInt(options, 0);
-        String label = (String) options.get(1);
+    private void processOperatingSystemCommand(int command, String label) {
         // for command > 2 label could be composed (i.e. contain ';'), but we'll leave
         // it to processUnknownOperatingSystemCommand implementations to handle that
-        try {
-            switch (command) {
-                case 0:
-                    processChangeIconNameAndWindowTitle(label);
-                    return true;
-                case 1:
-                    processChangeIconName(label);
-                    return true;
-                case 2:
-                    processChangeWindowTitle(label);
-                    return true;
-
-                default:
-                    // not exactly unknown, but not supported through dedicated process methods:
-                    processUnknownOperatingSystemCommand(command, label);
-                    return true;
-            }
-        } catch (IllegalArgumentException ignore) {
+        switch (command) {
+            case 0:
+                processChangeIconNameAndWindowTitle(label);
+                break;
+            case 1:
+                processChangeIconName(label);
+                break;
+            case 2:
+                processChangeWindowTitle(label);
+                break;
+
+            default:
+                // not exactly unknown, but not supported through dedicated process methods:
+                processUnknownOperatingSystemCommand(command, label);
+                break;
         }
-        return false;
     }
 
     protected void processRestoreCursorPosition() throws IOException {
@@ -548,6 +404,14 @@ public class AnsiOutputStream extends FilterOutputStream {
     protected void processUnknownExtension(ArrayList<Object> options, int command) {
     }
 
+    protected void processText(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    protected void processConsoleNote(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
     protected void processChangeIconNameAndWindowTitle(String label) {
         processChangeIconName(label);
         processChangeWindowTitle(label);
@@ -562,43 +426,9 @@ public class AnsiOutputStream extends FilterOutputStream {
     protected void processUnknownOperatingSystemCommand(int command, String param) {
     }
 
-    /**
-     * Process character set sequence.
-     * @param options
-     * @return true if the charcter set select command was processed.
-     */
-    private boolean processCharsetSelect(ArrayList<Object> options) throws IOException {
-        int set = optionInt(options, 0);
-        char seq = ((Character) options.get(1)).charValue();
-        processCharsetSelect(set, seq);
-        return true;
-    }
-
     protected void processCharsetSelect(int set, char seq) {
     }
 
-    private int optionInt(ArrayList<Object> options, int index) {
-        if (options.size() <= index)
-            throw new IllegalArgumentException();
-        Object value = options.get(index);
-        if (value == null)
-            throw new IllegalArgumentException();
-        if (!value.getClass().equals(Integer.class))
-            throw new IllegalArgumentException();
-        return ((Integer) value).intValue();
-    }
-
-    private int optionInt(ArrayList<Object> options, int index, int defaultValue) {
-        if (options.size() > index) {
-            Object value = options.get(index);
-            if (value == null) {
-                return defaultValue;
-            }
-            return ((Integer) value).intValue();
-        }
-        return defaultValue;
-    }
-
     @Override
     public void close() throws IOException {
         write(REST_CODE);
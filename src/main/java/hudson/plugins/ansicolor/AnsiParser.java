@@ -0,0 +1,923 @@
+package hudson.plugins.ansicolor;
+
+import hudson.console.ConsoleNote;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Push parser for ANSI escape sequences.
+ * <p>
+ * Input is pushed as {@code byte[]} or {@code char[]} ranges and reported to a {@link Listener} as typed events: runs of
+ * plain text, SGR (Select Graphic Rendition) parameters, cursor and erase operations, operating system commands and
+ * character set selections. Sequences may be split across calls. A parser should be fed either bytes or chars, not both.
+ * <p>
+ * Sequences which are malformed, unsupported or longer than {@value #MAX_ESCAPE_SEQUENCE_LENGTH} units are reported as
+ * text, just like {@link AnsiOutputStream} always did.
+ * <p>
+ * The parser is a deterministic automaton driven by a transition table, which is generated once from the character
+ * classes below and indexed by state and character class. Each transition is a small action plus the next state, so
+ * the cost per input unit does not depend on the state. Escape sequences are validated and their parameters decoded
+ * when the final character arrives, unless the same sequence was seen recently: the outcome is kept in the shared
+ * {@link AnsiSequenceCache}.
+ * <p>
+ * Optionally the parser also recognizes embedded {@link ConsoleNote}s. Their preamble is itself an escape sequence, so
+ * this is part of the same automaton: a note is passed to {@link Listener#note} without interpretation, regardless of
+ * the state of the escape sequence parser, which continues after the postamble.
+ */
+public final class AnsiParser {
+
+    /**
+     * Receives the events of an {@link AnsiParser}.
+     * <p>
+     * Arrays passed to the listener are owned by the parser, may be shared with other parsers, and are only valid for
+     * the duration of the call. Listeners must not modify them.
+     */
+    public interface Listener {
+
+        /**
+         * Plain text, when the parser is fed bytes.
+         */
+        void text(byte[] b, int off, int len) throws IOException;
+
+        /**
+         * Plain text, when the parser is fed chars. By default the chars are encoded as UTF-8 and passed on as bytes.
+         */
+        default void text(char[] c, int off, int len) throws IOException {
+            final byte[] b = new String(c, off, len).getBytes(StandardCharsets.UTF_8);
+            text(b, 0, b.length);
+        }
+
+        /**
+         * Part of an embedded {@link ConsoleNote}, including its preamble and postamble. Only reported if the parser
+         * was created to recognize notes. By default notes are passed on as text.
+         */
+        default void note(byte[] b, int off, int len) throws IOException {
+            text(b, off, len);
+        }
+
+        /**
+         * Part of an embedded {@link ConsoleNote}, when the parser is fed chars.
+         */
+        default void note(char[] c, int off, int len) throws IOException {
+            text(c, off, len);
+        }
+
+        /**
+         * Select Graphic Rendition, i.e. {@code ESC[<params>m}.
+         *
+         * @param params the numeric parameters, {@link #DEFAULT_PARAM} where a parameter was omitted. An empty list is
+         *               the same as a reset.
+         * @param count  number of valid entries in {@code params}
+         */
+        default void sgr(int[] params, int count) throws IOException {
+        }
+
+        /**
+         * Cursor movement, erase, scroll and save/restore cursor sequences.
+         *
+         * @param command one of {@code ABCDEFGHJKSTfsu}
+         * @param params  the numeric parameters, {@link #DEFAULT_PARAM} where a parameter was omitted
+         * @param count   number of valid entries in {@code params}
+         */
+        default void cursor(int command, int[] params, int count) throws IOException {
+        }
+
+        /**
+         * Operating System Command, i.e. {@code ESC]<command>;<param>BEL} or {@code ESC]<command>;<param>ESC\}.
+         */
+        default void osc(int command, String param) throws IOException {
+        }
+
+        /**
+         * Character set selection, i.e. {@code ESC(<seq>} for G0 and {@code ESC)<seq>} for G1.
+         *
+         * @param set {@code 0} for G0 and {@code 1} for G1
+         */
+        default void charset(int set, char seq) throws IOException {
+        }
+
+        /**
+         * Any other control sequence with an ASCII final character of {@code Z} or above.
+         *
+         * @param params the parameters; besides numbers and {@link #DEFAULT_PARAM} they may contain {@link #PARAM_QUESTION},
+         *               {@link #PARAM_EQUALS} and {@link #PARAM_STRING}. The value of a string parameter is available
+         *               from {@link AnsiParser#getStringParam(int)}.
+         */
+        default void unknown(int command, int[] params, int count) throws IOException {
+        }
+    }
+
+    /** Marks an omitted numeric parameter, as in {@code ESC[;1m}. */
+    public static final int DEFAULT_PARAM = -1;
+    /** Marks a {@code ?} parameter, as in {@code ESC[?25l}. */
+    public static final int PARAM_QUESTION = -2;
+    /** Marks a {@code =} parameter. */
+    public static final int PARAM_EQUALS = -3;
+    /** Marks a quoted string parameter. */
+    public static final int PARAM_STRING = -4;
+
+    static final int MAX_ESCAPE_SEQUENCE_LENGTH = 100;
+
+    private static final int ESC = 27;
+    private static final int BEL = 7;
+
+    // Escape sequence states
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI_NEXT_ARG = 2;
+    private static final int CSI_STR_ARG = 3;
+    private static final int CSI_INT_ARG = 4;
+    private static final int OSC_COMMAND = 5;
+    private static final int OSC_COMMAND_END = 6;
+    private static final int OSC_PARAM = 7;
+    private static final int OSC_ST = 8;
+    private static final int CHARSET = 9;
+    private static final int SEQUENCE_STATES = 10;
+
+    // Console note states; the escape sequence state is kept aside while in them
+    private static final byte[] PREAMBLE = ConsoleNote.PREAMBLE;
+    private static final byte[] POSTAMBLE = ConsoleNote.POSTAMBLE;
+    private static final int PREAMBLE_MATCHED = SEQUENCE_STATES - 1; // + number of bytes matched
+    private static final int NOTE = PREAMBLE_MATCHED + PREAMBLE.length;
+    private static final int POSTAMBLE_MATCHED = NOTE; // + number of bytes matched
+    private static final int STATES = POSTAMBLE_MATCHED + POSTAMBLE.length;
+
+    // Actions
+    private static final int TEXT = 0;              // part of a text run
+    private static final int NOTE_TEXT = 1;         // part of a note
+    private static final int COLLECT = 2;           // part of an escape sequence
+    private static final int FAIL = 3;              // escape sequence is invalid, report it as text
+    private static final int CSI_DISPATCH = 4;
+    private static final int OSC_BEL_DISPATCH = 5;
+    private static final int OSC_ST_DISPATCH = 6;
+    private static final int CHARSET_DISPATCH = 7;
+    private static final int PREAMBLE_START = 8;
+    private static final int AMBLE = 9;             // matched the next byte of a preamble or postamble
+    private static final int PREAMBLE_END = 10;
+    private static final int PREAMBLE_MISMATCH = 11;
+    private static final int POSTAMBLE_END = 12;
+    private static final int POSTAMBLE_MISMATCH = 13;
+
+    private static final int ACTION_SHIFT = 8;
+    private static final int STATE_MASK = (1 << ACTION_SHIFT) - 1;
+
+    // Character categories which the escape sequence states distinguish
+    private static final int C_OTHER = 0;
+    private static final int C_ESC = 1;
+    private static final int C_CSI = 2;
+    private static final int C_OSC = 3;
+    private static final int C_CHARSET = 4;
+    private static final int C_DIGIT = 5;
+    private static final int C_SEMICOLON = 6;
+    private static final int C_QUOTE = 7;
+    private static final int C_QUESTION = 8;
+    private static final int C_EQUALS = 9;
+    private static final int C_BEL = 10;
+    private static final int C_ST = 11;
+
+    /** Character class of each byte; chars beyond {@code 0xFF} are of class {@link #OTHER_CLASS}. */
+    private static final byte[] CLASSES = new byte[256];
+    private static final int OTHER_CLASS;
+    private static final int CLASS_COUNT;
+    private static final int[] SEQUENCE_TABLE;
+    private static final int[] NOTE_TABLE;
+
+    static {
+        // Bytes fall into the same class if they behave the same in every state.
+        final Map<Integer, Integer> classBySignature = new HashMap<>();
+        final int[] representatives = new int[256];
+        for (int b = 0; b < 256; b++) {
+            int signature = category(b);
+            for (int i = 0; i < PREAMBLE.length; i++) {
+                signature |= ((PREAMBLE[i] & 0xFF) == b ? 1 : 0) << (4 + i);
+            }
+            for (int i = 0; i < POSTAMBLE.length; i++) {
+                signature |= ((POSTAMBLE[i] & 0xFF) == b ? 1 : 0) << (4 + PREAMBLE.length + i);
+            }
+            Integer cls = classBySignature.get(signature);
+            if (cls == null) {
+                cls = classBySignature.size();
+                classBySignature.put(signature, cls);
+                representatives[cls] = b;
+            }
+            CLASSES[b] = cls.byteValue();
+        }
+        CLASS_COUNT = classBySignature.size();
+        OTHER_CLASS = CLASSES[0xFF];
+
+        SEQUENCE_TABLE = new int[STATES * CLASS_COUNT];
+        NOTE_TABLE = new int[STATES * CLASS_COUNT];
+        for (int state = 0; state < STATES; state++) {
+            for (int cls = 0; cls < CLASS_COUNT; cls++) {
+                final int b = representatives[cls];
+                SEQUENCE_TABLE[state * CLASS_COUNT + cls] = state < SEQUENCE_STATES ? sequenceTransition(state, b) : 0;
+                NOTE_TABLE[state * CLASS_COUNT + cls] = noteTransition(state, b);
+            }
+        }
+    }
+
+    private static int category(int b) {
+        switch (b) {
+            case ESC:
+                return C_ESC;
+            case '[':
+                return C_CSI;
+            case ']':
+                return C_OSC;
+            case '(':
+            case ')':
+                return C_CHARSET;
+            case ';':
+                return C_SEMICOLON;
+            case '"':
+                return C_QUOTE;
+            case '?':
+                return C_QUESTION;
+            case '=':
+                return C_EQUALS;
+            case BEL:
+                return C_BEL;
+            case '\\':
+                return C_ST;
+            default:
+                return '0' <= b && b <= '9' ? C_DIGIT : C_OTHER;
+        }
+    }
+
+    private static int transition(int action, int next) {
+        return action << ACTION_SHIFT | next;
+    }
+
+    /**
+     * Escape sequences.
+     */
+    private static int sequenceTransition(int state, int b) {
+        final int c = category(b);
+        switch (state) {
+            case GROUND:
+                return c == C_ESC ? transition(COLLECT, ESCAPE) : transition(TEXT, GROUND);
+            case ESCAPE:
+                switch (c) {
+                    case C_CSI:
+                        return transition(COLLECT, CSI_NEXT_ARG);
+                    case C_OSC:
+                        return transition(COLLECT, OSC_COMMAND);
+                    case C_CHARSET:
+                        return transition(COLLECT, CHARSET);
+                    default:
+                        return transition(FAIL, GROUND);
+                }
+            case CSI_NEXT_ARG:
+                switch (c) {
+                    case C_QUOTE:
+                        return transition(COLLECT, CSI_STR_ARG);
+                    case C_DIGIT:
+                        return transition(COLLECT, CSI_INT_ARG);
+                    case C_SEMICOLON:
+                    case C_QUESTION:
+                    case C_EQUALS:
+                        return transition(COLLECT, CSI_NEXT_ARG);
+                    default:
+                        return transition(CSI_DISPATCH, GROUND);
+                }
+            case CSI_STR_ARG:
+                // Any character but a quote ends a string argument.
+                switch (c) {
+                    case C_QUOTE:
+                        return transition(COLLECT, CSI_STR_ARG);
+                    case C_SEMICOLON:
+                        return transition(COLLECT, CSI_NEXT_ARG);
+                    default:
+                        return transition(CSI_DISPATCH, GROUND);
+                }
+            case CSI_INT_ARG:
+                switch (c) {
+                    case C_DIGIT:
+                        return transition(COLLECT, CSI_INT_ARG);
+                    case C_SEMICOLON:
+                        return transition(COLLECT, CSI_NEXT_ARG);
+                    default:
+                        return transition(CSI_DISPATCH, GROUND);
+                }
+            case OSC_COMMAND:
+                return c == C_DIGIT ? transition(COLLECT, OSC_COMMAND_END) : transition(FAIL, GROUND);
+            case OSC_COMMAND_END:
+                switch (c) {
+                    case C_DIGIT:
+                        return transition(COLLECT, OSC_COMMAND_END);
+                    case C_SEMICOLON:
+                        return transition(COLLECT, OSC_PARAM);
+                    default:
+                        return transition(FAIL, GROUND);
+                }
+            case OSC_PARAM:
+                switch (c) {
+                    case C_BEL:
+                        return transition(OSC_BEL_DISPATCH, GROUND);
+                    case C_ESC:
+                        return transition(COLLECT, OSC_ST);
+                    default:
+                        return transition(COLLECT, OSC_PARAM);
+                }
+            case OSC_ST:
+                return c == C_ST ? transition(OSC_ST_DISPATCH, GROUND) : transition(COLLECT, OSC_PARAM);
+            case CHARSET:
+                return transition(CHARSET_DISPATCH, GROUND);
+            default:
+                throw new IllegalStateException("State " + state + " should not be reached");
+        }
+    }
+
+    /**
+     * Escape sequences with embedded console notes. The first byte of a preamble leaves any escape sequence state,
+     * mismatches replay the matched bytes through {@link #SEQUENCE_TABLE}.
+     */
+    private static int noteTransition(int state, int b) {
+        if (state < SEQUENCE_STATES) {
+            return b == (PREAMBLE[0] & 0xFF) ? transition(PREAMBLE_START, PREAMBLE_MATCHED + 1) : sequenceTransition(state, b);
+        }
+        if (state < NOTE) {
+            final int matched = state - PREAMBLE_MATCHED;
+            if (b != (PREAMBLE[matched] & 0xFF)) {
+                return transition(PREAMBLE_MISMATCH, GROUND);
+            }
+            return matched + 1 == PREAMBLE.length ? transition(PREAMBLE_END, NOTE) : transition(AMBLE, state + 1);
+        }
+        if (state == NOTE) {
+            return b == (POSTAMBLE[0] & 0xFF) ? transition(AMBLE, POSTAMBLE_MATCHED + 1) : transition(NOTE_TEXT, NOTE);
+        }
+        final int matched = state - POSTAMBLE_MATCHED;
+        if (b != (POSTAMBLE[matched] & 0xFF)) {
+            return transition(POSTAMBLE_MISMATCH, NOTE);
+        }
+        return matched + 1 == POSTAMBLE.length ? transition(POSTAMBLE_END, GROUND) : transition(AMBLE, state + 1);
+    }
+
+    private static final char[] PREAMBLE_CHARS = toChars(PREAMBLE);
+    private static final char[] POSTAMBLE_CHARS = toChars(POSTAMBLE);
+
+    private static char[] toChars(byte[] b) {
+        final char[] c = new char[b.length];
+        for (int i = 0; i < b.length; i++) {
+            c[i] = (char) (b[i] & 0xFF);
+        }
+        return c;
+    }
+
+    private static final AnsiSequenceCache CACHE = AnsiSequenceCache.INSTANCE;
+
+    private final Listener listener;
+    private final int[] table;
+
+    // The sequence collected so far, one unit per byte or char. Replayed as text if it turns out to be invalid.
+    private final char[] sequence = new char[MAX_ESCAPE_SEQUENCE_LENGTH];
+    private byte[] replay;
+    private int pos;
+    private final int[] params = new int[MAX_ESCAPE_SEQUENCE_LENGTH];
+    private AnsiStyle.Change sgrChange;
+    private int paramCount;
+    private String[] stringParams;
+    // Whether any parameter is not a number, which only unknown extensions accept.
+    private boolean nonNumericParams;
+    private int state = GROUND;
+    // The escape sequence state while a console note or its preamble is being read.
+    private int sequenceState = GROUND;
+    private boolean chars;
+    private final byte[] single = new byte[1];
+    private final byte[] replayByte = new byte[1];
+    private final char[] replayChar = new char[1];
+
+    public AnsiParser(Listener listener) {
+        this(listener, false);
+    }
+
+    /**
+     * @param consoleNotes whether to recognize embedded {@link ConsoleNote}s and report them to {@link Listener#note}
+     */
+    public AnsiParser(Listener listener, boolean consoleNotes) {
+        this.listener = listener;
+        this.table = consoleNotes ? NOTE_TABLE : SEQUENCE_TABLE;
+    }
+
+    /**
+     * Parses a single byte.
+     */
+    public void parse(int b) throws IOException {
+        single[0] = (byte) b;
+        parse(single, 0, 1);
+    }
+
+    public void parse(byte[] b, int off, int len) throws IOException {
+        chars = false;
+        final int[] table = this.table;
+        final int end = off + len;
+        int runStart = off;
+        int i = off;
+        while (i < end) {
+            final int data = b[i] & 0xFF;
+            final int entry = table[state * CLASS_COUNT + CLASSES[data]];
+            final int action = entry >>> ACTION_SHIFT;
+            if (action <= NOTE_TEXT) {
+                i++;
+                continue;
+            }
+            flushRun(b, runStart, i);
+            if (perform(action, entry & STATE_MASK, data)) {
+                i++;
+            }
+            runStart = i;
+        }
+        flushRun(b, runStart, end);
+    }
+
+    public void parse(char[] c, int off, int len) throws IOException {
+        chars = true;
+        final int[] table = this.table;
+        final int end = off + len;
+        int runStart = off;
+        int i = off;
+        while (i < end) {
+            final int data = c[i];
+            final int entry = table[state * CLASS_COUNT + (data < 256 ? CLASSES[data] : OTHER_CLASS)];
+            final int action = entry >>> ACTION_SHIFT;
+            if (action <= NOTE_TEXT) {
+                i++;
+                continue;
+            }
+            flushRun(c, runStart, i);
+            if (perform(action, entry & STATE_MASK, data)) {
+                i++;
+            }
+            runStart = i;
+        }
+        flushRun(c, runStart, end);
+    }
+
+    private void flushRun(byte[] b, int from, int to) throws IOException {
+        if (to > from) {
+            if (state == NOTE) {
+                listener.note(b, from, to - from);
+            } else {
+                listener.text(b, from, to - from);
+            }
+        }
+    }
+
+    private void flushRun(char[] c, int from, int to) throws IOException {
+        if (to > from) {
+            if (state == NOTE) {
+                listener.note(c, from, to - from);
+            } else {
+                listener.text(c, from, to - from);
+            }
+        }
+    }
+
+    /**
+     * @return whether the parser is in the middle of an escape sequence or console note
+     */
+    public boolean isInSequence() {
+        return state != GROUND;
+    }
+
+    /**
+     * @return the bytes of a console note preamble or postamble which were matched so far, and which are held back
+     * until the next byte tells whether they go on; empty if there are none
+     */
+    byte[] getPartialAmble() {
+        if (state > PREAMBLE_MATCHED && state < NOTE) {
+            return Arrays.copyOf(PREAMBLE, state - PREAMBLE_MATCHED);
+        }
+        if (state > POSTAMBLE_MATCHED) {
+            return Arrays.copyOf(POSTAMBLE, state - POSTAMBLE_MATCHED);
+        }
+        return new byte[0];
+    }
+
+    /**
+     * @return the value of the string parameter at {@code index}, including its opening quote. Only valid while the
+     * sequence containing it is dispatched.
+     */
+    public String getStringParam(int index) {
+        return params[index] == PARAM_STRING ? stringParams[index] : null;
+    }
+
+    /**
+     * @return the escape sequence being dispatched, one unit per byte or char, up to {@link #getSequenceLength()}. Only
+     * valid while it is dispatched, and must not be modified.
+     */
+    char[] getSequence() {
+        return sequence;
+    }
+
+    int getSequenceLength() {
+        return pos;
+    }
+
+    /**
+     * Tells the parser that the input ends, so that the bytes it holds back while matching a console note are reported
+     * after all: the start of a preamble turns out not to be a note and is parsed like any other bytes, the start of a
+     * postamble is part of the note. An unfinished escape sequence is still held, see {@link #isInSequence()}.
+     */
+    public void endInput() throws IOException {
+        if (state > PREAMBLE_MATCHED && state < NOTE) {
+            final int matched = state - PREAMBLE_MATCHED;
+            state = sequenceState;
+            replay(PREAMBLE, matched);
+        } else if (state > POSTAMBLE_MATCHED) {
+            final int matched = state - POSTAMBLE_MATCHED;
+            state = sequenceState;
+            if (chars) {
+                listener.note(POSTAMBLE_CHARS, 0, matched);
+            } else {
+                listener.note(POSTAMBLE, 0, matched);
+            }
+        }
+    }
+
+    /**
+     * Drops any partially collected escape sequence or console note.
+     */
+    public void reset() {
+        endSequence();
+        sequenceState = GROUND;
+    }
+
+    private void endSequence() {
+        pos = 0;
+        paramCount = 0;
+        nonNumericParams = false;
+        sgrChange = null;
+        state = GROUND;
+    }
+
+    /**
+     * Performs all actions except for runs of text.
+     * @return false if {@code data} has to be processed again in the new state
+     */
+    private boolean perform(int action, int next, int data) throws IOException {
+        switch (action) {
+            case TEXT:
+                // Only while replaying an amble, which never has a multi-byte character.
+                if (chars) {
+                    replayChar[0] = (char) data;
+                    listener.text(replayChar, 0, 1);
+                } else {
+                    replayByte[0] = (byte) data;
+                    listener.text(replayByte, 0, 1);
+                }
+                return true;
+            case COLLECT:
+                sequence[pos++] = (char) data;
+                state = next;
+                // Is it just too long?
+                if (pos >= MAX_ESCAPE_SEQUENCE_LENGTH) {
+                    end(false);
+                }
+                return true;
+            case FAIL:
+                sequence[pos++] = (char) data;
+                end(false);
+                return true;
+            case CSI_DISPATCH:
+                sequence[pos++] = (char) data;
+                end(dispatchEscapeCommand(data));
+                return true;
+            case OSC_BEL_DISPATCH:
+                sequence[pos++] = (char) data;
+                end(dispatchOperatingSystemCommand(pos - 1));
+                return true;
+            case OSC_ST_DISPATCH:
+                sequence[pos++] = (char) data;
+                end(dispatchOperatingSystemCommand(pos - 2));
+                return true;
+            case CHARSET_DISPATCH:
+                sequence[pos++] = (char) data;
+                listener.charset(sequence[1] == '(' ? 0 : 1, (char) data);
+                end(true);
+                return true;
+            case PREAMBLE_START:
+                sequenceState = state;
+                state = next;
+                return true;
+            case AMBLE:
+                state = next;
+                return true;
+            case PREAMBLE_END:
+                if (chars) {
+                    listener.note(PREAMBLE_CHARS, 0, PREAMBLE_CHARS.length);
+                } else {
+                    listener.note(PREAMBLE, 0, PREAMBLE.length);
+                }
+                state = next;
+                return true;
+            case PREAMBLE_MISMATCH: {
+                // Not a note after all, so replay what was matched as part of an escape sequence.
+                final int matched = state - PREAMBLE_MATCHED;
+                state = sequenceState;
+                replay(PREAMBLE, matched);
+                return false;
+            }
+            case POSTAMBLE_END:
+                if (chars) {
+                    listener.note(POSTAMBLE_CHARS, 0, POSTAMBLE_CHARS.length);
+                } else {
+                    listener.note(POSTAMBLE, 0, POSTAMBLE.length);
+                }
+                state = sequenceState;
+                return true;
+            case POSTAMBLE_MISMATCH: {
+                // Just like the original implementation, the partial postamble is interpreted as an escape sequence.
+                final int matched = state - POSTAMBLE_MATCHED;
+                state = sequenceState;
+                replay(POSTAMBLE, matched);
+                sequenceState = state;
+                state = next;
+                return false;
+            }
+            default:
+                throw new IllegalStateException("Action " + action + " should not be reached");
+        }
+    }
+
+    private void replay(byte[] amble, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            final int data = amble[i] & 0xFF;
+            final int entry = SEQUENCE_TABLE[state * CLASS_COUNT + CLASSES[data]];
+            perform(entry >>> ACTION_SHIFT, entry & STATE_MASK, data);
+        }
+    }
+
+    /**
+     * Ends the current sequence.
+     * @param processed if the sequence was processed, otherwise it is reported as text
+     */
+    private void end(boolean processed) throws IOException {
+        if (!processed) {
+            if (chars) {
+                listener.text(sequence, 0, pos);
+            } else {
+                if (replay == null) {
+                    replay = new byte[MAX_ESCAPE_SEQUENCE_LENGTH];
+                }
+                for (int i = 0; i < pos; i++) {
+                    replay[i] = (byte) sequence[i];
+                }
+                listener.text(replay, 0, pos);
+            }
+        }
+        endSequence();
+    }
+
+    /**
+     * @return the decimal value of the digits at {@code [from, to)}, or -1 if it overflows
+     */
+    private int parseInt(int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value * 10 + (sequence[i] - '0');
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    private String sequenceString(int from, int to) {
+        if (chars) {
+            return new String(sequence, from, to - from);
+        }
+        final byte[] b = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            b[i - from] = (byte) sequence[i];
+        }
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes the parameters between {@code ESC[} and the final character. The automaton already ensured that they are
+     * well-formed: numbers, runs of quotes, {@code ?} and {@code =}, where a {@code ;} after a value only separates it
+     * from the next one.
+     * @return false if a number does not fit into an int
+     */
+    private boolean decodeParams() {
+        final int end = pos - 1;
+        int p = 2;
+        while (p < end) {
+            final char c = sequence[p];
+            if (c == '"') {
+                final int start = p;
+                do {
+                    p++;
+                } while (p < end && sequence[p] == '"');
+                if (stringParams == null) {
+                    stringParams = new String[MAX_ESCAPE_SEQUENCE_LENGTH];
+                }
+                stringParams[paramCount] = sequenceString(start, p);
+                addNonNumericParam(PARAM_STRING);
+                p++;
+            } else if ('0' <= c && c <= '9') {
+                final int start = p;
+                do {
+                    p++;
+                } while (p < end && '0' <= sequence[p] && sequence[p] <= '9');
+                final int value = parseInt(start, p);
+                if (value < 0) {
+                    return false;
+                }
+                params[paramCount++] = value;
+                p++;
+            } else {
+                if (c == ';') {
+                    params[paramCount++] = DEFAULT_PARAM;
+                } else {
+                    addNonNumericParam(c == '?' ? PARAM_QUESTION : PARAM_EQUALS);
+                }
+                p++;
+            }
+        }
+        return true;
+    }
+
+    private void addNonNumericParam(int param) {
+        params[paramCount++] = param;
+        nonNumericParams = true;
+    }
+
+    /**
+     * @param paramEnd the end of the parameter, i.e. the start of the terminator
+     * @return true if the operating system command was processed.
+     */
+    private boolean dispatchOperatingSystemCommand(int paramEnd) throws IOException {
+        int separator = 2;
+        while (sequence[separator] != ';') {
+            separator++;
+        }
+        final int command = parseInt(2, separator);
+        if (command < 0) {
+            return false;
+        }
+        listener.osc(command, sequenceString(separator + 1, paramEnd));
+        return true;
+    }
+
+    /**
+     * @return true if the escape command was processed.
+     */
+    private boolean dispatchEscapeCommand(int command) throws IOException {
+        final int hash = AnsiSequenceCache.hash(sequence, pos);
+        AnsiSequenceCache.Entry entry = CACHE.get(sequence, pos, hash);
+        if (entry == null) {
+            final boolean valid = decodeParams() && isValidEscapeCommand(command);
+            if (!valid) {
+                // Parameters may be incomplete, but they are not used anyway.
+                paramCount = 0;
+            } else if (hasStringParams()) {
+                // Rare, and the strings would have to be kept, too.
+                dispatchEscapeCommand(command, params, paramCount);
+                return true;
+            }
+            entry = new AnsiSequenceCache.Entry(sequence, pos, valid, params, paramCount,
+                valid && command == 'm' ? AnsiStyle.Change.of(params, paramCount) : null);
+            CACHE.put(entry, hash);
+        }
+        if (!entry.valid) {
+            return false;
+        }
+        sgrChange = entry.change;
+        dispatchEscapeCommand(command, entry.params, entry.count);
+        return true;
+    }
+
+    private void dispatchEscapeCommand(int command, int[] params, int count) throws IOException {
+        switch (command) {
+            case 'A':
+            case 'B':
+            case 'C':
+            case 'D':
+            case 'E':
+            case 'F':
+            case 'J':
+            case 'K':
+            case 'S':
+            case 'T':
+            case 'H':
+            case 'f':
+            case 'G':
+            case 's':
+            case 'u':
+                listener.cursor(command, params, count);
+                break;
+            case 'm':
+                listener.sgr(params, count);
+                break;
+            default:
+                listener.unknown(command, params, count);
+                break;
+        }
+    }
+
+    /**
+     * @return whether the decoded parameters are valid for the command
+     */
+    private boolean isValidEscapeCommand(int command) {
+        switch (command) {
+            case 'A':
+            case 'B':
+            case 'C':
+            case 'D':
+            case 'E':
+            case 'F':
+            case 'J':
+            case 'K':
+            case 'S':
+            case 'T':
+                return isNumeric(0);
+            case 'H':
+            case 'f':
+                return isNumeric(0) && isNumeric(1);
+            case 'G':
+                // The column is mandatory.
+                return paramCount > 0 && params[0] >= 0;
+            case 's':
+            case 'u':
+                return true;
+            case 'm':
+                return !nonNumericParams && isValidSgr(params, paramCount);
+            default:
+                // Non-ASCII characters never end a sequence, the original implementation saw them as negative bytes.
+                return command >= 'Z' && command < 0x80;
+        }
+    }
+
+    private boolean hasStringParams() {
+        for (int i = 0; i < paramCount; i++) {
+            if (params[i] == PARAM_STRING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the effect of the SGR sequence which is being reported to {@link Listener#sgr}, or null if it was not
+     * decoded up front
+     */
+    AnsiStyle.Change getSgrChange() {
+        return sgrChange;
+    }
+
+    /**
+     * @return whether the parameter at {@code index} is a number or omitted
+     */
+    private boolean isNumeric(int index) {
+        return index >= paramCount || params[index] >= DEFAULT_PARAM;
+    }
+
+    /**
+     * Checks the arguments of extended colors like {@code ESC[38;5;<index>m} or {@code ESC[38;2;<r>;<g>;<b>m}.
+     * Omitted parameters in between are skipped. A trailing 38 or 48 without arguments is ignored.
+     */
+    static boolean isValidSgr(int[] params, int count) {
+        for (int i = 0; i < count; i++) {
+            final int value = params[i];
+            if ((value == 38 || value == 48) && i + 1 < count) {
+                i = nextParam(params, count, i);
+                if (i < 0) {
+                    return false;
+                }
+                if (params[i] == 2) {
+                    for (int c = 0; c < 3; c++) {
+                        i = nextParam(params, count, i);
+                        if (i < 0 || params[i] > 255) {
+                            return false;
+                        }
+                    }
+                } else if (params[i] == 5) {
+                    i = nextParam(params, count, i);
+                    if (i < 0 || params[i] > 255) {
+                        return false;
+                    }
+                } else {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the next parameter after {@code i} which is not omitted, or -1 if there is none
+     */
+    static int nextParam(int[] params, int count, int i) {
+        for (i++; i < count; i++) {
+            if (params[i] != DEFAULT_PARAM) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
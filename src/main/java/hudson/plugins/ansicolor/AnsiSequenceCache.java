@@ -0,0 +1,89 @@
+package hudson.plugins.ansicolor;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of decoded control sequences, shared by all {@link AnsiParser}s.
+ * <p>
+ * Logs use a small vocabulary of sequences like {@code ESC[0m} or {@code ESC[1;31m} over and over, so their decoded
+ * parameters, whether they are valid at all, and the {@link AnsiStyle.Change} of SGR sequences are looked up by the raw
+ * sequence instead of being parsed and validated again. Decoded sequences do not depend on the color map, so one cache
+ * serves all of them.
+ * <p>
+ * The cache is direct mapped: a sequence can only live in the slot selected by its hash, and replaces whatever was
+ * there before. Entries are immutable, so parsers on different threads can share the cache without locking.
+ */
+final class AnsiSequenceCache {
+
+    static final AnsiSequenceCache INSTANCE = new AnsiSequenceCache(256);
+
+    private final Entry[] entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param size number of slots, a power of two
+     */
+    AnsiSequenceCache(int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size must be a power of two: " + size);
+        }
+        entries = new Entry[size];
+    }
+
+    static final class Entry {
+        private final char[] sequence;
+        final boolean valid;
+        final int[] params;
+        final int count;
+        // Only for valid SGR sequences
+        final AnsiStyle.Change change;
+
+        Entry(char[] sequence, int length, boolean valid, int[] params, int count, AnsiStyle.Change change) {
+            this.sequence = Arrays.copyOf(sequence, length);
+            this.valid = valid;
+            this.params = Arrays.copyOf(params, count);
+            this.count = count;
+            this.change = change;
+        }
+    }
+
+    static int hash(char[] sequence, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + sequence[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the entry for the first {@code length} chars of {@code sequence}, or null if there is none
+     */
+    Entry get(char[] sequence, int length, int hash) {
+        final Entry entry = entries[hash & (entries.length - 1)];
+        if (entry != null && Arrays.equals(entry.sequence, 0, entry.sequence.length, sequence, 0, length)) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(Entry entry, int hash) {
+        entries[hash & (entries.length - 1)] = entry;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AnsiSequenceCache{hits=" + getHits() + ",misses=" + getMisses() + "}";
+    }
+}
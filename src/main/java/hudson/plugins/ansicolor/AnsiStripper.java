@@ -0,0 +1,63 @@
+package hudson.plugins.ansicolor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link AnsiParser.Listener} which passes on the plain text and drops all recognized escape sequences.
+ */
+public final class AnsiStripper implements AnsiParser.Listener {
+    private final OutputStream out;
+
+    public AnsiStripper(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void text(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    /**
+     * @return the given text without ANSI escape sequences
+     */
+    public static String strip(String text) {
+        if (text.indexOf('\u001B') < 0) {
+            return text;
+        }
+        final StringBuilder sb = new StringBuilder(text.length());
+        final AnsiParser parser = new AnsiParser(new AnsiParser.Listener() {
+            @Override
+            public void text(byte[] b, int off, int len) {
+                sb.append(new String(b, off, len, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void text(char[] c, int off, int len) {
+                sb.append(c, off, len);
+            }
+        });
+        final char[] chars = text.toCharArray();
+        try {
+            parser.parse(chars, 0, chars.length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // cannot happen, nothing is written to a stream
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the given UTF-8 encoded bytes without ANSI escape sequences
+     */
+    public static byte[] strip(byte[] b, int off, int len) {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(len);
+        try {
+            new AnsiParser(new AnsiStripper(bos)).parse(b, off, len);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // cannot happen with a ByteArrayOutputStream
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,41 @@
+package hudson.plugins.ansicolor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes only the plain text and the console notes of what is written to it, see {@link AnsiStripper}.
+ */
+final class AnsiStrippingOutputStream extends FilterOutputStream {
+
+    private final AnsiParser parser;
+
+    AnsiStrippingOutputStream(OutputStream out) {
+        super(out);
+        parser = new AnsiParser(new AnsiStripper(out), true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        parser.parse(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        parser.parse(b, off, len);
+    }
+
+    /**
+     * Drops any unfinished escape sequence, but not the text among the start of what looked like a console note.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            parser.endInput();
+            parser.reset();
+        } finally {
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package hudson.plugins.ansicolor;
+
+/**
+ * The graphic rendition selected by SGR sequences, packed into two {@code long}s.
+ * <p>
+ * The {@link #getStyle() style} holds the attribute bits in its lowest bits, followed by the foreground and the
+ * background color. A color field is 0 for the default color, or a palette index or a 24 bit RGB value tagged by
+ * {@link #COLOR_PALETTE} or {@link #COLOR_RGB}.
+ * <p>
+ * ANSI attributes may be switched on and off in any order, while HTML elements have to be properly nested, so the
+ * {@link #getOrder() order} keeps the {@link #SLOT_MASKS slots} which are currently set, in the order they were last
+ * changed. Renderers nest their elements in this order, so that switching off the innermost attribute only closes one
+ * element.
+ */
+final class AnsiStyle {
+
+    static final long BOLD = 1L;
+    static final long FAINT = 1L << 1;
+    static final long ITALIC = 1L << 2;
+    static final long UNDERLINE = 1L << 3;
+    static final long UNDERLINE_DOUBLE = 1L << 4;
+    static final long STRIKEOUT = 1L << 5;
+    static final long FRAMED = 1L << 6;
+    static final long OVERLINE = 1L << 7;
+    static final long INVERSE = 1L << 8;
+    static final long CONCEAL = 1L << 9;
+
+    static final int FG_SHIFT = 10;
+    static final int BG_SHIFT = 36;
+    static final int COLOR_PALETTE = 1 << 24;
+    static final int COLOR_RGB = 2 << 24;
+    private static final long COLOR_MASK = (1L << 26) - 1;
+    static final long FG = COLOR_MASK << FG_SHIFT;
+    static final long BG = COLOR_MASK << BG_SHIFT;
+    static final long ALL = BG | FG | ((1L << FG_SHIFT) - 1);
+
+    static final int SLOT_BOLD = 0;
+    static final int SLOT_FAINT = 1;
+    static final int SLOT_ITALIC = 2;
+    static final int SLOT_UNDERLINE = 3;
+    static final int SLOT_STRIKEOUT = 4;
+    static final int SLOT_FRAMED = 5;
+    static final int SLOT_OVERLINE = 6;
+    static final int SLOT_INVERSE = 7;
+    static final int SLOT_BG = 8;
+    static final int SLOT_FG = 9;
+
+    /**
+     * The bits of the style which belong to each slot, i.e. which are rendered by the same element.
+     */
+    static final long[] SLOT_MASKS = {
+        BOLD, FAINT, ITALIC, UNDERLINE | UNDERLINE_DOUBLE, STRIKEOUT, FRAMED, OVERLINE, INVERSE, BG, FG,
+    };
+
+    // The SGR parameter which switches each slot off
+    private static final int[] OFF_PARAMS = {22, 22, 23, 24, 29, 54, 55, 27, 49, 39};
+
+    private static final int SLOT_BITS = 4;
+    private static final long SLOT_NIBBLE = (1L << SLOT_BITS) - 1;
+
+    private long style;
+    private long order;
+
+    AnsiStyle() {
+    }
+
+    AnsiStyle(long style, long order) {
+        this.style = style;
+        this.order = order;
+    }
+
+    long getStyle() {
+        return style;
+    }
+
+    /**
+     * @return the slots which are set, in the order they were last changed, as 4 bit {@code slot + 1} values
+     * starting with the lowest bits
+     */
+    long getOrder() {
+        return order;
+    }
+
+    boolean isDefault() {
+        return style == 0;
+    }
+
+    boolean isConcealed() {
+        return (style & CONCEAL) != 0;
+    }
+
+    void reset() {
+        style = 0;
+        order = 0;
+    }
+
+    void set(long style, long order) {
+        this.style = style;
+        this.order = order;
+    }
+
+    /**
+     * @return an SGR sequence which selects this style, with its slots in the same order, whatever the style before
+     */
+    String toSgr() {
+        final StringBuilder sb = new StringBuilder("\033[0");
+        for (int position = 0, slot; (slot = slotAt(order, position)) >= 0; position++) {
+            appendSlot(sb, slot);
+        }
+        if (isConcealed()) {
+            sb.append(";8");
+        }
+        return sb.append('m').toString();
+    }
+
+    /**
+     * @return the shortest SGR sequence found which turns the given style into this one, or an empty string if they
+     * only differ in their order, which does not change how the text looks
+     */
+    String toSgrFrom(AnsiStyle from) {
+        final long changed = style ^ from.style;
+        if (changed == 0) {
+            return "";
+        }
+        if (style == 0) {
+            return "\033[m";
+        }
+        final StringBuilder sb = new StringBuilder("\033[");
+        // Normal intensity switches off both bold and faint
+        boolean normalIntensity = false;
+        for (int slot = 0; slot < SLOT_MASKS.length; slot++) {
+            final long mask = SLOT_MASKS[slot];
+            if ((changed & mask) != 0 && (style & mask) == 0) {
+                if (slot == SLOT_BOLD || slot == SLOT_FAINT) {
+                    if (normalIntensity) {
+                        continue;
+                    }
+                    normalIntensity = true;
+                }
+                sb.append(';').append(OFF_PARAMS[slot]);
+            }
+        }
+        for (int position = 0, slot; (slot = slotAt(order, position)) >= 0; position++) {
+            if ((changed & SLOT_MASKS[slot]) != 0 || normalIntensity && (slot == SLOT_BOLD || slot == SLOT_FAINT)) {
+                appendSlot(sb, slot);
+            }
+        }
+        if ((changed & CONCEAL) != 0) {
+            sb.append(isConcealed() ? ";8" : ";28");
+        }
+        sb.deleteCharAt(2).append('m');
+        final String reset = toSgr();
+        return reset.length() < sb.length() ? reset : sb.toString();
+    }
+
+    private void appendSlot(StringBuilder sb, int slot) {
+        switch (slot) {
+            case SLOT_BOLD:
+                sb.append(";1");
+                break;
+            case SLOT_FAINT:
+                sb.append(";2");
+                break;
+            case SLOT_ITALIC:
+                sb.append(";3");
+                break;
+            case SLOT_UNDERLINE:
+                sb.append((style & UNDERLINE_DOUBLE) != 0 ? ";21" : ";4");
+                break;
+            case SLOT_STRIKEOUT:
+                sb.append(";9");
+                break;
+            case SLOT_FRAMED:
+                sb.append(";51");
+                break;
+            case SLOT_OVERLINE:
+                sb.append(";53");
+                break;
+            case SLOT_INVERSE:
+                sb.append(";7");
+                break;
+            case SLOT_BG:
+                appendColor(sb, (int) ((style >>> BG_SHIFT) & COLOR_MASK), 40, 100, 48);
+                break;
+            default:
+                appendColor(sb, (int) ((style >>> FG_SHIFT) & COLOR_MASK), 30, 90, 38);
+                break;
+        }
+    }
+
+    private static void appendColor(StringBuilder sb, int color, int normal, int bright, int extended) {
+        final int value = color & 0xFFFFFF;
+        if ((color & COLOR_RGB) != 0) {
+            sb.append(';').append(extended).append(";2;").append(value >> 16).append(';').append((value >> 8) & 0xFF).append(';').append(value & 0xFF);
+        } else if (value < 8) {
+            sb.append(';').append(normal + value);
+        } else if (value < 16) {
+            sb.append(';').append(bright + value - 8);
+        } else {
+            sb.append(';').append(extended).append(";5;").append(value);
+        }
+    }
+
+    /**
+     * @return the slot at the given position of the order, or -1 past the last slot which is set
+     */
+    static int slotAt(long order, int position) {
+        return (int) ((order >>> (position * SLOT_BITS)) & SLOT_NIBBLE) - 1;
+    }
+
+    /**
+     * Applies the given change.
+     *
+     * @return whether the style changed
+     */
+    boolean apply(Change change) {
+        final long old = style;
+        style = (style & ~change.clear) | change.set;
+        if (style == old) {
+            return false;
+        }
+        for (int i = 0; i < change.touchedCount; i++) {
+            final int slot = change.touched[i];
+            final long mask = SLOT_MASKS[slot];
+            if ((style & mask) != (old & mask)) {
+                order = remove(order, slot);
+                if ((style & mask) != 0) {
+                    order = append(order, slot);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static long remove(long order, int slot) {
+        for (int position = 0; ; position++) {
+            final int s = slotAt(order, position);
+            if (s < 0) {
+                return order;
+            }
+            if (s == slot) {
+                final int shift = position * SLOT_BITS;
+                final long below = order & ((1L << shift) - 1);
+                return below | ((order >>> (shift + SLOT_BITS)) << shift);
+            }
+        }
+    }
+
+    private static long append(long order, int slot) {
+        int position = 0;
+        while (slotAt(order, position) >= 0) {
+            position++;
+        }
+        return order | ((long) (slot + 1) << (position * SLOT_BITS));
+    }
+
+    /**
+     * The effect of an SGR sequence, independent of the style it is applied to: {@code style = (style & ~clear) | set}.
+     */
+    static final class Change {
+        long clear;
+        long set;
+        // Slots changed by the sequence, in the order of their last change
+        final int[] touched = new int[SLOT_MASKS.length];
+        int touchedCount;
+
+        /**
+         * @return the change selected by the given SGR parameters, as validated by {@link AnsiParser#isValidSgr}
+         */
+        static Change of(int[] params, int count) {
+            final Change change = new Change();
+            int processed = 0;
+            for (int i = 0; i < count; i++) {
+                final int value = params[i];
+                if (value == AnsiParser.DEFAULT_PARAM) {
+                    continue;
+                }
+                processed++;
+                if (30 <= value && value <= 37) {
+                    change.setColor(SLOT_FG, COLOR_PALETTE | (value - 30));
+                } else if (40 <= value && value <= 47) {
+                    change.setColor(SLOT_BG, COLOR_PALETTE | (value - 40));
+                } else if (90 <= value && value <= 97) {
+                    change.setColor(SLOT_FG, COLOR_PALETTE | (value - 90 + 8));
+                } else if (100 <= value && value <= 107) {
+                    change.setColor(SLOT_BG, COLOR_PALETTE | (value - 100 + 8));
+                } else if (value == 38 || value == 48) {
+                    if (i + 1 >= count) {
+                        continue;
+                    }
+                    // extended color like `esc[38;5;<index>m` or `esc[38;2;<r>;<g>;<b>m`, already validated by the parser
+                    final int color;
+                    i = AnsiParser.nextParam(params, count, i);
+                    if (params[i] == 2) {
+                        final int r = params[i = AnsiParser.nextParam(params, count, i)];
+                        final int g = params[i = AnsiParser.nextParam(params, count, i)];
+                        final int b = params[i = AnsiParser.nextParam(params, count, i)];
+                        color = COLOR_RGB | r << 16 | g << 8 | b;
+                    } else {
+                        color = COLOR_PALETTE | params[i = AnsiParser.nextParam(params, count, i)];
+                    }
+                    change.setColor(value == 38 ? SLOT_FG : SLOT_BG, color);
+                } else {
+                    change.setAttribute(value);
+                }
+            }
+            if (processed == 0) {
+                change.setAttribute(0);
+            }
+            return change;
+        }
+
+        private void setAttribute(int value) {
+            switch (value) {
+                case 0: // reset
+                    update(ALL, 0);
+                    for (int slot = 0; slot < SLOT_MASKS.length; slot++) {
+                        touch(slot);
+                    }
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_INTENSITY_BOLD:
+                    update(BOLD, BOLD, SLOT_BOLD);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_INTENSITY_FAINT:
+                    update(FAINT, FAINT, SLOT_FAINT);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_ITALIC:
+                    update(ITALIC, ITALIC, SLOT_ITALIC);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_UNDERLINE:
+                    update(UNDERLINE | UNDERLINE_DOUBLE, UNDERLINE, SLOT_UNDERLINE);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_NEGATIVE_ON:
+                    update(INVERSE, INVERSE, SLOT_INVERSE);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_CONCEAL_ON:
+                    update(CONCEAL, CONCEAL);
+                    break;
+                case AnsiHtmlOutputStream.ATTRIBUTE_STRIKEOUT:
+                    update(STRIKEOUT, STRIKEOUT, SLOT_STRIKEOUT);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_UNDERLINE_DOUBLE:
+                    update(UNDERLINE | UNDERLINE_DOUBLE, UNDERLINE_DOUBLE, SLOT_UNDERLINE);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_INTENSITY_NORMAL:
+                    update(BOLD, 0, SLOT_BOLD);
+                    update(FAINT, 0, SLOT_FAINT);
+                    break;
+                case AnsiHtmlOutputStream.ATTRIBUTE_ITALIC_OFF:
+                    update(ITALIC, 0, SLOT_ITALIC);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_UNDERLINE_OFF:
+                    update(UNDERLINE | UNDERLINE_DOUBLE, 0, SLOT_UNDERLINE);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_NEGATIVE_Off:
+                    update(INVERSE, 0, SLOT_INVERSE);
+                    break;
+                case AnsiOutputStream.ATTRIBUTE_CONCEAL_OFF:
+                    update(CONCEAL, 0);
+                    break;
+                case AnsiHtmlOutputStream.ATTRIBUTE_STRIKEOUT_OFF:
+                    update(STRIKEOUT, 0, SLOT_STRIKEOUT);
+                    break;
+                case 39: // default foreground color
+                    update(FG, 0, SLOT_FG);
+                    break;
+                case 49: // default background color
+                    update(BG, 0, SLOT_BG);
+                    break;
+                case AnsiHtmlOutputStream.ATTRIBUTE_FRAMED:
+                    update(FRAMED, FRAMED, SLOT_FRAMED);
+                    break;
+                case AnsiHtmlOutputStream.ATTRIBUTE_OVERLINE:
+                    update(OVERLINE, OVERLINE, SLOT_OVERLINE);
+                    break;
+                case AnsiHtmlOutputStream.ATTRIBUTE_FRAMED_OFF:
+                    update(FRAMED, 0, SLOT_FRAMED);
+                    break;
+                case AnsiHtmlOutputStream.ATTRIBUTE_OVERLINE_OFF:
+                    update(OVERLINE, 0, SLOT_OVERLINE);
+                    break;
+                default:
+                    // blinking, fonts, encircled and the like have no HTML representation
+                    break;
+            }
+        }
+
+        private void setColor(int slot, int color) {
+            final int shift = slot == SLOT_FG ? FG_SHIFT : BG_SHIFT;
+            update(SLOT_MASKS[slot], (long) color << shift, slot);
+        }
+
+        private void update(long clearBits, long setBits, int slot) {
+            update(clearBits, setBits);
+            touch(slot);
+        }
+
+        private void update(long clearBits, long setBits) {
+            clear |= clearBits;
+            set = (set & ~clearBits) | setBits;
+        }
+
+        private void touch(int slot) {
+            for (int i = 0; i < touchedCount; i++) {
+                if (touched[i] == slot) {
+                    System.arraycopy(touched, i + 1, touched, i, touchedCount - i - 1);
+                    touched[touchedCount - 1] = slot;
+                    return;
+                }
+            }
+            touched[touchedCount++] = slot;
+        }
+    }
+}
@@ -26,10 +26,13 @@ package hudson.plugins.ansicolor;
 
 import hudson.Extension;
 import hudson.MarkupText;
+import hudson.Util;
 import hudson.console.ConsoleAnnotator;
 import hudson.console.ConsoleAnnotatorFactory;
 import hudson.model.Queue;
 import hudson.model.Run;
+import hudson.model.User;
+import hudson.plugins.ansicolor.action.ColorMapAction;
 import hudson.plugins.ansicolor.action.ColorizedAction;
 import hudson.plugins.ansicolor.action.LineIdentifier;
 import jenkins.model.Jenkins;
@@ -37,28 +40,111 @@ import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.text.StringEscapeUtils;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest2;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import jakarta.servlet.http.Cookie;
+import java.io.Externalizable;
 import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.OutputStream;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Applies ANSI coloration to log files where requested.
+ * <p>
+ * Jenkins serializes the annotator into the {@code X-ConsoleAnnotator} header on every progressive log poll, so its
+ * state is written in a compact {@link Externalizable} form rather than with default serialization: the format, flags
+ * telling which color map names follow, the names which are not implied by the flags, then the line number and the
+ * two longs of the {@link AnsiStyle} as varints, and the {@link Policy}. The open elements are not written, as they
+ * follow from the style.
  */
-final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
+final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> implements Externalizable {
 
     private static final Logger LOGGER = Logger.getLogger(ColorConsoleAnnotator.class.getName());
 
-    private static final long serialVersionUID = 1;
+    private static final long serialVersionUID = 2;
+
+    private static final int SERIAL_FORMAT = 3;
+
+    private static final int FLAG_DEFAULT_COLOR_MAP = 1;
+    private static final int FLAG_COLOR_MAP = 1 << 1;
+    private static final int FLAG_COLOR_MAP_IS_DEFAULT = 1 << 2;
 
     private static final Factory FACTORY = new Factory();
 
-    private final String defaultColorMapName;
+    /*
+     * Limits for a single line, see AnsiHtmlOutputStream#setLimits. Beyond them, the rest of the line is rendered
+     * without colors, so that a broken progress bar or a malicious log cannot keep the controller busy.
+     */
+    private static final int MAX_SEQUENCES_PER_LINE = Integer.getInteger(ColorConsoleAnnotator.class.getName() + ".maxSequencesPerLine", 4096);
+    private static final int MAX_DEPTH = Integer.getInteger(ColorConsoleAnnotator.class.getName() + ".maxDepth", AnsiStyle.SLOT_MASKS.length);
+    private static final int MAX_MARKUP_PER_LINE = Integer.getInteger(ColorConsoleAnnotator.class.getName() + ".maxMarkupPerLine", 256 * 1024);
+
+    // Tighter limits for a single line when rendering with a budget
+    private static final int BUDGET_SEQUENCES_PER_LINE = 256;
+    private static final int BUDGET_MARKUP_PER_LINE = 16 * 1024;
+
+    private static final LongAdder STRIPPED_LINES = new LongAdder();
+
+    // The annotators which rendered lines lately, a measure of the load caused by annotating consoles
+    private static final Activity ACTIVE = new Activity(TimeUnit.SECONDS.toNanos(1));
+
+    // Set while a console is rendered for later viewers, who should all get the full colors
+    static final ThreadLocal<Boolean> FULL_COLORS = new ThreadLocal<>();
+
+    /**
+     * The query parameter of console pages which selects {@link Policy#FULL} regardless of the log size and load.
+     * {@code script.js} keeps the choice in a cookie of the same name for the run, as the progressive requests of the
+     * page do not carry the parameter.
+     */
+    static final String FULL_COLOR_PARAMETER = "ansicolor";
+    static final String FULL_COLOR_VALUE = "full";
+
+    /**
+     * How much coloring is rendered for a console request, see {@link Policy#select}.
+     */
+    enum Policy {
+        /** All colors, within the default limits for a single line. */
+        FULL,
+        /** Colors within tight limits for a single line. */
+        BUDGET,
+        /** No colors at all, escape sequences are only hidden. */
+        STRIP,
+        /** No rendering, the lines are marked to be colored by the browser, see {@link #markForClient}. */
+        CLIENT;
+
+        /**
+         * @param logSize the size of the log in bytes
+         * @param rendering the number of annotators which rendered lines lately, see {@link Activity}
+         * @param budgetLogSizeMB the log size beyond which colors are rendered with a budget, 0 for no limit
+         * @param stripLogSizeMB the log size beyond which no colors are rendered, 0 for no limit
+         * @param maxConcurrentAnnotations the number of rendering annotators from which on the policy selected by the log size
+         *                                 is degraded by one step, 0 for no limit
+         */
+        static Policy select(long logSize, int rendering, int budgetLogSizeMB, int stripLogSizeMB, int maxConcurrentAnnotations) {
+            Policy policy = FULL;
+            if (stripLogSizeMB > 0 && logSize > stripLogSizeMB * 1024L * 1024L) {
+                policy = STRIP;
+            } else if (budgetLogSizeMB > 0 && logSize > budgetLogSizeMB * 1024L * 1024L) {
+                policy = BUDGET;
+            }
+            if (maxConcurrentAnnotations > 0 && rendering >= maxConcurrentAnnotations && policy != STRIP) {
+                policy = values()[policy.ordinal() + 1];
+            }
+            return policy;
+        }
+    }
+
+    private String defaultColorMapName;
 
     private final LineIdentifier lineIdentifier;
 
@@ -66,14 +152,123 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
     private String colorMapName;
 
     @NonNull
-    private List<AnsiAttributeElement> openTags = Collections.emptyList();
+    private AnsiStyle style = new AnsiStyle();
 
     private long lineNo;
 
-    private ColorConsoleAnnotator(String defaultColorMapName, LineIdentifier lineIdentifier, long startLineNo) {
+    @NonNull
+    private Policy policy;
+
+    // What to tell the user about the colors being limited, along with the first line
+    @CheckForNull
+    private transient String notice;
+
+    // When this annotator last told ACTIVE that it renders lines, and the id it told it under
+    private transient long lastActive;
+    private transient long activityId;
+
+    @CheckForNull
+    private transient LineRenderer renderer;
+
+    // The node whose log is annotated, and the color map of the block it is in, see nodeColorMapName
+    @CheckForNull
+    private transient Object resolvedNode;
+    @CheckForNull
+    private transient String resolvedColorMapName;
+
+    // The color map last described to the browser, see markForClient
+    @CheckForNull
+    private transient String describedColorMapName;
+
+    /**
+     * Only for {@link Externalizable}.
+     */
+    public ColorConsoleAnnotator() {
+        this(null, new LineIdentifier(), 0);
+    }
+
+    /*package*/ ColorConsoleAnnotator(String defaultColorMapName, LineIdentifier lineIdentifier, long startLineNo) {
+        this(defaultColorMapName, lineIdentifier, startLineNo, Policy.FULL);
+    }
+
+    /*package*/ ColorConsoleAnnotator(String defaultColorMapName, LineIdentifier lineIdentifier, long startLineNo, @NonNull Policy policy) {
         this.defaultColorMapName = defaultColorMapName;
         this.lineIdentifier = lineIdentifier;
         this.lineNo = startLineNo;
+        this.policy = policy;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(SERIAL_FORMAT);
+        int flags = 0;
+        if (defaultColorMapName != null) {
+            flags |= FLAG_DEFAULT_COLOR_MAP;
+        }
+        if (colorMapName != null) {
+            flags |= colorMapName.equals(defaultColorMapName) ? FLAG_COLOR_MAP_IS_DEFAULT : FLAG_COLOR_MAP;
+        }
+        out.writeByte(flags);
+        if ((flags & FLAG_DEFAULT_COLOR_MAP) != 0) {
+            out.writeUTF(defaultColorMapName);
+        }
+        if ((flags & FLAG_COLOR_MAP) != 0) {
+            out.writeUTF(colorMapName);
+        }
+        writeVarLong(out, lineNo);
+        writeVarLong(out, style.getStyle());
+        writeVarLong(out, style.getOrder());
+        out.writeByte(policy.ordinal());
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        final int format = in.readUnsignedByte();
+        if (format != SERIAL_FORMAT) {
+            throw new IOException("Unsupported serial format " + format);
+        }
+        final int flags = in.readUnsignedByte();
+        defaultColorMapName = (flags & FLAG_DEFAULT_COLOR_MAP) != 0 ? in.readUTF() : null;
+        if ((flags & FLAG_COLOR_MAP) != 0) {
+            colorMapName = in.readUTF();
+        } else if ((flags & FLAG_COLOR_MAP_IS_DEFAULT) != 0) {
+            colorMapName = defaultColorMapName;
+        }
+        lineNo = readVarLong(in);
+        final long styleBits = readVarLong(in);
+        final long order = readVarLong(in);
+        // The state comes from the client, so make sure the order only refers to existing slots.
+        for (int position = 0, slot; (slot = AnsiStyle.slotAt(order, position)) >= 0; position++) {
+            if (slot >= AnsiStyle.SLOT_MASKS.length) {
+                throw new IOException("Malformed style order " + Long.toHexString(order));
+            }
+        }
+        style = new AnsiStyle(styleBits, order);
+        final int policyOrdinal = in.readUnsignedByte();
+        if (policyOrdinal >= Policy.values().length) {
+            throw new IOException("Malformed policy " + policyOrdinal);
+        }
+        policy = Policy.values()[policyOrdinal];
+    }
+
+    private static void writeVarLong(ObjectOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ObjectInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed number");
     }
 
     @Override
@@ -83,21 +278,27 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
         if (run == null) {
             return this;
         }
-        final ColorizedAction colorizedAction = lineNo == 1
-            ? ColorizedAction.parseAction(text.getText(), lineNo, run, lineIdentifier)
-            : ColorizedAction.parseAction(text, run);
+        final ColorizedAction colorizedAction = ColorizedAction.parseNotedAction(text, lineNo, run, lineIdentifier);
+        final boolean isNode = isNode(context);
         switch (colorizedAction.getCommand()) {
             case START:
-            case CURRENT:
                 colorMapName = colorizedAction.getColorMapName();
                 break;
             case STOP:
-                return FACTORY.newInstance(context, lineNo);
+                return FACTORY.newInstance(context, lineNo, policy);
             case IGNORE:
                 return this;
+            case CURRENT:
+                // The state of the run could be that of any parallel branch, the blocks around a node tell which applies
+                if (!isNode) {
+                    colorMapName = colorizedAction.getColorMapName();
+                    break;
+                }
+                // fall through
             default:
                 if (colorMapName == null) {
-                    colorMapName = defaultColorMapName;
+                    final String nodeColorMapName = isNode ? nodeColorMapName(context) : null;
+                    colorMapName = nodeColorMapName != null ? nodeColorMapName : defaultColorMapName;
                 }
                 break;
         }
@@ -106,97 +307,326 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
         }
 
         String s = text.getText();
-        List<AnsiAttributeElement> nextOpenTags = openTags;
-        AnsiColorMap colorMap = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).getColorMap(colorMapName);
-        if (s.indexOf('\u001B') != -1 || !openTags.isEmpty() || colorMap.getDefaultBackground() != null || colorMap.getDefaultForeground() != null) {
-            CountingOutputStream outgoing = new CountingOutputStream(OutputStream.nullOutputStream());
-            class EmitterImpl implements AnsiAttributeElement.Emitter {
-                CountingOutputStream incoming;
-                int adjustment;
-                int lastPoint = -1; // multiple HTML tags may be emitted for one control sequence
-
-                @Override
-                public void emitHtml(@NonNull String html) {
-                    final int inCount = getIncomingCount();
-                    LOGGER.log(Level.FINEST, "emitting {0} @{1}/{2}", new Object[]{html, inCount, s.length()});
-                    text.addMarkup(inCount, html);
-                    hideIfNeeded(inCount, "");
+        final AnsiColorBuildWrapper.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+        AnsiColorMap colorMap = descriptor.getColorMap(colorMapName);
+        if (policy == Policy.CLIENT) {
+            markForClient(text, colorMap, descriptor.isCollapseProgressLines());
+            return this;
+        }
+        final boolean collapse = descriptor.isCollapseProgressLines() && s.indexOf('\r') != -1;
+        if (s.indexOf('\u001B') != -1 || collapse || !style.isDefault() || colorMap.getDefaultBackground() != null || colorMap.getDefaultForeground() != null) {
+            final LineAnnotationCache cache = LineAnnotationCache.get();
+            // The policy and collapsing change the markup as well
+            final int options = policy.ordinal() << 1 | (collapse ? 1 : 0);
+            if (cache != null) {
+                final LineAnnotationCache.Entry cached = cache.get(colorMap, options, style, s);
+                if (cached != null) {
+                    cached.applyTo(text, style);
+                    addNoticeIfNeeded(text);
+                    return this;
                 }
-
-                /**
-                 * All ANSI escapes sequences contain at least 2 bytes on modern platforms, so any HTML emitted
-                 * directly after the first character is received is due to the initialization process of the stream and
-                 * belongs at position 0 (i.e. default background/foreground colors).
-                 *
-                 * @return Incoming chars count
-                 */
-                private int getIncomingCount() {
-                    final int inCount = incoming.getCount();
-                    return inCount == 1 ? 0 : inCount;
+            }
+            final LineAnnotationCache.Recorder recorder = cache != null ? new LineAnnotationCache.Recorder() : null;
+            if (renderer == null || renderer.colorMap != colorMap) {
+                renderer = new LineRenderer(colorMap, policy);
+            }
+            final long now = System.nanoTime();
+            if (lastActive == 0 || now - lastActive >= Activity.TOUCH_INTERVAL_NANOS) {
+                if (activityId == 0) {
+                    activityId = ACTIVE.newId();
                 }
-
-                private void hideIfNeeded(int inCount, String msg) {
-                    if (inCount != lastPoint) {
-                        lastPoint = inCount;
-                        final int outCount = outgoing.getCount() + adjustment;
-                        final int hide = inCount - outCount;
-                        // If openTags is not empty, but there are no escape sequences directly on this line, or if we
-                        // are emitting closing tags when closing the stream, there is nothing to hide.
-                        if (hide != 0) {
-                            LOGGER.log(Level.FINEST, "hiding {0} @{1}{2}", new Object[]{hide, outCount, msg});
-                            text.addMarkup(outCount, outCount + hide, "<!--", "-->");
-                            adjustment += hide;
-                        }
-                    }
+                ACTIVE.touch(activityId, now);
+                lastActive = now;
+            }
+            try {
+                renderer.render(text, style, collapse, recorder);
+                if (cache != null) {
+                    cache.put(colorMap, options, style, s, recorder.toEntry(renderer.endStyle));
                 }
+                style.set(renderer.endStyle.getStyle(), renderer.endStyle.getOrder());
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, null, x);
+            }
+            if (LOGGER.isLoggable(Level.FINER)) {
+                LOGGER.finer("\"" + StringEscapeUtils.escapeJava(s) + "\" → \"" + StringEscapeUtils.escapeJava(text.toString(true)) + "\"");
+            }
+        }
+        addNoticeIfNeeded(text);
+        return this;
+    }
+
+    /**
+     * Wraps the line in an element which {@code script.js} colors in the browser, leaving the escape sequences in the
+     * text. The colors of the color map are described along with the first line, and whenever the color map changes.
+     * The browser follows the style from line to line itself.
+     */
+    private void markForClient(MarkupText text, AnsiColorMap colorMap, boolean collapse) {
+        final StringBuilder tag = new StringBuilder("<span class=\"ansicolor-raw\"");
+        if (!colorMap.getName().equals(describedColorMapName)) {
+            describedColorMapName = colorMap.getName();
+            tag.append(" data-color-map=\"").append(Util.escape(colorMap.getName())).append("\" data-palette=\"");
+            for (int i = 0; i < 16; i++) {
+                // Colors like rgb(0, 0, 0) have commas
+                tag.append(i > 0 ? "|" : "").append(Util.escape(i < 8 ? colorMap.getNormal(i) : colorMap.getBright(i - 8)));
+            }
+            tag.append('"');
+            if (colorMap.getDefaultForeground() != null) {
+                tag.append(" data-default-fg=\"").append(Util.escape(colorMap.getNormal(colorMap.getDefaultForeground()))).append('"');
+            }
+            if (colorMap.getDefaultBackground() != null) {
+                tag.append(" data-default-bg=\"").append(Util.escape(colorMap.getNormal(colorMap.getDefaultBackground()))).append('"');
+            }
+            if (collapse) {
+                tag.append(" data-collapse=\"true\"");
+            }
+        }
+        text.addMarkup(0, tag.append('>').toString());
+        text.addMarkup(text.getText().length(), "</span>");
+    }
+
+    /**
+     * Tells the user that the colors are limited, and how to see all of them. The notice goes after the line, so that
+     * it does not end up within the markup hiding escape sequences, on a line of its own. It is phrasing content, as
+     * it is within the {@code <pre>} of the console.
+     */
+    private void addNoticeIfNeeded(MarkupText text) {
+        if (notice == null) {
+            return;
+        }
+        final String message = notice;
+        notice = null;
+        final String markup = "<span class=\"ansicolor-notice\"><em>" + Util.escape(message) + "</em> <a href=\"?"
+            + FULL_COLOR_PARAMETER + "=" + FULL_COLOR_VALUE + "\">" + Util.escape(Messages.ColorConsoleAnnotator_ShowFullColors()) + "</a></span>";
+        text.addMarkup(text.getText().length(), text.getText().endsWith("\n") ? markup + "\n" : "\n" + markup);
+    }
+
+    /**
+     * @return whether the console of the request is colored by the browser of the viewer, see {@link Policy#CLIENT}
+     */
+    static boolean isColoredByBrowser(StaplerRequest2 request) {
+        return !isFullColorsRequested(request)
+            && isClientSideRendering(Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class));
+    }
+
+    private static boolean isClientSideRendering(AnsiColorBuildWrapper.DescriptorImpl descriptor) {
+        return descriptor.isClientSideRendering() || AnsiColorUserProperty.isClientSideRendering(User.current());
+    }
 
-                @Override
-                public void emitInvisibleSequence() {
-                    hideIfNeeded(getIncomingCount(), " (ANSI sequence with no corresponding HTML tags)");
+    private static boolean isFullColorsRequested(StaplerRequest2 request) {
+        if (FULL_COLOR_VALUE.equals(request.getParameter(FULL_COLOR_PARAMETER))) {
+            return true;
+        }
+        final Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (FULL_COLOR_PARAMETER.equals(cookie.getName()) && FULL_COLOR_VALUE.equals(cookie.getValue())) {
+                    return true;
                 }
             }
-            EmitterImpl emitter = new EmitterImpl();
-            // We need to reopen tags that were still open at the end of the previous line so the stream's state is
-            // correct in case those tags are closed in the middle of this line.
-            try (
-                AnsiHtmlOutputStream ansiOs = new AnsiHtmlOutputStream(outgoing, colorMap, emitter, openTags);
-                CountingOutputStream incoming = new CountingOutputStream(ansiOs)
-            ) {
-                emitter.incoming = incoming;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the markup for lines to their {@link MarkupText}. Each annotator keeps one and reuses it for every line it
+     * annotates with the same color map, so that annotating a line allocates nothing beyond the markup itself. It is
+     * never serialized, a deserialized annotator simply creates a new one.
+     */
+    private static final class LineRenderer implements AnsiAttributeElement.Emitter {
+        private final AnsiColorMap colorMap;
+        private final Policy policy;
+        private final CountingOutputStream outgoing = new CountingOutputStream(OutputStream.nullOutputStream());
+        private final AnsiHtmlOutputStream ansiOs;
+        // The style at the end of the last line, with concealing turned off, as concealing never lasts beyond the end of the line.
+        private final AnsiStyle endStyle = new AnsiStyle();
+        private final StyleFollower overwritten = new StyleFollower();
+
+        private MarkupText text;
+        @CheckForNull
+        private LineAnnotationCache.Recorder recorder;
+        // The stream only emits HTML right before it writes a char, or when it is finished, so this is the index of the
+        // char being written, or the length of the line.
+        private int position;
+        private int adjustment;
+        private int lastPoint; // multiple HTML tags may be emitted at one position
+
+        LineRenderer(AnsiColorMap colorMap, Policy policy) {
+            this.colorMap = colorMap;
+            this.policy = policy;
+            this.ansiOs = new AnsiHtmlOutputStream(outgoing, colorMap, this, endStyle);
+            switch (policy) {
+                case STRIP:
+                    ansiOs.setLimits(0, 0, 0);
+                    break;
+                case BUDGET:
+                    ansiOs.setLimits(BUDGET_SEQUENCES_PER_LINE, MAX_DEPTH, BUDGET_MARKUP_PER_LINE);
+                    break;
+                default:
+                    ansiOs.setLimits(MAX_SEQUENCES_PER_LINE, MAX_DEPTH, MAX_MARKUP_PER_LINE);
+                    break;
+            }
+        }
+
+        /**
+         * Adds the markup for the line in {@code text}, continuing with {@code style}, the style at the end of the
+         * previous line, so the stream's state is correct in case it is changed in the middle of this line. The style
+         * at the end of this line is left in {@link #endStyle}.
+         *
+         * @param collapse whether to hide the frames of a progress line which are overwritten after a carriage return
+         */
+        void render(MarkupText text, AnsiStyle style, boolean collapse, @CheckForNull LineAnnotationCache.Recorder recorder) throws IOException {
+            this.text = text;
+            this.recorder = recorder;
+            position = 0;
+            adjustment = 0;
+            lastPoint = -1;
+            outgoing.resetCount();
+            try {
+                final String s = text.getText();
+                final int frameStart = collapse ? lastFrameStart(s) : 0;
+                if (frameStart > 0) {
+                    // Follow the style through the overwritten frames, which are hidden as a whole, so that the last
+                    // frame starts with the right elements.
+                    overwritten.follow(style, s, frameStart);
+                    text.addMarkup(0, frameStart, "<!--", "-->");
+                    if (recorder != null) {
+                        recorder.hide(0, frameStart);
+                    }
+                    adjustment = frameStart;
+                    ansiOs.restart(overwritten.style);
+                } else {
+                    ansiOs.restart(style);
+                }
                 /*
                  * We only use AnsiHtmlOutputStream for its calls to Emitter.emitHtml when it encounters ANSI escape
                  * sequences; the output of the stream will be discarded. To know where to insert HTML in the MarkupText,
-                 * we track the number of bytes we have written, and use that as a char (UTF-16 code unit) offset into
-                 * the original String. Since all ANSI escape sequences only use ASCII characters, and ASCII characters
-                 * in UTF-16BE are all represented using a single code unit whose high byte is 0, and whose low byte is
-                 * the same as it would be in an 8-bit ASCII encoding, we write all ASCII chars to the stream as the low
-                 * byte of the code unit, and convert any other character into '?' as a placeholder so the number of
-                 * bytes written matches the char offset into the String.
+                 * we write one byte per char (UTF-16 code unit) of the original String and keep track of which one it
+                 * is. Since all ANSI escape sequences only use ASCII characters, and ASCII characters in UTF-16BE are all
+                 * represented using a single code unit whose high byte is 0, and whose low byte is the same as it would
+                 * be in an 8-bit ASCII encoding, we write all ASCII chars to the stream as the low byte of the code unit,
+                 * and convert any other character into '?' as a placeholder so the number of bytes written matches the
+                 * char offset into the String.
                  */
-                for (int i = 0; i < s.length(); i++) {
+                for (int i = frameStart; i < s.length(); i++) {
                     char c = s.charAt(i);
                     // The highest ASCII character is 0x7F (DEL). High and low surrogate pairs in UTF-16BE will always
                     // be at least 0xD800 and will be converted to '?'.
                     if (c >= 0x80) {
                         c = '?';
                     }
-                    incoming.write(c);
+                    position = i;
+                    ansiOs.write(c);
                 }
-                nextOpenTags = ansiOs.getOpenTags();
-                if (colorMap.getDefaultBackground() != null || colorMap.getDefaultForeground() != null) {
-                    // The default color scheme will be opened automatically at the beginning of the stream on the next
-                    // line, so we don't want to duplicate it.
-                    // AnsiHtmlOutputStream#getOpenTags makes a copy so calling `remove` is safe.
-                    nextOpenTags.remove(0);
+                ansiOs.copyStyleTo(endStyle);
+                endStyle.set(endStyle.getStyle() & ~AnsiStyle.CONCEAL, endStyle.getOrder());
+                // Close the elements still open at the end of the line.
+                position = s.length();
+                ansiOs.finish();
+                if (ansiOs.isStripped() && policy != Policy.STRIP) {
+                    STRIPPED_LINES.increment();
+                    LOGGER.log(Level.FINE, "Rendered the rest of a line without colors as it exceeded the limits ({0} such lines so far)", STRIPPED_LINES.sum());
                 }
-                // Tags open at the end of the line are closed when the stream is closed by the try-with-resources block.
-            } catch (IOException x) {
-                LOGGER.log(Level.WARNING, null, x);
+            } finally {
+                this.text = null;
+                this.recorder = null;
             }
-            LOGGER.finer(() -> "\"" + StringEscapeUtils.escapeJava(s) + "\" → \"" + StringEscapeUtils.escapeJava(text.toString(true)) + "\"");
         }
-        openTags = nextOpenTags;
-        return this;
+
+        /**
+         * @return the index where the last frame of a line starts, which is right after the last carriage return, or 0
+         * if no frame is overwritten. A carriage return right before the end of the line does not start a frame.
+         */
+        static int lastFrameStart(String s) {
+            int end = s.length();
+            while (end > 0 && (s.charAt(end - 1) == '\n' || s.charAt(end - 1) == '\r')) {
+                end--;
+            }
+            return s.lastIndexOf('\r', end - 1) + 1;
+        }
+
+        @Override
+        public void emitHtml(@NonNull String html) {
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.log(Level.FINEST, "emitting {0} @{1}/{2}", new Object[]{html, position, text.getText().length()});
+            }
+            text.addMarkup(position, html);
+            if (recorder != null) {
+                recorder.markup(position, html);
+            }
+            hideIfNeeded("");
+        }
+
+        private void hideIfNeeded(String msg) {
+            if (position != lastPoint) {
+                lastPoint = position;
+                final int outCount = outgoing.getCount() + adjustment;
+                final int hide = position - outCount;
+                // If a style is carried over, but there are no escape sequences directly on this line, or if we are
+                // emitting closing tags right after text, there is nothing to hide.
+                if (hide != 0) {
+                    if (LOGGER.isLoggable(Level.FINEST)) {
+                        LOGGER.log(Level.FINEST, "hiding {0} @{1}{2}", new Object[]{hide, outCount, msg});
+                    }
+                    text.addMarkup(outCount, outCount + hide, "<!--", "-->");
+                    if (recorder != null) {
+                        recorder.hide(outCount, outCount + hide);
+                    }
+                    adjustment += hide;
+                }
+            }
+        }
+
+        @Override
+        public void emitInvisibleSequence() {
+            hideIfNeeded(" (ANSI sequence with no corresponding HTML tags)");
+        }
+    }
+
+    /**
+     * Follows the style through text without rendering it.
+     */
+    private static final class StyleFollower implements AnsiParser.Listener {
+        private final AnsiParser parser = new AnsiParser(this);
+        private final AnsiStyle style = new AnsiStyle();
+
+        /**
+         * Applies the escape sequences in the first {@code length} chars of {@code s} to {@code initialStyle}, leaving
+         * the result in {@link #style}.
+         */
+        void follow(AnsiStyle initialStyle, String s, int length) throws IOException {
+            style.set(initialStyle.getStyle(), initialStyle.getOrder());
+            parser.reset();
+            for (int i = 0; i < length; i++) {
+                final char c = s.charAt(i);
+                parser.parse(c < 0x80 ? c : '?');
+            }
+        }
+
+        @Override
+        public void text(byte[] b, int off, int len) {
+        }
+
+        @Override
+        public void sgr(int[] params, int count) {
+            final AnsiStyle.Change change = parser.getSgrChange();
+            style.apply(change != null ? change : AnsiStyle.Change.of(params, count));
+        }
+    }
+
+    private static boolean isNode(Object context) {
+        return Jenkins.get().getPlugin("workflow-api") != null && context instanceof FlowNode;
+    }
+
+    /**
+     * @return the color map of the {@code ansiColor} block the node is in, found once for each node
+     */
+    @CheckForNull
+    private String nodeColorMapName(Object node) {
+        if (node != resolvedNode) {
+            resolvedColorMapName = ColorMapAction.find((FlowNode) node);
+            resolvedNode = node;
+        }
+        return resolvedColorMapName;
     }
 
     @CheckForNull
@@ -227,11 +657,91 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
 
         @Override
         public ConsoleAnnotator<Object> newInstance(Object context) {
-            return newInstance(context, 0);
+            final ColorConsoleAnnotator annotator = newInstance(context, 0, Policy.FULL);
+            selectPolicy(context, annotator);
+            return annotator;
+        }
+
+        private ColorConsoleAnnotator newInstance(Object context, long startLineNo, Policy policy) {
+            return new ColorConsoleAnnotator(Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).getGlobalColorMapName(), new LineIdentifier(), startLineNo, policy);
+        }
+
+        /**
+         * Selects the policy for a console request by the size of the log and the current load, unless the user asked
+         * for full colors, and what to tell the user about colors being limited.
+         */
+        private static void selectPolicy(Object context, ColorConsoleAnnotator annotator) {
+            if (Boolean.TRUE.equals(FULL_COLORS.get())) {
+                return;
+            }
+            final StaplerRequest2 request = Stapler.getCurrentRequest2();
+            if (request != null && isFullColorsRequested(request)) {
+                return;
+            }
+            final AnsiColorBuildWrapper.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+            if (request != null && isClientSideRendering(descriptor)) {
+                annotator.policy = Policy.CLIENT;
+                return;
+            }
+            if (descriptor.getBudgetLogSizeMB() <= 0 && descriptor.getStripLogSizeMB() <= 0 && descriptor.getMaxConcurrentAnnotations() <= 0) {
+                return;
+            }
+            final Run<?, ?> run = runOf(context);
+            final long logSize = run != null ? run.getLogText().length() : 0;
+            final Policy bySize = Policy.select(logSize, 0, descriptor.getBudgetLogSizeMB(), descriptor.getStripLogSizeMB(), 0);
+            final Policy policy = Policy.select(logSize, ACTIVE.count(System.nanoTime()), descriptor.getBudgetLogSizeMB(),
+                descriptor.getStripLogSizeMB(), descriptor.getMaxConcurrentAnnotations());
+            LOGGER.log(Level.FINE, "Rendering {0} with policy {1}", new Object[]{run, policy});
+            annotator.policy = policy;
+            if (policy == Policy.BUDGET) {
+                annotator.notice = policy == bySize ? Messages.ColorConsoleAnnotator_Budget() : Messages.ColorConsoleAnnotator_BudgetBusy();
+            } else if (policy == Policy.STRIP) {
+                annotator.notice = policy == bySize ? Messages.ColorConsoleAnnotator_Stripped() : Messages.ColorConsoleAnnotator_StrippedBusy();
+            }
+        }
+    }
+
+    /**
+     * Tells how many annotators rendered lines within a window of time, which stands for the console requests being
+     * served. Unlike the number of threads rendering a line at the moment it is asked, it does not drop to zero between
+     * two lines, so it does not flip the policy of one request to the next for no reason. Annotators tell it at most
+     * every {@link #TOUCH_INTERVAL_NANOS}, and those which were not heard of within the window are forgotten.
+     * Annotators are told apart by an id of their own, so that none is kept from being collected until it is forgotten.
+     */
+    static final class Activity {
+        static final long TOUCH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final long windowNanos;
+        private final AtomicLong ids = new AtomicLong();
+        private final ConcurrentHashMap<Long, Long> lastActive = new ConcurrentHashMap<>();
+        private final AtomicLong lastPruned = new AtomicLong(System.nanoTime());
+
+        Activity(long windowNanos) {
+            this.windowNanos = windowNanos;
+        }
+
+        /**
+         * @return an id for an annotator to tell this under, never 0
+         */
+        long newId() {
+            return ids.incrementAndGet();
+        }
+
+        void touch(long id, long now) {
+            lastActive.put(id, now);
+            final long pruned = lastPruned.get();
+            if (now - pruned >= windowNanos && lastPruned.compareAndSet(pruned, now)) {
+                prune(now);
+            }
+        }
+
+        int count(long now) {
+            prune(now);
+            return lastActive.size();
         }
 
-        private ConsoleAnnotator<Object> newInstance(Object context, long startLineNo) {
-            return new ColorConsoleAnnotator(Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).getGlobalColorMapName(), new LineIdentifier(), startLineNo);
+        private void prune(long now) {
+            lastActive.values().removeIf(t -> now - t >= windowNanos);
         }
     }
 }
@@ -0,0 +1,382 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jakarta.servlet.http.HttpServletResponse;
+import jenkins.model.Jenkins;
+import jenkins.model.TransientActionFactory;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Serves the log of a run with its colors, or without them as plain text, for other tools, without the HTML of the
+ * console page, at {@code <run>/ansicolor/}, searches it, and lets users download it as a standalone HTML page.
+ */
+public final class ColoredLogAction implements Action {
+
+    static final long DEFAULT_PAGE_BYTES = 1024 * 1024;
+    static final long MAX_PAGE_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_CHECKPOINTED_RUNS = 64;
+
+    static final long DEFAULT_SEARCH_HITS = 1000;
+    static final long MAX_SEARCH_HITS = 10_000;
+    static final String PROP_SEARCH_THREADS = "hudson.plugins.ansicolor.ColoredLogAction.searchThreads";
+    private static final int SEARCH_THREADS = Integer.getInteger(PROP_SEARCH_THREADS, 0);
+    static final String PROP_SEARCH_TIMEOUT_SECONDS = "hudson.plugins.ansicolor.ColoredLogAction.searchTimeoutSeconds";
+    private static final long SEARCH_TIMEOUT_SECONDS = Long.getLong(PROP_SEARCH_TIMEOUT_SECONDS, 10);
+    static final String PROP_MAX_SEARCHES = "hudson.plugins.ansicolor.ColoredLogAction.maxSearches";
+    // The searches running at once, beyond which further ones are turned away
+    private static final Semaphore SEARCHES = new Semaphore(Math.max(1, Integer.getInteger(PROP_MAX_SEARCHES, 4)));
+    private static final long SEARCH_CHUNK_BYTES = 16 * 1024 * 1024;
+    @CheckForNull
+    private static ExecutorService searchExecutor;
+
+    // The checkpoints of the plain text of the runs whose ranges were requested last, by their externalizable id
+    private static final Map<String, PlainTextOutputStream.Checkpoints> CHECKPOINTS = Collections.synchronizedMap(
+        new LinkedHashMap<String, PlainTextOutputStream.Checkpoints>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PlainTextOutputStream.Checkpoints> eldest) {
+                return size() > MAX_CHECKPOINTED_RUNS;
+            }
+        });
+
+    private final Run<?, ?> run;
+
+    ColoredLogAction(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-download";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.ColoredLogAction_DisplayName();
+    }
+
+    public List<String> getColorMapNames() {
+        final List<String> names = new ArrayList<>();
+        for (AnsiColorMap colorMap : getDescriptor().getColorMaps()) {
+            names.add(colorMap.getName());
+        }
+        return names;
+    }
+
+    public String getDefaultColorMapName() {
+        return getDescriptor().getGlobalColorMapName();
+    }
+
+    private static AnsiColorBuildWrapper.DescriptorImpl getDescriptor() {
+        return Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+    }
+
+    /**
+     * Sends the whole log as a standalone HTML page, see {@link HtmlLogExport}, in the colors of the color map named
+     * by {@code colorMap}, or of the global one. It is streamed from the log as it is read, compressed if the client
+     * accepts it, so that even logs too large for the console page can be exported.
+     */
+    public void doHtml(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        final String colorMapName = req.getParameter("colorMap");
+        final AnsiColorMap colorMap = getDescriptor().getColorMap(colorMapName != null ? colorMapName : getDefaultColorMapName());
+        rsp.setContentType("text/html;charset=UTF-8");
+        rsp.setHeader("Content-Disposition", "attachment; filename=\"" + run.getParent().getName().replaceAll("[^\\w.-]", "_") + "-" + run.getNumber() + ".html\"");
+        try (OutputStream out = rsp.getCompressedOutputStream(req); InputStream in = run.getLogInputStream()) {
+            HtmlLogExport.write(in, out, colorMap, run.getFullDisplayName());
+        }
+    }
+
+    @Override
+    public String getUrlName() {
+        return "ansicolor";
+    }
+
+    /**
+     * Sends a page of the log as JSON, see {@link StyleRunOutputStream}: the {@code lines} from the offset
+     * {@code start} on, covering about {@code maxBytes} bytes, followed by the offset and the {@code style} to ask
+     * for the next page with, and whether there may be {@code more} lines. While the run is building, only complete
+     * lines are sent.
+     */
+    public void doStyleRuns(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        final long start = parseLong(req.getParameter("start"), 0);
+        final long maxBytes = Math.min(Math.max(parseLong(req.getParameter("maxBytes"), DEFAULT_PAGE_BYTES), 1), MAX_PAGE_BYTES);
+        final String styleParameter = req.getParameter("style");
+        final AnsiStyle style = styleParameter != null ? StyleRunOutputStream.parseStyle(styleParameter) : new AnsiStyle();
+        if (start < 0 || style == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed start or style");
+            return;
+        }
+        // Checked before reading, so that nothing written in between is missed
+        final boolean complete = !run.isLogUpdated();
+        rsp.setContentType("application/json;charset=UTF-8");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(rsp.getOutputStream(), StandardCharsets.UTF_8));
+             InputStream in = run.getLogInputStream()) {
+            final JsonWriter json = new JsonWriter(writer);
+            json.beginObject().name("start").value(start).name("lines").beginArray();
+            final StyleRunOutputStream lines = new StyleRunOutputStream(json, start, style, maxBytes);
+            if (IOUtils.skip(in, start) == start) {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while (!lines.isFull() && (read = in.read(buffer)) >= 0) {
+                    lines.write(buffer, 0, read);
+                }
+                if (complete) {
+                    lines.finish();
+                }
+            }
+            json.endArray()
+                .name("next").value(lines.getLineEnd())
+                .name("style").value(StyleRunOutputStream.formatStyle(lines.getLineEndStyle()))
+                .name("more").value(!complete || lines.isFull())
+                .endObject();
+        }
+    }
+
+    /**
+     * Sends the log without escape sequences and console notes, see {@link PlainTextOutputStream}, compressed if the
+     * client accepts it. A single range of the plain text may be requested with a {@code Range} header; it is found by
+     * the checkpoints of the run, which are kept for the runs requested last and brought up to date as the log grows.
+     */
+    public void doPlainText(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        final long[] range = parseRange(req.getHeader("Range"));
+        rsp.setHeader("Accept-Ranges", "bytes");
+        rsp.setContentType("text/plain;charset=UTF-8");
+        if (range == null) {
+            try (OutputStream out = rsp.getCompressedOutputStream(req); InputStream in = run.getLogInputStream()) {
+                copy(in, new PlainTextOutputStream(out));
+            }
+            return;
+        }
+        final PlainTextOutputStream.Checkpoints checkpoints = CHECKPOINTS.computeIfAbsent(run.getExternalizableId(), id -> new PlainTextOutputStream.Checkpoints());
+        final long length;
+        final long raw;
+        final long plain;
+        synchronized (checkpoints) {
+            updateCheckpoints(checkpoints);
+            length = checkpoints.getEndPlain();
+            if (range[0] < 0) {
+                range[0] = Math.max(length - range[1], 0);
+                range[1] = range[1] > 0 ? length - 1 : -1;
+            }
+            final int checkpoint = checkpoints.floor(range[0]);
+            raw = checkpoints.getRaw(checkpoint);
+            plain = checkpoints.getPlain(checkpoint);
+        }
+        final long first = range[0];
+        final long last = Math.min(range[1], length - 1);
+        if (first >= length || last < first) {
+            rsp.setHeader("Content-Range", "bytes */" + length);
+            rsp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        rsp.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + length);
+        rsp.setContentLengthLong(last - first + 1);
+        try (OutputStream out = rsp.getOutputStream(); InputStream in = run.getLogInputStream()) {
+            if (IOUtils.skip(in, raw) == raw) {
+                copy(in, new PlainTextOutputStream(out, raw, plain, first, last + 1, null));
+            }
+        }
+    }
+
+    /**
+     * Reads the log from the last checkpoint on, adding checkpoints, up to its current end.
+     */
+    private void updateCheckpoints(PlainTextOutputStream.Checkpoints checkpoints) throws IOException {
+        final int last = checkpoints.size() - 1;
+        final long raw = checkpoints.getRaw(last);
+        try (InputStream in = run.getLogInputStream()) {
+            if (IOUtils.skip(in, raw) != raw) {
+                return;
+            }
+            final PlainTextOutputStream plain = new PlainTextOutputStream(OutputStream.nullOutputStream(), raw, checkpoints.getPlain(last),
+                Long.MAX_VALUE, Long.MAX_VALUE, checkpoints);
+            copy(in, plain);
+            checkpoints.setEnd(plain.getRawOffset(), plain.getPlainOffset());
+        }
+    }
+
+    private static void copy(InputStream in, PlainTextOutputStream plain) throws IOException {
+        final byte[] buffer = new byte[65536];
+        int read;
+        while (!plain.isDone() && (read = in.read(buffer)) >= 0) {
+            plain.write(buffer, 0, read);
+        }
+        plain.flush();
+        plain.close();
+    }
+
+    /**
+     * @return the first and last offset of a single byte range, or -1 and the length of a suffix range, or null if
+     * the header is missing, malformed or asks for several ranges, so that it is ignored
+     */
+    @CheckForNull
+    static long[] parseRange(@CheckForNull String header) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = header.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        final long first = dash > 0 ? parseLong(spec.substring(0, dash), -1) : -1;
+        final long last = dash + 1 < spec.length() ? parseLong(spec.substring(dash + 1), -1) : Long.MAX_VALUE;
+        if (dash > 0 ? first < 0 || last < first : last < 0 || last == Long.MAX_VALUE) {
+            return null;
+        }
+        return new long[]{first, last};
+    }
+
+    /**
+     * Searches the visible text of the log, see {@link LogSearch}, for {@code q}, as a regular expression if
+     * {@code regex} is {@code true} and ignoring case if {@code ignoreCase} is, and sends the first {@code max} hits as
+     * JSON as they are found: the line starting with 1, the offsets into the log of the line and of the match, the
+     * column and length of the match in the text of the line, the text and the style at the match like the runs of
+     * {@link #doStyleRuns}. The log of a completed run is searched in chunks in parallel when
+     * {@value #PROP_SEARCH_THREADS} is set. A search stops after the seconds set by
+     * {@value #PROP_SEARCH_TIMEOUT_SECONDS}, 10 by default. Only as many searches as set by {@value #PROP_MAX_SEARCHES},
+     * 4 by default, run at once, further requests fail with 503 meanwhile.
+     */
+    public void doSearch(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        final String q = req.getParameter("q");
+        final long max = Math.min(parseLong(req.getParameter("max"), DEFAULT_SEARCH_HITS), MAX_SEARCH_HITS);
+        final Pattern pattern;
+        try {
+            pattern = q == null || q.isEmpty() || max <= 0 ? null : Pattern.compile(q,
+                ("true".equals(req.getParameter("regex")) ? 0 : Pattern.LITERAL)
+                    | ("true".equals(req.getParameter("ignoreCase")) ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0));
+        } catch (PatternSyntaxException e) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getDescription());
+            return;
+        }
+        if (pattern == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Missing q or malformed max");
+            return;
+        }
+        if (!SEARCHES.tryAcquire()) {
+            rsp.setHeader("Retry-After", "5");
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many searches at once");
+            return;
+        }
+        try {
+            search(pattern, (int) max, rsp);
+        } finally {
+            SEARCHES.release();
+        }
+    }
+
+    private void search(Pattern pattern, int max, StaplerResponse2 rsp) throws IOException {
+        final boolean complete = !run.isLogUpdated();
+        @SuppressWarnings("deprecation")
+        final File logFile = run.getLogFile();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SEARCH_TIMEOUT_SECONDS);
+        rsp.setContentType("application/json;charset=UTF-8");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(rsp.getOutputStream(), StandardCharsets.UTF_8))) {
+            final JsonWriter json = new JsonWriter(writer);
+            json.beginObject().name("hits").beginArray();
+            final LogSearch.Sink sink = hit -> {
+                json.beginObject()
+                    .name("line").value(hit.getLine() + 1)
+                    .name("lineOffset").value(hit.getLineOffset())
+                    .name("offset").value(hit.getOffset())
+                    .name("column").value(hit.getColumn())
+                    .name("length").value(hit.getLength())
+                    .name("text").value(hit.getText())
+                    .name("style").beginArray();
+                StyleRunOutputStream.writeStyle(json, hit.getStyle());
+                json.endArray().endObject();
+                json.flush();
+            };
+            boolean truncated;
+            boolean timedOut = false;
+            try {
+                if (complete && SEARCH_THREADS > 0 && logFile.isFile() && !logFile.getName().endsWith(".gz")
+                        && logFile.length() > SEARCH_CHUNK_BYTES) {
+                    truncated = LogSearch.search(logFile, pattern, deadline, max, sink, getSearchExecutor(), SEARCH_THREADS, SEARCH_CHUNK_BYTES);
+                } else {
+                    try (InputStream in = run.getLogInputStream()) {
+                        truncated = LogSearch.search(in, pattern, deadline, max, complete, sink);
+                    }
+                }
+            } catch (LogSearch.TimeoutException e) {
+                truncated = true;
+                timedOut = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            json.endArray()
+                .name("truncated").value(truncated)
+                .name("timedOut").value(timedOut)
+                .endObject();
+        }
+    }
+
+    private static synchronized ExecutorService getSearchExecutor() {
+        if (searchExecutor == null) {
+            searchExecutor = Executors.newFixedThreadPool(SEARCH_THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), ColoredLogAction.class.getSimpleName() + ".search"));
+        }
+        return searchExecutor;
+    }
+
+    static long parseLong(@CheckForNull String value, long defaultValue) {
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds {@link ColoredLogAction} to every run.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class Factory extends TransientActionFactory<Run> {
+
+        @Override
+        public Class<Run> type() {
+            return Run.class;
+        }
+
+        @NonNull
+        @Override
+        public Collection<? extends Action> createFor(@NonNull Run target) {
+            return Collections.singleton(new ColoredLogAction(target));
+        }
+    }
+}
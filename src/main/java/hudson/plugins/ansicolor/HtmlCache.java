@@ -0,0 +1,376 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Rendered consoles of completed runs, compressed on disk, see {@link PrerenderedConsoleAction}.
+ * <p>
+ * Each entry is a {@code .gz} file of gzip members, each holding the HTML of a block of whole lines, and an
+ * {@code .idx} file with the fingerprint of the settings it was rendered with and, for each block, the line number,
+ * the offset into the log and the offset into the {@code .gz} file where it starts. As gzip members may be
+ * concatenated, the HTML from any block to the end of the log is decompressed with a single stream. The index is
+ * written last, so an entry without one is incomplete.
+ * <p>
+ * The entries are kept within a size quota, evicting the least recently used ones, which is tracked in memory and
+ * across restarts by the modification time of the index.
+ */
+final class HtmlCache {
+
+    private static final Logger LOGGER = Logger.getLogger(HtmlCache.class.getName());
+
+    // Uncompressed HTML per gzip member
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final String HTML_SUFFIX = ".gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param dir where the entries are stored, and found again after a restart
+     */
+    HtmlCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        final File[] indexes = dir.listFiles((d, name) -> name.endsWith(INDEX_SUFFIX));
+        if (indexes != null) {
+            Arrays.sort(indexes, Comparator.comparingLong(File::lastModified));
+            for (File index : indexes) {
+                final String key = index.getName().substring(0, index.getName().length() - INDEX_SUFFIX.length());
+                final long size = index.length() + htmlFile(key).length();
+                sizes.put(key, size);
+                bytes += size;
+            }
+        }
+        final File[] temps = dir.listFiles((d, name) -> name.endsWith(TEMP_SUFFIX));
+        if (temps != null) {
+            for (File temp : temps) {
+                delete(temp);
+            }
+        }
+        evict();
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized int size() {
+        return sizes.size();
+    }
+
+    private File htmlFile(String key) {
+        return new File(dir, key + HTML_SUFFIX);
+    }
+
+    private File indexFile(String key) {
+        return new File(dir, key + INDEX_SUFFIX);
+    }
+
+    /**
+     * @param key a file name
+     * @return the entry, or null if there is none or it was rendered with other settings
+     */
+    @CheckForNull
+    Entry get(String key, String fingerprint) throws IOException {
+        synchronized (this) {
+            // Also marks it as used
+            if (sizes.get(key) == null) {
+                return null;
+            }
+        }
+        final Entry entry = Entry.read(htmlFile(key), indexFile(key));
+        if (!entry.fingerprint.equals(fingerprint)) {
+            LOGGER.log(Level.FINE, "Dropping {0} as it was rendered with other settings", key);
+            remove(key);
+            return null;
+        }
+        if (!indexFile(key).setLastModified(System.currentTimeMillis())) {
+            LOGGER.log(Level.FINE, "Could not mark {0} as used", key);
+        }
+        return entry;
+    }
+
+    synchronized void remove(String key) {
+        final Long size = sizes.remove(key);
+        if (size != null) {
+            bytes -= size;
+        }
+        delete(indexFile(key));
+        delete(htmlFile(key));
+    }
+
+    /**
+     * Starts a new entry, which replaces any existing one once it is {@link Builder#commit() committed}.
+     */
+    Builder create(String key, String fingerprint) throws IOException {
+        Files.createDirectories(dir.toPath());
+        return new Builder(key, fingerprint);
+    }
+
+    private synchronized void add(String key, long size) {
+        final Long previous = sizes.put(key, size);
+        bytes += size - (previous != null ? previous : 0);
+        evict();
+    }
+
+    private void evict() {
+        for (Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            final Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            bytes -= eldest.getValue();
+            delete(indexFile(eldest.getKey()));
+            delete(htmlFile(eldest.getKey()));
+            LOGGER.log(Level.FINE, "Evicted {0}", eldest.getKey());
+        }
+    }
+
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete " + file, e);
+        }
+    }
+
+    /**
+     * A rendered console.
+     */
+    static final class Entry {
+        private final File html;
+        final String fingerprint;
+        private final long logEnd;
+        private final long[] lines;
+        private final long[] logOffsets;
+        private final long[] htmlOffsets;
+
+        private Entry(File html, String fingerprint, long logEnd, long[] lines, long[] logOffsets, long[] htmlOffsets) {
+            this.html = html;
+            this.fingerprint = fingerprint;
+            this.logEnd = logEnd;
+            this.lines = lines;
+            this.logOffsets = logOffsets;
+            this.htmlOffsets = htmlOffsets;
+        }
+
+        static Entry read(File html, File index) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                final String fingerprint = in.readUTF();
+                final long logEnd = in.readLong();
+                final int count = in.readInt();
+                final long[] lines = new long[count];
+                final long[] logOffsets = new long[count];
+                final long[] htmlOffsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    lines[i] = in.readLong();
+                    logOffsets[i] = in.readLong();
+                    htmlOffsets[i] = in.readLong();
+                }
+                return new Entry(html, fingerprint, logEnd, lines, logOffsets, htmlOffsets);
+            }
+        }
+
+        long getLogEnd() {
+            return logEnd;
+        }
+
+        /**
+         * @return the number of the first line of the block which starts at {@code logOffset}, or -1 if none does
+         */
+        long lineAt(long logOffset) {
+            final int i = Arrays.binarySearch(logOffsets, logOffset);
+            return i >= 0 ? lines[i] : -1;
+        }
+
+        /**
+         * Writes the HTML of the log from {@code logOffset} to its end.
+         *
+         * @return false if no block starts at {@code logOffset}
+         */
+        boolean writeHtml(long logOffset, OutputStream out) throws IOException {
+            if (logOffset == logEnd) {
+                return true;
+            }
+            final int i = Arrays.binarySearch(logOffsets, logOffset);
+            if (i < 0) {
+                return false;
+            }
+            try (FileInputStream file = new FileInputStream(html)) {
+                file.getChannel().position(htmlOffsets[i]);
+                try (InputStream in = new GZIPInputStream(file, 8192)) {
+                    in.transferTo(out);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes a new entry: the HTML of each line is written to {@link #html()}, followed by a call to
+     * {@link #lineEnd(long)}.
+     */
+    final class Builder implements AutoCloseable {
+        private final String key;
+        private final String fingerprint;
+        private final File htmlTemp;
+        private final CountingFileOutputStream file;
+        private GZIPOutputStream member;
+        private long memberSize;
+        private long line;
+        private long[] lines = new long[16];
+        private long[] logOffsets = new long[16];
+        private long[] htmlOffsets = new long[16];
+        private int count;
+        private boolean committed;
+        private final OutputStream html = new FilterOutputStream(OutputStream.nullOutputStream()) {
+            @Override
+            public void write(int b) throws IOException {
+                member.write(b);
+                memberSize++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                member.write(b, off, len);
+                memberSize += len;
+            }
+        };
+
+        private Builder(String key, String fingerprint) throws IOException {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.htmlTemp = new File(dir, key + HTML_SUFFIX + TEMP_SUFFIX);
+            this.file = new CountingFileOutputStream(htmlTemp);
+            startBlock(0);
+        }
+
+        OutputStream html() {
+            return html;
+        }
+
+        /**
+         * Ends a line, and the block if it is big enough. The HTML of the line must have been written completely.
+         *
+         * @param logOffset the offset into the log after the line
+         */
+        void lineEnd(long logOffset) throws IOException {
+            line++;
+            if (memberSize >= BLOCK_SIZE) {
+                member.finish();
+                startBlock(logOffset);
+            }
+        }
+
+        private void startBlock(long logOffset) throws IOException {
+            if (count == lines.length) {
+                lines = Arrays.copyOf(lines, 2 * count);
+                logOffsets = Arrays.copyOf(logOffsets, 2 * count);
+                htmlOffsets = Arrays.copyOf(htmlOffsets, 2 * count);
+            }
+            lines[count] = line;
+            logOffsets[count] = logOffset;
+            htmlOffsets[count] = file.count;
+            count++;
+            member = new GZIPOutputStream(new FilterOutputStream(file) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    // The file holds more members
+                }
+            }, 8192);
+            memberSize = 0;
+        }
+
+        /**
+         * Completes the entry, and makes it available.
+         *
+         * @param logEnd the length of the log
+         */
+        void commit(long logEnd) throws IOException {
+            member.close();
+            file.close();
+            final File indexTemp = new File(dir, key + INDEX_SUFFIX + TEMP_SUFFIX);
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(indexTemp))) {
+                out.writeUTF(fingerprint);
+                out.writeLong(logEnd);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(lines[i]);
+                    out.writeLong(logOffsets[i]);
+                    out.writeLong(htmlOffsets[i]);
+                }
+            }
+            synchronized (HtmlCache.this) {
+                Files.move(htmlTemp.toPath(), htmlFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                Files.move(indexTemp.toPath(), indexFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                add(key, indexFile(key).length() + htmlFile(key).length());
+            }
+            committed = true;
+        }
+
+        /**
+         * Drops the entry unless it was committed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                file.close();
+                delete(htmlTemp);
+            }
+        }
+    }
+
+    private static final class CountingFileOutputStream extends FileOutputStream {
+        private long count;
+
+        CountingFileOutputStream(File file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            super.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            count += len;
+        }
+    }
+}
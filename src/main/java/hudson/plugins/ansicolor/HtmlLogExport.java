@@ -0,0 +1,127 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Util;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns a log into a standalone HTML page, with the colors of a color map and the rest of the page styled by an inline
+ * stylesheet, so that it can be viewed without Jenkins.
+ * <p>
+ * The log is streamed through {@link AnsiHtmlOutputStream} as is, instead of line by line through the console
+ * annotators, so memory use does not depend on the size of the log or of its lines. Console notes are left out, as
+ * rendering them takes the annotators.
+ */
+final class HtmlLogExport {
+
+    private HtmlLogExport() {
+    }
+
+    /**
+     * Writes the page, leaving {@code out} open.
+     */
+    static void write(InputStream log, OutputStream out, AnsiColorMap colorMap, String title) throws IOException {
+        final BufferedOutputStream page = new BufferedOutputStream(out, 65536);
+        page.write(head(colorMap, title).getBytes(StandardCharsets.UTF_8));
+        copy(log, page, colorMap, new AnsiStyle(), Integer.MAX_VALUE);
+        page.write("</pre>\n</body>\n</html>\n".getBytes(StandardCharsets.UTF_8));
+        page.flush();
+    }
+
+    /**
+     * Writes the HTML of the first lines of the log, starting in the given style, without the page around it and
+     * leaving {@code out} open.
+     */
+    static void writeLines(InputStream log, OutputStream out, AnsiColorMap colorMap, AnsiStyle style, int maxLines) throws IOException {
+        final BufferedOutputStream html = new BufferedOutputStream(out, 65536);
+        copy(log, html, colorMap, style, maxLines);
+        html.flush();
+    }
+
+    private static void copy(InputStream log, OutputStream page, AnsiColorMap colorMap, AnsiStyle style, int maxLines) throws IOException {
+        final AnsiHtmlOutputStream html = new AnsiHtmlOutputStream(new EscapingOutputStream(page), colorMap, new AnsiAttributeElement.Emitter() {
+            @Override
+            public void emitHtml(@NonNull String markup) {
+                try {
+                    page.write(markup.getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }, style) {
+            @Override
+            protected void processConsoleNote(byte[] b, int off, int len) {
+                // Left out, see above
+            }
+        };
+        try {
+            final byte[] buffer = new byte[65536];
+            int lines = 0;
+            int read;
+            while (lines < maxLines && (read = log.read(buffer)) >= 0) {
+                int end = maxLines == Integer.MAX_VALUE ? read : 0;
+                while (end < read && lines < maxLines) {
+                    if (buffer[end++] == '\n') {
+                        lines++;
+                    }
+                }
+                html.write(buffer, 0, end);
+            }
+            html.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static String head(AnsiColorMap colorMap, String title) {
+        final StringBuilder pre = new StringBuilder("margin: 0; padding: 8px; white-space: pre-wrap; word-wrap: break-word; font-family: monospace;");
+        if (colorMap.getDefaultBackground() != null) {
+            pre.append(" background-color: ").append(colorMap.getNormal(colorMap.getDefaultBackground())).append(';');
+        }
+        if (colorMap.getDefaultForeground() != null) {
+            pre.append(" color: ").append(colorMap.getNormal(colorMap.getDefaultForeground())).append(';');
+        }
+        return "<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n<title>" + Util.escape(title) + "</title>\n"
+            + "<style>\nbody { margin: 0; }\npre { " + pre + " }\n</style>\n</head>\n<body>\n<pre>";
+    }
+
+    /**
+     * Escapes the text of the log for HTML, the markup is written to the underlying stream directly.
+     */
+    private static final class EscapingOutputStream extends FilterOutputStream {
+
+        private static final byte[] AMP = "&amp;".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] LT = "&lt;".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] GT = "&gt;".getBytes(StandardCharsets.US_ASCII);
+
+        EscapingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            final int end = off + len;
+            int from = off;
+            for (int i = off; i < end; i++) {
+                final byte[] entity = b[i] == '&' ? AMP : b[i] == '<' ? LT : b[i] == '>' ? GT : null;
+                if (entity != null) {
+                    out.write(b, from, i - from);
+                    out.write(entity);
+                    from = i + 1;
+                }
+            }
+            out.write(b, from, end - from);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The console of a run rendered to HTML once, next to its log, see {@link PrerenderedConsoleAction}.
+ * <p>
+ * The HTML is appended to {@value #HTML_FILE}. Each time a piece of the log has been rendered, a checkpoint is appended
+ * to {@value #INDEX_FILE}: the offset into the log up to which it was rendered, and the length of the HTML at that
+ * point, as two {@code long}s. Checkpoints are only taken at the end of a line, so the HTML between two of them is
+ * the complete rendering of the lines between them. Once the whole log is rendered, the index ends with a pair of
+ * {@code -1}s.
+ * <p>
+ * The instance which renders keeps the checkpoints it wrote, see {@link #getIndex()}, so that viewers polling a
+ * running build do not read the whole index again each time.
+ */
+final class HtmlSidecar {
+
+    static final String HTML_FILE = "ansicolor-console.html";
+    static final String INDEX_FILE = "ansicolor-console.idx";
+
+    private final File html;
+    private final File index;
+    // The checkpoints written through this instance, null if it did not create the rendering
+    @CheckForNull
+    private volatile Index written;
+
+    HtmlSidecar(File dir) {
+        this.html = new File(dir, HTML_FILE);
+        this.index = new File(dir, INDEX_FILE);
+    }
+
+    boolean exists() {
+        return index.isFile();
+    }
+
+    /**
+     * Starts over with an empty rendering.
+     *
+     * @return the stream to append the HTML to
+     */
+    OutputStream create() throws IOException {
+        final OutputStream out = new FileOutputStream(html);
+        try {
+            Files.deleteIfExists(index.toPath());
+            written = new Index(new long[64], new long[64], 0, false);
+            checkpoint(0, 0);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        return out;
+    }
+
+    void checkpoint(long logOffset, long htmlOffset) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(index, true))) {
+            out.writeLong(logOffset);
+            out.writeLong(htmlOffset);
+        }
+        final Index w = written;
+        if (w != null) {
+            written = w.with(logOffset, htmlOffset);
+        }
+    }
+
+    void complete() throws IOException {
+        checkpoint(-1, -1);
+    }
+
+    /**
+     * Deletes the rendering.
+     */
+    void delete() throws IOException {
+        written = null;
+        Files.deleteIfExists(index.toPath());
+        Files.deleteIfExists(html.toPath());
+    }
+
+    /**
+     * @return the checkpoints written through this instance, or those in the file if it did not create the rendering
+     */
+    Index getIndex() throws IOException {
+        final Index w = written;
+        return w != null ? w : readIndex();
+    }
+
+    Index readIndex() throws IOException {
+        long[] logOffsets = new long[64];
+        long[] htmlOffsets = new long[64];
+        int count = 0;
+        boolean complete = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index.toPath())))) {
+            while (true) {
+                final long logOffset;
+                final long htmlOffset;
+                try {
+                    logOffset = in.readLong();
+                    htmlOffset = in.readLong();
+                } catch (EOFException e) {
+                    // The last checkpoint may be incomplete if it is being written right now
+                    break;
+                }
+                if (logOffset < 0) {
+                    complete = true;
+                    break;
+                }
+                if (count == logOffsets.length) {
+                    logOffsets = Arrays.copyOf(logOffsets, 2 * count);
+                    htmlOffsets = Arrays.copyOf(htmlOffsets, 2 * count);
+                }
+                logOffsets[count] = logOffset;
+                htmlOffsets[count] = htmlOffset;
+                count++;
+            }
+        }
+        return new Index(logOffsets, htmlOffsets, count, complete);
+    }
+
+    /**
+     * Copies the HTML in {@code [from, to)} to the given stream.
+     */
+    void copyHtml(long from, long to, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(html.toPath(), StandardOpenOption.READ)) {
+            final InputStream in = Channels.newInputStream(channel.position(from));
+            final byte[] buffer = new byte[8192];
+            long remaining = to - from;
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("The rendered console ends before " + to);
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * The checkpoints of a rendering.
+     */
+    static final class Index {
+        private final long[] logOffsets;
+        private final long[] htmlOffsets;
+        private final int count;
+        private final boolean complete;
+
+        Index(long[] logOffsets, long[] htmlOffsets, int count, boolean complete) {
+            this.logOffsets = logOffsets;
+            this.htmlOffsets = htmlOffsets;
+            this.count = count;
+            this.complete = complete;
+        }
+
+        /**
+         * Adds a checkpoint, or marks the index complete for {@code -1}s. The arrays are shared with this index, which
+         * only reads the checkpoints before the new one, so only the latest index of a rendering may be added to.
+         */
+        Index with(long logOffset, long htmlOffset) {
+            if (logOffset < 0) {
+                return new Index(logOffsets, htmlOffsets, count, true);
+            }
+            long[] newLogOffsets = logOffsets;
+            long[] newHtmlOffsets = htmlOffsets;
+            if (count == logOffsets.length) {
+                newLogOffsets = Arrays.copyOf(logOffsets, 2 * count);
+                newHtmlOffsets = Arrays.copyOf(htmlOffsets, 2 * count);
+            }
+            newLogOffsets[count] = logOffset;
+            newHtmlOffsets[count] = htmlOffset;
+            return new Index(newLogOffsets, newHtmlOffsets, count + 1, false);
+        }
+
+        /**
+         * @return whether the whole log was rendered
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return the offset into the log up to which it was rendered
+         */
+        long getLogEnd() {
+            return count > 0 ? logOffsets[count - 1] : 0;
+        }
+
+        long getHtmlEnd() {
+            return count > 0 ? htmlOffsets[count - 1] : 0;
+        }
+
+        /**
+         * @return the offset into the HTML where the rendering of the log from {@code logOffset} starts, or -1 if
+         * {@code logOffset} is not a checkpoint
+         */
+        long htmlOffsetOf(long logOffset) {
+            final int i = Arrays.binarySearch(logOffsets, 0, count, logOffset);
+            return i >= 0 ? htmlOffsets[i] : -1;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.MarkupText;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional memo of the markup {@link ColorConsoleAnnotator} adds to a line, for jobs which print the same colored lines
+ * (banners, task headers, test results) over and over, run after run.
+ * <p>
+ * Entries are keyed by the color map, any other options which change the markup, the style carried over from the
+ * previous line and the text of the line. They hold the markup to add and the style at the end of the line, so a hit
+ * needs no parsing at all. The cache is a least recently used map bounded by an estimate of its memory use, which is
+ * set in KB by the system property {@value #PROP_MAX_KB}. It is disabled by default; hit rates are logged at level {@code FINE}.
+ */
+final class LineAnnotationCache {
+
+    private static final Logger LOGGER = Logger.getLogger(LineAnnotationCache.class.getName());
+
+    static final String PROP_MAX_KB = "hudson.plugins.ansicolor.LineAnnotationCache.maxKB";
+
+    private static final int REPORT_INTERVAL = 100_000;
+
+    // Rough per object overheads, only used to estimate the memory use.
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int MARKUP_OVERHEAD = 48;
+
+    @CheckForNull
+    private static final LineAnnotationCache INSTANCE = create(Integer.getInteger(PROP_MAX_KB, 0));
+
+    private final long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    LineAnnotationCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @CheckForNull
+    private static LineAnnotationCache create(int maxKB) {
+        if (maxKB <= 0) {
+            return null;
+        }
+        LOGGER.log(Level.CONFIG, "Caching line annotations in up to {0} KB", maxKB);
+        return new LineAnnotationCache(maxKB * 1024L);
+    }
+
+    /**
+     * @return the cache, or null if it is disabled
+     */
+    @CheckForNull
+    static LineAnnotationCache get() {
+        return INSTANCE;
+    }
+
+    @CheckForNull
+    synchronized Entry get(AnsiColorMap colorMap, int options, AnsiStyle style, String line) {
+        final Entry entry = entries.get(new Key(colorMap, options, style, line));
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        if ((hits + misses) % REPORT_INTERVAL == 0) {
+            LOGGER.fine(this::toString);
+        }
+        return entry;
+    }
+
+    synchronized void put(AnsiColorMap colorMap, int options, AnsiStyle style, String line, Entry entry) {
+        final long size = ENTRY_OVERHEAD + 2L * line.length() + entry.size;
+        if (size > maxBytes / 8) {
+            // A single huge line would evict everything else.
+            return;
+        }
+        entry.bytes = size;
+        final Entry previous = entries.put(new Key(colorMap, options, style, line), entry);
+        bytes += size - (previous != null ? previous.bytes : 0);
+        for (Iterator<Entry> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long lookups = hits + misses;
+        return String.format("LineAnnotationCache{entries=%d, bytes=%d/%d, hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d}",
+            entries.size(), bytes, maxBytes, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions);
+    }
+
+    private static final class Key {
+        private final AnsiColorMap colorMap;
+        private final int options;
+        private final long style;
+        private final long order;
+        private final String line;
+        private final int hash;
+
+        Key(AnsiColorMap colorMap, int options, AnsiStyle style, String line) {
+            this.colorMap = colorMap;
+            this.options = options;
+            this.style = style.getStyle();
+            this.order = style.getOrder();
+            this.line = line;
+            this.hash = Objects.hash(colorMap.getName(), options, this.style, order, line);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return hash == key.hash && options == key.options && style == key.style && order == key.order && line.equals(key.line)
+                && colorMap.equals(key.colorMap);
+        }
+    }
+
+    /**
+     * The markup added to a line, in the order it was added, and the style at the end of the line.
+     */
+    static final class Entry {
+        // A tag inserted at a position has no end, a range has both tags.
+        private final int[] starts;
+        private final int[] ends;
+        private final String[] tags;
+        private final int count;
+        private final long style;
+        private final long order;
+        private final long size;
+        private long bytes;
+
+        private Entry(Recorder recorder, AnsiStyle style) {
+            this.starts = Arrays.copyOf(recorder.starts, recorder.count);
+            this.ends = Arrays.copyOf(recorder.ends, recorder.count);
+            this.tags = Arrays.copyOf(recorder.tags, recorder.count);
+            this.count = recorder.count;
+            this.style = style.getStyle();
+            this.order = style.getOrder();
+            this.size = recorder.size;
+        }
+
+        /**
+         * Adds the markup to the text and sets the style to the one at the end of the line.
+         */
+        void applyTo(MarkupText text, AnsiStyle style) {
+            for (int i = 0; i < count; i++) {
+                if (ends[i] < 0) {
+                    text.addMarkup(starts[i], tags[i]);
+                } else {
+                    text.addMarkup(starts[i], ends[i], "<!--", "-->");
+                }
+            }
+            style.set(this.style, order);
+        }
+    }
+
+    /**
+     * Collects the markup added to a line while it is annotated.
+     */
+    static final class Recorder {
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private String[] tags = new String[8];
+        private int count;
+        private long size;
+
+        void markup(int position, String tag) {
+            add(position, -1, tag);
+            size += 2L * tag.length();
+        }
+
+        void hide(int start, int end) {
+            add(start, end, null);
+        }
+
+        private void add(int start, int end, String tag) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                tags = Arrays.copyOf(tags, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            tags[count] = tag;
+            count++;
+            size += MARKUP_OVERHEAD;
+        }
+
+        Entry toEntry(AnsiStyle endStyle) {
+            return new Entry(this, endStyle);
+        }
+    }
+}
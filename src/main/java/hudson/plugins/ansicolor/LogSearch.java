@@ -0,0 +1,507 @@
+package hudson.plugins.ansicolor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Searches the visible text of a log, without escape sequences, console notes and concealed text, line by line.
+ * <p>
+ * Each hit is reported with its line, its offset into the log and the style there. Only the current line is held in
+ * memory, up to {@value #MAX_LINE_BYTES} bytes of its text, the rest of a longer line is not searched. As lines are
+ * searched on their own, the log of a completed run may be split into chunks at line breaks which are searched in
+ * parallel: the style is followed as the change since the start of the chunk, and the line numbers and styles of the
+ * hits are resolved once the chunks before are done.
+ */
+final class LogSearch extends OutputStream implements AnsiParser.Listener {
+
+    static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    // How often matching checks whether the time is up, in characters read
+    private static final int DEADLINE_CHECK_INTERVAL = 4096;
+
+    /**
+     * The most characters of the text of the line returned with each hit.
+     */
+    static final int MAX_TEXT_CHARS = 500;
+
+    /**
+     * Thrown when the search takes longer than allowed, e.g. as the pattern backtracks too much.
+     */
+    static final class TimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TimeoutException() {
+            super("The search took too long");
+        }
+    }
+
+    /**
+     * Receives the hits in the order of the log.
+     */
+    interface Sink {
+        void hit(Hit hit) throws IOException;
+    }
+
+    /**
+     * A match of the pattern.
+     */
+    static final class Hit {
+        private long line;
+        private final long lineOffset;
+        private final long offset;
+        private final int column;
+        private final int length;
+        private final String text;
+        // The change of the style since the start of the search, see resolve
+        private final long clear;
+        private long set;
+
+        Hit(long line, long lineOffset, long offset, int column, int length, String text, long clear, long set) {
+            this.line = line;
+            this.lineOffset = lineOffset;
+            this.offset = offset;
+            this.column = column;
+            this.length = length;
+            this.text = text;
+            this.clear = clear;
+            this.set = set;
+        }
+
+        /**
+         * Turns the line number and style relative to the start of a chunk into absolute ones.
+         */
+        void resolve(long firstLine, long style) {
+            line += firstLine;
+            set = (style & ~clear) | set;
+        }
+
+        /**
+         * @return the number of the line, starting with 0
+         */
+        long getLine() {
+            return line;
+        }
+
+        /**
+         * @return the offset into the log of the start of the line
+         */
+        long getLineOffset() {
+            return lineOffset;
+        }
+
+        /**
+         * @return the offset into the log of the match
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the start of the match in the visible text of the line, in UTF-16 code units
+         */
+        int getColumn() {
+            return column;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        /**
+         * @return the visible text of the line, up to {@value #MAX_TEXT_CHARS} characters
+         */
+        String getText() {
+            return text;
+        }
+
+        /**
+         * @return the style at the match, see {@link AnsiStyle#getStyle()}
+         */
+        long getStyle() {
+            return set;
+        }
+    }
+
+    private final Pattern pattern;
+    private final long deadline;
+    private final long limit;
+    private final int maxHits;
+    private final Sink sink;
+    private final AnsiParser parser = new AnsiParser(this, true);
+    private long offset;
+    private long lineStart;
+    private long line;
+    private int hits;
+    // The style as the change since the start: style = (start & ~clear) | set
+    private long clear;
+    private long set;
+    // The buffer passed to the parser, and where its text starts in the log and in the buffer
+    private byte[] parseBuffer;
+    private long parseOffset;
+    private int parseOff;
+
+    // The visible text of the current line, and where each part with its own style and position in the log starts
+    private final ByteArrayOutputStream text = new ByteArrayOutputStream();
+    private int[] partStarts = new int[8];
+    private long[] partOffsets = new long[8];
+    private long[] partClears = new long[8];
+    private long[] partSets = new long[8];
+    private int parts;
+
+    /**
+     * @param start the offset into the log the search starts at, the start of a line
+     * @param limit the offset into the log from which on lines are not searched
+     * @param deadline the {@link System#nanoTime()} at which the search fails with a {@link TimeoutException}
+     */
+    LogSearch(Pattern pattern, long deadline, long start, long limit, int maxHits, Sink sink) {
+        this.pattern = pattern;
+        this.deadline = deadline;
+        this.offset = start;
+        this.lineStart = start;
+        this.limit = limit;
+        this.maxHits = maxHits;
+        this.sink = sink;
+    }
+
+    /**
+     * @return whether all lines up to the limit were searched, or enough hits were found
+     */
+    boolean isDone() {
+        return lineStart >= limit || hits >= maxHits;
+    }
+
+    /**
+     * @return the number of lines searched
+     */
+    long getLines() {
+        return line;
+    }
+
+    /**
+     * @return the bits {@link #getSet()} applies to, see {@link Hit#resolve}
+     */
+    long getClear() {
+        return clear;
+    }
+
+    /**
+     * @return the style bits set since the start, see {@link Hit#resolve}
+     */
+    long getSet() {
+        return set;
+    }
+
+    int getHits() {
+        return hits;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int from = off;
+        while (from < end && !isDone()) {
+            int to = from;
+            while (to < end && b[to] != '\n') {
+                to++;
+            }
+            final int stop = to == end ? end : to + 1;
+            parseBuffer = b;
+            parseOffset = offset;
+            parseOff = from;
+            parser.parse(b, from, stop - from);
+            offset += stop - from;
+            if (to == end) {
+                return;
+            }
+            // Each line, as matching a line only checks the time within lines longer than DEADLINE_CHECK_INTERVAL
+            if (System.nanoTime() - deadline > 0) {
+                throw new TimeoutException();
+            }
+            endLine();
+            from = stop;
+        }
+    }
+
+    /**
+     * Searches the last line, if it was not ended by a line break.
+     */
+    void finish() throws IOException {
+        if (!isDone() && offset > lineStart) {
+            endLine();
+        }
+    }
+
+    @Override
+    public void text(byte[] b, int off, int len) {
+        if ((set & AnsiStyle.CONCEAL) != 0 || text.size() >= MAX_LINE_BYTES) {
+            return;
+        }
+        len = Math.min(len, MAX_LINE_BYTES - text.size());
+        // Text which is not in the buffer being parsed is an invalid sequence, which ended up where the text before it ends
+        long textOffset = b == parseBuffer ? parseOffset + off - parseOff : -1;
+        if (parts == 0 && textOffset < 0) {
+            textOffset = lineStart;
+        }
+        if (parts > 0) {
+            final int last = parts - 1;
+            final long lastEnd = partOffsets[last] + text.size() - partStarts[last];
+            if (textOffset < 0) {
+                textOffset = lastEnd;
+            }
+            if (partStarts[last] == text.size()) {
+                // Nothing in the previous part
+                parts--;
+            } else if (partClears[last] == clear && partSets[last] == set && lastEnd == textOffset) {
+                text.write(b, off, len);
+                return;
+            }
+        }
+        if (parts == partStarts.length) {
+            partStarts = Arrays.copyOf(partStarts, parts * 2);
+            partOffsets = Arrays.copyOf(partOffsets, parts * 2);
+            partClears = Arrays.copyOf(partClears, parts * 2);
+            partSets = Arrays.copyOf(partSets, parts * 2);
+        }
+        partStarts[parts] = text.size();
+        partOffsets[parts] = textOffset;
+        partClears[parts] = clear;
+        partSets[parts] = set;
+        parts++;
+        text.write(b, off, len);
+    }
+
+    @Override
+    public void note(byte[] b, int off, int len) {
+        // Console notes are not part of the text
+    }
+
+    @Override
+    public void sgr(int[] params, int count) {
+        final AnsiStyle.Change change = parser.getSgrChange();
+        apply(change != null ? change : AnsiStyle.Change.of(params, count));
+    }
+
+    private void apply(AnsiStyle.Change change) {
+        clear |= change.clear;
+        set = (set & ~change.clear) | change.set;
+    }
+
+    private void endLine() throws IOException {
+        if (parser.isInSequence()) {
+            // An unfinished sequence does not go on to the next line
+            parser.reset();
+        }
+        final byte[] b = text.toByteArray();
+        int length = b.length;
+        if (length > 0 && b[length - 1] == '\n') {
+            length--;
+            if (length > 0 && b[length - 1] == '\r') {
+                length--;
+            }
+        }
+        // The visible text, and where each part starts in it
+        final StringBuilder visible = new StringBuilder(length);
+        final int[] charStarts = new int[parts];
+        for (int i = 0; i < parts; i++) {
+            charStarts[i] = visible.length();
+            final int end = i + 1 < parts ? Math.min(partStarts[i + 1], length) : length;
+            if (partStarts[i] < end) {
+                visible.append(new String(b, partStarts[i], end - partStarts[i], StandardCharsets.UTF_8));
+            }
+        }
+        final Matcher matcher = pattern.matcher(new DeadlineCharSequence(visible, deadline));
+        while (hits < maxHits && find(matcher)) {
+            int part = 0;
+            while (part + 1 < parts && charStarts[part + 1] <= matcher.start()) {
+                part++;
+            }
+            final long matchOffset = parts == 0 ? lineStart
+                : partOffsets[part] + visible.substring(charStarts[part], matcher.start()).getBytes(StandardCharsets.UTF_8).length;
+            final String lineText = visible.length() > MAX_TEXT_CHARS ? visible.substring(0, MAX_TEXT_CHARS) : visible.toString();
+            hits++;
+            sink.hit(new Hit(line, lineStart, matchOffset, matcher.start(), matcher.end() - matcher.start(), lineText,
+                parts == 0 ? clear : partClears[part], parts == 0 ? set : partSets[part]));
+        }
+        text.reset();
+        parts = 0;
+        line++;
+        lineStart = offset;
+        // Concealing never lasts beyond the end of the line
+        clear |= AnsiStyle.CONCEAL;
+        set &= ~AnsiStyle.CONCEAL;
+    }
+
+    private static boolean find(Matcher matcher) throws IOException {
+        try {
+            return matcher.find();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Searches a log from its start.
+     *
+     * @return whether the search stopped at {@code maxHits}
+     */
+    static boolean search(InputStream log, Pattern pattern, long deadline, int maxHits, boolean complete, Sink sink) throws IOException {
+        final LogSearch search = new LogSearch(pattern, deadline, 0, Long.MAX_VALUE, maxHits, sink);
+        final byte[] buffer = new byte[65536];
+        int read;
+        while (!search.isDone() && (read = log.read(buffer)) >= 0) {
+            search.write(buffer, 0, read);
+        }
+        if (complete) {
+            search.finish();
+        }
+        return search.getHits() >= maxHits;
+    }
+
+    /**
+     * Searches a complete log in chunks of about {@code chunkBytes} bytes, up to {@code parallelism} at a time.
+     *
+     * @return whether the search stopped at {@code maxHits}
+     */
+    static boolean search(File log, Pattern pattern, long deadline, int maxHits, Sink sink, ExecutorService executor, int parallelism, long chunkBytes)
+            throws IOException, InterruptedException {
+        final long length = log.length();
+        final List<Future<Chunk>> pending = new ArrayList<>();
+        long next = 0;
+        long firstLine = 0;
+        long style = 0;
+        int found = 0;
+        while (found < maxHits && (next < length || !pending.isEmpty())) {
+            while (next < length && pending.size() < parallelism) {
+                final long start = next;
+                final long end = Math.min(length, start + chunkBytes);
+                pending.add(executor.submit(() -> Chunk.search(log, start, end, pattern, deadline, maxHits)));
+                next = end;
+            }
+            final Chunk chunk;
+            try {
+                chunk = pending.remove(0).get();
+            } catch (ExecutionException e) {
+                for (Future<Chunk> future : pending) {
+                    future.cancel(true);
+                }
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+            for (Hit hit : chunk.hits) {
+                if (found == maxHits) {
+                    break;
+                }
+                hit.resolve(firstLine, style);
+                sink.hit(hit);
+                found++;
+            }
+            firstLine += chunk.lines;
+            style = (style & ~chunk.clear) | chunk.set;
+        }
+        for (Future<Chunk> future : pending) {
+            future.cancel(true);
+        }
+        return found >= maxHits;
+    }
+
+    /**
+     * The hits in the lines which start within a part of the log.
+     */
+    private static final class Chunk {
+        private final List<Hit> hits = new ArrayList<>();
+        private long lines;
+        private long clear;
+        private long set;
+
+        static Chunk search(File log, long start, long end, Pattern pattern, long deadline, int maxHits) throws IOException {
+            final Chunk chunk = new Chunk();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(log), 65536)) {
+                long lineStart = 0;
+                if (start > 0) {
+                    // The line which goes on from the chunk before belongs to it
+                    lineStart = start - 1;
+                    if (in.skip(lineStart) != lineStart) {
+                        return chunk;
+                    }
+                    int b;
+                    while ((b = in.read()) >= 0) {
+                        lineStart++;
+                        if (b == '\n') {
+                            break;
+                        }
+                    }
+                }
+                if (lineStart >= end) {
+                    return chunk;
+                }
+                final LogSearch search = new LogSearch(pattern, deadline, lineStart, end, maxHits, chunk.hits::add);
+                final byte[] buffer = new byte[65536];
+                int read;
+                while (!search.isDone() && (read = in.read(buffer)) >= 0) {
+                    search.write(buffer, 0, read);
+                }
+                search.finish();
+                chunk.lines = search.getLines();
+                chunk.clear = search.getClear();
+                chunk.set = search.getSet();
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * The text of a line, which fails the search once the time is up while it is matched.
+     */
+    private static final class DeadlineCharSequence implements CharSequence {
+        private final CharSequence text;
+        private final long deadline;
+        private int reads;
+
+        DeadlineCharSequence(CharSequence text, long deadline) {
+            this.text = text;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (++reads % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0) {
+                throw new UncheckedIOException(new TimeoutException());
+            }
+            return text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new DeadlineCharSequence(text.subSequence(start, end), deadline);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes the plain text of a log, without escape sequences and console notes, or a range of it.
+ * <p>
+ * Between escape sequences the input is only scanned for the next escape character, and the plain text is written
+ * straight from the buffer it came in; only the sequences themselves are fed to the {@link AnsiParser}. Positions in
+ * the log at which no sequence is open may be recorded as {@link Checkpoints}, so that a range of the plain text can
+ * later be written by starting at the nearest checkpoint before it instead of at the start of the log.
+ */
+final class PlainTextOutputStream extends OutputStream implements AnsiParser.Listener {
+
+    /**
+     * The default minimum number of bytes of the log between two checkpoints.
+     */
+    static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
+    private static final byte ESC = 27;
+    // How much is fed to the parser at once after an escape character, before scanning for the next one again
+    private static final int SEQUENCE_STEP = 128;
+
+    private final OutputStream out;
+    private final AnsiParser parser = new AnsiParser(this, true);
+    private final long from;
+    private final long to;
+    @CheckForNull
+    private final Checkpoints checkpoints;
+    private long raw;
+    private long plain;
+
+    /**
+     * @param raw the offset into the log the stream starts at, which must not be within an escape sequence
+     * @param plain the offset into the plain text at {@code raw}
+     * @param from the offset into the plain text from which on it is written
+     * @param to the offset into the plain text up to which it is written
+     * @param checkpoints where to record checkpoints, if anywhere
+     */
+    PlainTextOutputStream(OutputStream out, long raw, long plain, long from, long to, @CheckForNull Checkpoints checkpoints) {
+        this.out = out;
+        this.raw = raw;
+        this.plain = plain;
+        this.from = from;
+        this.to = to;
+        this.checkpoints = checkpoints;
+    }
+
+    PlainTextOutputStream(OutputStream out) {
+        this(out, 0, 0, 0, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * @return whether all of the range was written, so that the rest of the log can be skipped
+     */
+    boolean isDone() {
+        return plain >= to;
+    }
+
+    /**
+     * @return the offset into the plain text of what was written so far, not counting an unfinished escape sequence
+     */
+    long getPlainOffset() {
+        return plain;
+    }
+
+    /**
+     * @return the offset into the log of what was written so far
+     */
+    long getRawOffset() {
+        return raw;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (!parser.isInSequence()) {
+                int esc = i;
+                while (esc < end && b[esc] != ESC) {
+                    esc++;
+                }
+                if (esc > i) {
+                    if (checkpoints != null) {
+                        checkpoints.offer(raw, plain);
+                    }
+                    raw += esc - i;
+                    text(b, i, esc - i);
+                    i = esc;
+                    continue;
+                }
+            }
+            final int stepEnd = (int) Math.min(end, (long) i + SEQUENCE_STEP);
+            // The raw offset is brought up to date first, as the text after the sequence is written during the parse
+            raw += stepEnd - i;
+            parser.parse(b, i, stepEnd - i);
+            i = stepEnd;
+        }
+    }
+
+    @Override
+    public void text(byte[] b, int off, int len) throws IOException {
+        final long start = Math.max(plain, from);
+        final long stop = Math.min(plain + len, to);
+        if (start < stop) {
+            out.write(b, off + (int) (start - plain), (int) (stop - start));
+        }
+        plain += len;
+    }
+
+    @Override
+    public void note(byte[] b, int off, int len) {
+        // Console notes are not part of the text
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Drops any unfinished escape sequence, leaving the underlying stream open.
+     */
+    @Override
+    public void close() {
+        parser.reset();
+    }
+
+    /**
+     * Positions in a log at which no escape sequence is open, along with the offset into the plain text there, and
+     * how far the log was read. As a log only grows, they stay valid while a run is building.
+     */
+    static final class Checkpoints {
+        private final long interval;
+        private long[] raw = new long[16];
+        private long[] plain = new long[16];
+        private int count = 1;
+        private long endRaw;
+        private long endPlain;
+
+        Checkpoints() {
+            this(CHECKPOINT_INTERVAL);
+        }
+
+        /**
+         * @param interval the minimum number of bytes of the log between two checkpoints
+         */
+        Checkpoints(long interval) {
+            this.interval = interval;
+        }
+
+        void offer(long rawOffset, long plainOffset) {
+            if (rawOffset - raw[count - 1] < interval) {
+                return;
+            }
+            if (count == raw.length) {
+                raw = Arrays.copyOf(raw, count * 2);
+                plain = Arrays.copyOf(plain, count * 2);
+            }
+            raw[count] = rawOffset;
+            plain[count] = plainOffset;
+            count++;
+        }
+
+        /**
+         * @return the index of the last checkpoint at or before {@code plainOffset}
+         */
+        int floor(long plainOffset) {
+            int i = Arrays.binarySearch(plain, 0, count, plainOffset);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return Math.max(i, 0);
+        }
+
+        int size() {
+            return count;
+        }
+
+        long getRaw(int i) {
+            return raw[i];
+        }
+
+        long getPlain(int i) {
+            return plain[i];
+        }
+
+        /**
+         * @return the offset into the log up to which it was read, see {@link #setEnd}
+         */
+        long getEndRaw() {
+            return endRaw;
+        }
+
+        /**
+         * @return the length of the plain text up to {@link #getEndRaw()}
+         */
+        long getEndPlain() {
+            return endPlain;
+        }
+
+        /**
+         * Notes how far the log was read, after writing all of it through a {@link PlainTextOutputStream} which
+         * started at the last checkpoint.
+         */
+        void setEnd(long rawOffset, long plainOffset) {
+            endRaw = rawOffset;
+            endPlain = plainOffset;
+        }
+    }
+}
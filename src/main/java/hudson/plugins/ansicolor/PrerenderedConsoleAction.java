@@ -0,0 +1,640 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.console.ConsoleAnnotationOutputStream;
+import hudson.console.ConsoleAnnotator;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.remoting.ClassFilter;
+import hudson.remoting.ObjectInputStreamEx;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.RunAction2;
+import jenkins.model.TransientActionFactory;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the console of a run from an {@link HtmlSidecar}, which is rendered once while the run is building, instead
+ * of annotating the new lines again for each viewer on each poll.
+ * <p>
+ * The action is added to each run by {@link Factory}, and shown while any of the renderings below is enabled, so that it
+ * goes away with them without rewriting the runs. When {@link AnsiColorBuildWrapper.DescriptorImpl#isPrerenderConsole()}
+ * is set, a running build gets a {@link Follower} once it is first viewed here, which renders the log with all console
+ * annotators, just like the console page would, every {@value #PROP_INTERVAL_MILLIS} milliseconds, until the build
+ * completes. Consoles are rendered on a few threads of their own, see {@value #PROP_RENDER_THREADS}, rather than on the
+ * timer shared by all of Jenkins. Viewers of the action's page poll {@link #doProgressiveHtml} with the same protocol as
+ * the console page. Whatever is not covered by the sidecar, for example because Jenkins was restarted while the run was
+ * building, is annotated on request as usual. The sidecar is deleted once the build is finalized.
+ * <p>
+ * When {@link AnsiColorBuildWrapper.DescriptorImpl#getRenderedCacheMB()} is set, the console of each run which
+ * completes is also rendered into an {@link HtmlCache}, from which this action serves it from then on. A run which is
+ * viewed here without a usable rendering, for example as it completed before the cache was enabled, is rendered in the
+ * background for the next time.
+ * <p>
+ * When the {@link RenderedChunkCache} is enabled, whatever is not covered by the sidecar is rendered in chunks which are
+ * shared by all viewers who poll the same part of the log with the same state of the console annotators.
+ * <p>
+ * All of these renderings have full colors. Viewers whose browser colors the console, see
+ * {@link ColorConsoleAnnotator#isColoredByBrowser}, are served the log annotated on request instead.
+ */
+public final class PrerenderedConsoleAction implements RunAction2 {
+
+    private static final Logger LOGGER = Logger.getLogger(PrerenderedConsoleAction.class.getName());
+
+    static final String PROP_INTERVAL_MILLIS = "hudson.plugins.ansicolor.PrerenderedConsoleAction.intervalMillis";
+    private static final long INTERVAL_MILLIS = Long.getLong(PROP_INTERVAL_MILLIS, 1000);
+    static final String PROP_RENDER_THREADS = "hudson.plugins.ansicolor.PrerenderedConsoleAction.renderThreads";
+    private static final int RENDER_THREADS = Math.max(1, Integer.getInteger(PROP_RENDER_THREADS, 2));
+    // The most of the log which is read at once; a longer line is broken there
+    static final String PROP_MAX_CHUNK_BYTES = "hudson.plugins.ansicolor.PrerenderedConsoleAction.maxChunkBytes";
+    private static final int MAX_CHUNK_BYTES = Math.max(1024, Integer.getInteger(PROP_MAX_CHUNK_BYTES, 1024 * 1024));
+
+    @CheckForNull
+    private static ScheduledExecutorService renderExecutor;
+
+    @CheckForNull
+    private static HtmlCache cache;
+    // The keys of the runs being rendered into the cache right now
+    private static final Set<String> CACHING = ConcurrentHashMap.newKeySet();
+    // The runs whose logs are being followed right now
+    private static final Map<Run<?, ?>, Follower> FOLLOWERS = new ConcurrentHashMap<>();
+    // So that concurrent viewers of the same chunk wait for a single rendering
+    private static final Object[] CHUNK_LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < CHUNK_LOCKS.length; i++) {
+            CHUNK_LOCKS[i] = new Object();
+        }
+    }
+
+    private transient Run<?, ?> run;
+    // Older versions saved the action with the run; those are left hidden, next to the one added by Factory
+    private transient boolean added;
+
+    PrerenderedConsoleAction(Run<?, ?> run) {
+        this.run = run;
+        this.added = true;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        run = r;
+    }
+
+    /**
+     * @return whether any of the renderings served by this action is enabled
+     */
+    private static boolean isEnabled() {
+        final AnsiColorBuildWrapper.DescriptorImpl descriptor = getDescriptor();
+        return descriptor.isPrerenderConsole() || descriptor.getRenderedCacheMB() > 0 || RenderedChunkCache.get() != null;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return added && isEnabled() ? "symbol-terminal" : null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.PrerenderedConsoleAction_DisplayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return added && isEnabled() ? "ansicolor-console" : null;
+    }
+
+    private HtmlSidecar getSidecar() {
+        return new HtmlSidecar(run.getRootDir());
+    }
+
+    /**
+     * Sends the HTML of the log from {@code start} on, and the offset to continue from in {@code X-Text-Size}, like
+     * {@link hudson.console.AnnotatedLargeText#doProgressiveHtml}.
+     */
+    public void doProgressiveHtml(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        if (ColorConsoleAnnotator.isColoredByBrowser(req)) {
+            run.getLogText().doProgressiveHtml(req, rsp);
+            return;
+        }
+        final long start = parseStart(req.getParameter("start"));
+        if (!run.isLogUpdated() && serveCached(start, rsp)) {
+            return;
+        }
+        final Follower follower = follow(run);
+        final HtmlSidecar sidecar = follower != null ? follower.sidecar : getSidecar();
+        final HtmlSidecar.Index index = follower != null || sidecar.exists() ? sidecar.getIndex() : null;
+        final long htmlStart = index != null ? index.htmlOffsetOf(start) : -1;
+        if (htmlStart < 0 || !index.isComplete() && start == index.getLogEnd() && !FOLLOWERS.containsKey(run)) {
+            // Not rendered, or no longer being rendered
+            if (!serveChunk(start, req, rsp)) {
+                run.getLogText().doProgressiveHtml(req, rsp);
+            }
+            return;
+        }
+        final boolean more = !index.isComplete() || run.isLogUpdated();
+        rsp.setContentType("text/html;charset=UTF-8");
+        rsp.setHeader("X-Text-Size", String.valueOf(index.getLogEnd()));
+        if (more) {
+            rsp.setHeader("X-More-Data", "true");
+        }
+        try (OutputStream out = rsp.getOutputStream()) {
+            sidecar.copyHtml(htmlStart, index.getHtmlEnd(), out);
+        }
+    }
+
+    /**
+     * Serves a completed run from the cache, or has it rendered for the next time.
+     *
+     * @return false if the run was not served
+     */
+    private boolean serveCached(long start, StaplerResponse2 rsp) throws IOException {
+        final HtmlCache cache = getCache();
+        if (cache == null) {
+            return false;
+        }
+        final String key = cacheKey(run);
+        final String fingerprint = getDescriptor().getRenderingFingerprint();
+        final HtmlCache.Entry entry = cache.get(key, fingerprint);
+        if (entry == null) {
+            renderLater(run, cache, fingerprint);
+            return false;
+        }
+        if (start != entry.getLogEnd() && entry.lineAt(start) < 0) {
+            return false;
+        }
+        rsp.setContentType("text/html;charset=UTF-8");
+        rsp.setHeader("X-Text-Size", String.valueOf(entry.getLogEnd()));
+        try (OutputStream out = rsp.getOutputStream()) {
+            entry.writeHtml(start, out);
+        }
+        return true;
+    }
+
+    /**
+     * Serves the log from the {@link RenderedChunkCache}, rendering the chunk first unless another viewer did. The
+     * state of the console annotators is passed in {@code X-ConsoleAnnotator} like on the console page, but as the
+     * digest of a state kept in the cache.
+     *
+     * @return false if the log was not served, as the cache is disabled or the state is unknown
+     */
+    private boolean serveChunk(long start, StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        final RenderedChunkCache chunks = RenderedChunkCache.get();
+        if (chunks == null) {
+            return false;
+        }
+        final String header = req.getHeader("X-ConsoleAnnotator");
+        final String state = header != null ? header : RenderedChunkCache.INITIAL_STATE;
+        if (state.equals(RenderedChunkCache.INITIAL_STATE) && start != 0) {
+            // Started elsewhere, for example on the sidecar
+            return false;
+        }
+        final String id = run.getExternalizableId();
+        RenderedChunkCache.Chunk chunk = chunks.get(id, start, state);
+        if (chunk == null) {
+            synchronized (CHUNK_LOCKS[Math.floorMod(Objects.hash(id, start, state), CHUNK_LOCKS.length)]) {
+                chunk = chunks.peek(id, start, state);
+                if (chunk == null) {
+                    chunk = renderChunk(chunks, id, start, state);
+                }
+            }
+            if (chunk == null) {
+                return false;
+            }
+        }
+        rsp.setContentType("text/html;charset=UTF-8");
+        rsp.setHeader("X-Text-Size", String.valueOf(chunk.getEnd()));
+        rsp.setHeader("X-ConsoleAnnotator", chunk.getEndState());
+        if (run.isLogUpdated() || chunk.getEnd() < run.getLogText().length()) {
+            rsp.setHeader("X-More-Data", "true");
+        }
+        try (OutputStream out = rsp.getOutputStream()) {
+            out.write(chunk.getHtml());
+        }
+        return true;
+    }
+
+    /**
+     * Renders the complete lines from {@code start} on, or the rest of the log once it is complete, up to
+     * {@value #PROP_MAX_CHUNK_BYTES}; the viewer fetches the rest with the next request. The chunk is shared by all
+     * viewers, so it is rendered with full colors and as an anonymous user, whoever asked for it first.
+     *
+     * @return null if the state is no longer cached
+     */
+    @CheckForNull
+    private RenderedChunkCache.Chunk renderChunk(RenderedChunkCache chunks, String id, long start, String state) throws IOException {
+        final ConsoleAnnotator<Object> annotator;
+        if (state.equals(RenderedChunkCache.INITIAL_STATE)) {
+            annotator = null;
+        } else {
+            final byte[] serialized = chunks.getState(state);
+            if (serialized == null) {
+                return null;
+            }
+            annotator = readAnnotator(serialized);
+        }
+        // Checked before reading, so that nothing written in between is missed
+        final boolean complete = !run.isLogUpdated();
+        final byte[] b;
+        try (InputStream in = run.getLogInputStream()) {
+            if (IOUtils.skip(in, start) != start) {
+                return RenderedChunkCache.Chunk.empty(start, state);
+            }
+            b = in.readNBytes(MAX_CHUNK_BYTES);
+        }
+        final boolean full = b.length == MAX_CHUNK_BYTES;
+        int length = b.length;
+        if (!complete || full) {
+            final int lines = completeLinesLength(b, length);
+            // A single line which fills the whole chunk is broken there
+            length = lines > 0 || !full ? lines : length;
+        }
+        if (length == 0) {
+            return RenderedChunkCache.Chunk.empty(start, state);
+        }
+        final ByteArrayOutputStream html = new ByteArrayOutputStream();
+        final Writer writer = new OutputStreamWriter(html, StandardCharsets.UTF_8);
+        final ConsoleAnnotationOutputStream<Object> annotated;
+        try (ACLContext ignored = ACL.as2(Jenkins.ANONYMOUS2)) {
+            annotated = annotator != null
+                ? new ConsoleAnnotationOutputStream<>(writer, annotator, run, StandardCharsets.UTF_8)
+                : newAnnotationStream(writer, (Object) run);
+            annotated.write(b, 0, length);
+            if (b[length - 1] != '\n') {
+                annotated.forceEol();
+            }
+            annotated.flush();
+        }
+        writer.flush();
+        return chunks.put(id, start, state, start + length, html.toByteArray(), writeAnnotator(annotated.getConsoleAnnotator()));
+    }
+
+    // Like the state passed along by the console page, but kept on the controller
+    private static byte[] writeAnnotator(ConsoleAnnotator<Object> annotator) throws IOException {
+        final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(serialized))) {
+            out.writeObject(annotator);
+        }
+        return serialized.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConsoleAnnotator<Object> readAnnotator(byte[] serialized) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStreamEx(new GZIPInputStream(new ByteArrayInputStream(serialized)),
+                Jenkins.get().pluginManager.uberClassLoader, ClassFilter.DEFAULT)) {
+            return (ConsoleAnnotator<Object>) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot restore the console annotators", e);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getRenderExecutor() {
+        if (renderExecutor == null) {
+            renderExecutor = Executors.newScheduledThreadPool(RENDER_THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), PrerenderedConsoleAction.class.getSimpleName() + ".render"));
+        }
+        return renderExecutor;
+    }
+
+    /**
+     * @return the length of the complete lines at the start of {@code b}, up to {@code length}
+     */
+    static int completeLinesLength(byte[] b, int length) {
+        while (length > 0 && b[length - 1] != '\n') {
+            length--;
+        }
+        return length;
+    }
+
+    private static AnsiColorBuildWrapper.DescriptorImpl getDescriptor() {
+        return Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+    }
+
+    /**
+     * @return the cache with the current quota, or null if there is none
+     */
+    @CheckForNull
+    private static synchronized HtmlCache getCache() {
+        final long maxBytes = getDescriptor().getRenderedCacheMB() * 1024L * 1024L;
+        if (cache == null) {
+            final File dir = new File(Jenkins.get().getRootDir(), "cache/ansicolor");
+            if (maxBytes == 0 && !dir.isDirectory()) {
+                return null;
+            }
+            // Created even without a quota to drop what was kept before
+            cache = new HtmlCache(dir, maxBytes);
+        } else {
+            cache.setMaxBytes(maxBytes);
+        }
+        return maxBytes > 0 ? cache : null;
+    }
+
+    private static String cacheKey(Run<?, ?> run) {
+        return Util.getDigestOf(run.getExternalizableId());
+    }
+
+    private static void renderLater(Run<?, ?> run, HtmlCache cache, String fingerprint) {
+        final String key = cacheKey(run);
+        if (!CACHING.add(key)) {
+            return;
+        }
+        getRenderExecutor().submit(() -> {
+            try {
+                render(run, cache.create(key, fingerprint));
+                LOGGER.log(Level.FINE, "Rendered the console of {0} into the cache", run);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not render the console of " + run + " into the cache", e);
+            } finally {
+                CACHING.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Renders the whole log of a completed run, ending a line of the entry at each line of the log.
+     */
+    private static void render(Run<?, ?> run, HtmlCache.Builder builder) throws IOException {
+        try (builder; InputStream in = run.getLogInputStream()) {
+            final Writer writer = new OutputStreamWriter(builder.html(), StandardCharsets.UTF_8);
+            final ConsoleAnnotationOutputStream<?> annotated = newAnnotationStream(writer, run);
+            final byte[] buffer = new byte[8192];
+            long logOffset = 0;
+            boolean partial = false;
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                int from = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        annotated.write(buffer, from, i + 1 - from);
+                        writer.flush();
+                        logOffset += i + 1 - from;
+                        builder.lineEnd(logOffset);
+                        from = i + 1;
+                    }
+                }
+                annotated.write(buffer, from, read - from);
+                logOffset += read - from;
+                partial = read > from;
+            }
+            if (partial) {
+                annotated.forceEol();
+                writer.flush();
+                builder.lineEnd(logOffset);
+            }
+            builder.commit(logOffset);
+        }
+    }
+
+    /**
+     * Starts annotating for any viewer: the annotators are created with full colors and for an anonymous user, so that
+     * the rendering does not depend on who is viewing, or on whether anybody is.
+     */
+    private static <T> ConsoleAnnotationOutputStream<T> newAnnotationStream(Writer writer, T context) {
+        ColorConsoleAnnotator.FULL_COLORS.set(true);
+        try (ACLContext ignored = ACL.as2(Jenkins.ANONYMOUS2)) {
+            return new ConsoleAnnotationOutputStream<>(writer, ConsoleAnnotator.initial(context), context, StandardCharsets.UTF_8);
+        } finally {
+            ColorConsoleAnnotator.FULL_COLORS.remove();
+        }
+    }
+
+    private static long parseStart(String start) {
+        try {
+            return start == null ? 0 : Long.parseLong(start);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Starts following a running build, unless it is followed already or rendering is disabled.
+     *
+     * @return the follower of the build, or null if there is none
+     */
+    @CheckForNull
+    private static synchronized Follower follow(Run<?, ?> run) {
+        Follower follower = FOLLOWERS.get(run);
+        if (follower == null && getDescriptor().isPrerenderConsole() && run.isLogUpdated()) {
+            try {
+                follower = new Follower(run);
+                follower.start();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot render the console of " + run + " in the background", e);
+                return null;
+            }
+        }
+        return follower;
+    }
+
+    /**
+     * Stops following a build, and deletes its sidecar.
+     */
+    private static synchronized void unfollow(Run<?, ?> run) {
+        final Follower follower = FOLLOWERS.get(run);
+        if (follower != null) {
+            follower.cancel();
+        }
+        try {
+            new HtmlSidecar(run.getRootDir()).delete();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not delete the rendered console of " + run, e);
+        }
+    }
+
+    /**
+     * Renders the complete lines appended to the log since it last ran, until the log is complete.
+     */
+    static final class Follower implements Runnable {
+        private final Run<?, ?> run;
+        private final HtmlSidecar sidecar;
+        private final CountingOutputStream html;
+        private final ConsoleAnnotationOutputStream<?> annotated;
+        private long logOffset;
+        // Grows up to MAX_CHUNK_BYTES to hold the longest line
+        private byte[] buffer = new byte[8192];
+        private ScheduledFuture<?> future;
+
+        Follower(Run<?, ?> run) throws IOException {
+            this.run = run;
+            this.sidecar = new HtmlSidecar(run.getRootDir());
+            this.html = new CountingOutputStream(sidecar.create());
+            final Writer writer = new OutputStreamWriter(html, StandardCharsets.UTF_8);
+            this.annotated = newAnnotationStream(writer, run);
+        }
+
+        synchronized void start() {
+            FOLLOWERS.put(run, this);
+            // Right away, as a viewer is waiting for it
+            future = getRenderExecutor().scheduleWithFixedDelay(this, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (FOLLOWERS.get(run) != this) {
+                return;
+            }
+            try {
+                // Checked before reading, so that nothing written in between is missed
+                final boolean complete = !run.isLogUpdated();
+                try (InputStream in = run.getLogInputStream()) {
+                    if (IOUtils.skip(in, logOffset) == logOffset) {
+                        renderTail(in, complete);
+                    }
+                }
+                if (complete) {
+                    stop();
+                    sidecar.complete();
+                    LOGGER.log(Level.FINE, "Rendered the console of {0}", run);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Stopped rendering the console of " + run + ", it is annotated on request instead", e);
+                stop();
+            }
+        }
+
+        /**
+         * Renders what was appended to the log, one buffer at a time, so that a long tail is never held in memory at
+         * once. Only complete lines are rendered until the log is complete, the rest is read again next time.
+         */
+        private void renderTail(InputStream in, boolean complete) throws IOException {
+            int held = 0;
+            while (true) {
+                final int available = held + in.readNBytes(buffer, held, buffer.length - held);
+                final boolean end = available < buffer.length;
+                int length = end && complete ? available : completeLinesLength(buffer, available);
+                if (length == 0 && !end) {
+                    if (buffer.length < MAX_CHUNK_BYTES) {
+                        buffer = Arrays.copyOf(buffer, Math.min(2 * buffer.length, MAX_CHUNK_BYTES));
+                        held = available;
+                        continue;
+                    }
+                    // A single line fills the whole buffer
+                    length = available;
+                }
+                if (length > 0) {
+                    annotated.write(buffer, 0, length);
+                    if (buffer[length - 1] != '\n') {
+                        annotated.forceEol();
+                    }
+                    annotated.flush();
+                    logOffset += length;
+                    sidecar.checkpoint(logOffset, html.getByteCount());
+                }
+                if (end) {
+                    return;
+                }
+                held = available - length;
+                System.arraycopy(buffer, length, buffer, 0, held);
+            }
+        }
+
+        /**
+         * Stops rendering, waiting for a rendering in progress.
+         */
+        synchronized void cancel() {
+            if (FOLLOWERS.get(run) == this) {
+                stop();
+            }
+        }
+
+        private void stop() {
+            FOLLOWERS.remove(run, this);
+            future.cancel(false);
+            try {
+                annotated.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not close the rendered console of " + run, e);
+            }
+        }
+    }
+
+    /**
+     * Adds the action to each run; it is only shown while one of the renderings is enabled.
+     */
+    @Extension
+    public static final class Factory extends TransientActionFactory<Run> {
+
+        @Override
+        public Class<Run> type() {
+            return Run.class;
+        }
+
+        @NonNull
+        @Override
+        public Collection<? extends Action> createFor(@NonNull Run target) {
+            return Collections.singleton(new PrerenderedConsoleAction(target));
+        }
+    }
+
+    /**
+     * Deletes the sidecar of each completed run, and renders it into the cache, if enabled.
+     */
+    @Extension
+    public static final class Listener extends RunListener<Run<?, ?>> {
+
+        // Once the log is closed
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            unfollow(run);
+            final HtmlCache cache = getCache();
+            if (cache != null) {
+                renderLater(run, cache, getDescriptor().getRenderingFingerprint());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            unfollow(run);
+            final HtmlCache cache = getCache();
+            if (cache != null) {
+                cache.remove(cacheKey(run));
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package hudson.plugins.ansicolor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Drops the overwritten frames of progress lines before they are written to the log.
+ * <p>
+ * A carriage return which is not part of a line break starts a new frame of the line, which overwrites the previous
+ * one; together with {@code ESC[K} that is how progress bars redraw themselves. The bytes of the current line are held
+ * back until its line break, and each new frame replaces the held back bytes, so only the last frame is written. What
+ * the dropped frames did to the log is kept though: their console notes are written before the last frame, and so is
+ * an SGR sequence for the style they left behind. The held back bytes are written as soon as the stream is flushed, so
+ * the log stays live: of a progress line that is its latest frame, which the next one overwrites. Frames drawn between
+ * two flushes are dropped, and a single frame is only held back up to {@value #MAX_LINE} bytes.
+ */
+final class ProgressCompactingOutputStream extends FilterOutputStream implements AnsiParser.Listener {
+
+    static final int MAX_LINE = 64 * 1024;
+
+    private final AnsiParser parser = new AnsiParser(this, true);
+    // The bytes of the current line which have not been written yet
+    private byte[] line = new byte[256];
+    private int lineLength;
+    // The console notes among them, which are kept when a frame is dropped
+    private byte[] notes = new byte[0];
+    private int notesLength;
+    private final AnsiStyle style = new AnsiStyle();
+    // The style at the start of the held back bytes
+    private final AnsiStyle writtenStyle = new AnsiStyle();
+    // Whether some of the current line was already written
+    private boolean partial;
+    private boolean pendingCr;
+
+    ProgressCompactingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        parser.parse(b);
+        limitHeldBack();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        parser.parse(b, off, len);
+        limitHeldBack();
+    }
+
+    @Override
+    public void text(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int from = off;
+        for (int i = off; i < end; i++) {
+            final byte c = b[i];
+            if (c != '\r' && c != '\n') {
+                continue;
+            }
+            if (i > from) {
+                resolvePendingCr();
+                append(b, from, i - from);
+            }
+            if (c == '\n') {
+                if (pendingCr) {
+                    pendingCr = false;
+                    appendByte('\r');
+                }
+                appendByte('\n');
+                writeLine();
+            } else {
+                // Consecutive carriage returns start a single frame
+                pendingCr = true;
+            }
+            from = i + 1;
+        }
+        if (end > from) {
+            resolvePendingCr();
+            append(b, from, end - from);
+        }
+    }
+
+    @Override
+    public void note(byte[] b, int off, int len) throws IOException {
+        resolvePendingCr();
+        append(b, off, len);
+        if (notesLength + len > notes.length) {
+            notes = Arrays.copyOf(notes, Math.max(2 * notes.length, notesLength + len));
+        }
+        System.arraycopy(b, off, notes, notesLength, len);
+        notesLength += len;
+    }
+
+    @Override
+    public void sgr(int[] params, int count) throws IOException {
+        resolvePendingCr();
+        final AnsiStyle.Change change = parser.getSgrChange();
+        style.apply(change != null ? change : AnsiStyle.Change.of(params, count));
+        appendSequence();
+    }
+
+    @Override
+    public void cursor(int command, int[] params, int count) throws IOException {
+        appendSequence();
+    }
+
+    @Override
+    public void osc(int command, String param) throws IOException {
+        appendSequence();
+    }
+
+    @Override
+    public void charset(int set, char seq) throws IOException {
+        appendSequence();
+    }
+
+    @Override
+    public void unknown(int command, int[] params, int count) throws IOException {
+        appendSequence();
+    }
+
+    /**
+     * Passes the sequence being dispatched on as it is.
+     */
+    private void appendSequence() throws IOException {
+        resolvePendingCr();
+        final char[] sequence = parser.getSequence();
+        final int length = parser.getSequenceLength();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            line[lineLength++] = (byte) sequence[i];
+        }
+    }
+
+    /**
+     * A carriage return followed by anything but a line feed starts a new frame.
+     */
+    private void resolvePendingCr() {
+        if (!pendingCr) {
+            return;
+        }
+        pendingCr = false;
+        lineLength = 0;
+        if (partial) {
+            // Overwrite what was already written
+            appendByte('\r');
+        }
+        append(notes, 0, notesLength);
+        if (style.getStyle() != writtenStyle.getStyle() || style.getOrder() != writtenStyle.getOrder()) {
+            final byte[] sgr = style.toSgr().getBytes(StandardCharsets.US_ASCII);
+            append(sgr, 0, sgr.length);
+        }
+    }
+
+    private void append(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, line, lineLength, len);
+        lineLength += len;
+    }
+
+    private void appendByte(int b) {
+        ensureCapacity(1);
+        line[lineLength++] = (byte) b;
+    }
+
+    private void ensureCapacity(int len) {
+        if (lineLength + len > line.length) {
+            line = Arrays.copyOf(line, Math.max(2 * line.length, lineLength + len));
+        }
+    }
+
+    private void writeLine() throws IOException {
+        writeHeldBack();
+        partial = false;
+    }
+
+    private void writeHeldBack() throws IOException {
+        out.write(line, 0, lineLength);
+        lineLength = 0;
+        notesLength = 0;
+        writtenStyle.set(style.getStyle(), style.getOrder());
+        if (line.length > MAX_LINE) {
+            line = new byte[256];
+            notes = new byte[0];
+        }
+    }
+
+    private void writePartial() throws IOException {
+        writeHeldBack();
+        partial = true;
+    }
+
+    private void limitHeldBack() throws IOException {
+        if (lineLength > MAX_LINE) {
+            writePartial();
+        }
+    }
+
+    /**
+     * Writes the held back part of the current line, which for a progress line is its latest frame.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (lineLength > 0) {
+            writePartial();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (pendingCr) {
+                pendingCr = false;
+                appendByte('\r');
+            }
+            if (parser.isInSequence()) {
+                // An unfinished escape sequence is kept as it is
+                appendSequence();
+                // So is the start of a console note preamble, which the parser holds back on its own
+                final byte[] amble = parser.getPartialAmble();
+                append(amble, 0, amble.length);
+                parser.reset();
+            }
+            writeLine();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional memo of the HTML {@link PrerenderedConsoleAction} renders for the viewers of a running build, so that a piece
+ * of the log which is polled by many viewers is annotated once.
+ * <p>
+ * Chunks are keyed by the run, the offset into the log they start at and the state of the console annotators there,
+ * and hold the HTML up to the end of the last complete line at the time, with the offset and state at their end. The
+ * states themselves are kept here too, serialized, and handed to viewers by a digest, so the next chunk of a viewer
+ * who got a cached chunk is the same for all viewers who follow the same chain. The cache is a least recently used map
+ * bounded by its memory use, which is set in KB by the system property {@value #PROP_MAX_KB}. It is disabled by
+ * default; hit rates, and how much of the log was not annotated again thanks to it, are logged at level {@code FINE}.
+ */
+final class RenderedChunkCache {
+
+    private static final Logger LOGGER = Logger.getLogger(RenderedChunkCache.class.getName());
+
+    static final String PROP_MAX_KB = "hudson.plugins.ansicolor.RenderedChunkCache.maxKB";
+
+    /**
+     * The state of the console annotators at the start of a log, before any line was annotated.
+     */
+    static final String INITIAL_STATE = "";
+
+    private static final int REPORT_INTERVAL = 10_000;
+
+    // Rough per object overhead, only used to estimate the memory use.
+    private static final int ENTRY_OVERHEAD = 160;
+
+    @CheckForNull
+    private static final RenderedChunkCache INSTANCE = create(Integer.getInteger(PROP_MAX_KB, 0));
+
+    private final long maxBytes;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long savedLogBytes;
+    private long evictions;
+    // Chunks by ChunkKey and serialized states by their digest
+    private final LinkedHashMap<Object, Sized> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    RenderedChunkCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    @CheckForNull
+    private static RenderedChunkCache create(int maxKB) {
+        if (maxKB <= 0) {
+            return null;
+        }
+        LOGGER.log(Level.CONFIG, "Caching rendered chunks of running builds in up to {0} KB", maxKB);
+        return new RenderedChunkCache(maxKB * 1024L);
+    }
+
+    /**
+     * @return the cache, or null if it is disabled
+     */
+    @CheckForNull
+    static RenderedChunkCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Looks up a chunk, counting a hit or a miss.
+     *
+     * @param run the externalizable id of the run
+     * @param state the digest of the state of the console annotators at {@code start}, or {@link #INITIAL_STATE}
+     */
+    @CheckForNull
+    synchronized Chunk get(String run, long start, String state) {
+        final Chunk chunk = peek(run, start, state);
+        if (chunk != null) {
+            hits++;
+            savedLogBytes += chunk.end - start;
+        } else {
+            misses++;
+        }
+        if ((hits + misses) % REPORT_INTERVAL == 0) {
+            LOGGER.fine(this::toString);
+        }
+        return chunk;
+    }
+
+    /**
+     * Looks up a chunk without counting it.
+     */
+    @CheckForNull
+    synchronized Chunk peek(String run, long start, String state) {
+        return (Chunk) entries.get(new ChunkKey(run, start, state));
+    }
+
+    /**
+     * @return a serialized state the cache handed out, or null if it was evicted
+     */
+    @CheckForNull
+    synchronized byte[] getState(String state) {
+        final Sized entry = entries.get(state);
+        return entry != null ? ((State) entry).serialized : null;
+    }
+
+    /**
+     * Adds a chunk, and the state at its end.
+     *
+     * @param endState the serialized state of the console annotators at {@code end}
+     * @return the chunk
+     */
+    synchronized Chunk put(String run, long start, String state, long end, byte[] html, byte[] endState) {
+        final String endStateDigest = digest(endState);
+        final Chunk chunk = new Chunk(end, html, endStateDigest);
+        add(new ChunkKey(run, start, state), chunk);
+        add(endStateDigest, new State(endState));
+        return chunk;
+    }
+
+    private void add(Object key, Sized entry) {
+        final Sized previous = entries.put(key, entry);
+        bytes += entry.size() - (previous != null ? previous.size() : 0);
+        for (Iterator<Sized> it = entries.values().iterator(); bytes > maxBytes && it.hasNext(); ) {
+            final Sized eldest = it.next();
+            if (eldest == entry) {
+                // Keep what was just added, even if it is too big on its own
+                continue;
+            }
+            bytes -= eldest.size();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static String digest(byte[] state) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(state));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getSavedLogBytes() {
+        return savedLogBytes;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long lookups = hits + misses;
+        return String.format("RenderedChunkCache{entries=%d, bytes=%d/%d, hits=%d, misses=%d, hitRate=%.1f%%, savedLogBytes=%d, evictions=%d}",
+            entries.size(), bytes, maxBytes, hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, savedLogBytes, evictions);
+    }
+
+    private interface Sized {
+        long size();
+    }
+
+    private static final class ChunkKey {
+        private final String run;
+        private final long start;
+        private final String state;
+        private final int hash;
+
+        ChunkKey(String run, long start, String state) {
+            this.run = run;
+            this.start = start;
+            this.state = state;
+            this.hash = Objects.hash(run, start, state);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ChunkKey)) {
+                return false;
+            }
+            final ChunkKey key = (ChunkKey) o;
+            return hash == key.hash && start == key.start && run.equals(key.run) && state.equals(key.state);
+        }
+    }
+
+    /**
+     * The HTML of the log from the start of a chunk to {@link #getEnd()}.
+     */
+    static final class Chunk implements Sized {
+        private final long end;
+        private final byte[] html;
+        private final String endState;
+
+        private Chunk(long end, byte[] html, String endState) {
+            this.end = end;
+            this.html = html;
+            this.endState = endState;
+        }
+
+        /**
+         * @return a chunk which is not cached as it holds nothing, so that it may not be served once there is more
+         */
+        static Chunk empty(long start, String state) {
+            return new Chunk(start, new byte[0], state);
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        byte[] getHtml() {
+            return html;
+        }
+
+        /**
+         * @return the digest of the state at the end, to look up the next chunk with
+         */
+        String getEndState() {
+            return endState;
+        }
+
+        @Override
+        public long size() {
+            return ENTRY_OVERHEAD + html.length + 2L * endState.length();
+        }
+    }
+
+    private static final class State implements Sized {
+        private final byte[] serialized;
+
+        State(byte[] serialized) {
+            this.serialized = serialized;
+        }
+
+        @Override
+        public long size() {
+            return ENTRY_OVERHEAD + serialized.length;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package hudson.plugins.ansicolor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rewrites escape sequences into the shortest form which is rendered the same, before they are written to the log.
+ * <p>
+ * SGR sequences are not written as they come, only the style they select is followed. When text which can show that
+ * style follows, a single SGR sequence is written, which turns the style last written into the current one. So
+ * consecutive sequences are merged, and resets or re-sets of the current style are dropped. Line breaks do not need a
+ * style, so sequences are also moved past them. Cursor movement, erase, charset and other unknown sequences render as
+ * nothing and are dropped; operating system commands and console notes are passed on as they are.
+ */
+final class SgrNormalizingOutputStream extends FilterOutputStream implements AnsiParser.Listener {
+
+    private final AnsiParser parser = new AnsiParser(this, true);
+    private final AnsiStyle style = new AnsiStyle();
+    private final AnsiStyle writtenStyle = new AnsiStyle();
+
+    SgrNormalizingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        parser.parse(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        parser.parse(b, off, len);
+    }
+
+    @Override
+    public void text(byte[] b, int off, int len) throws IOException {
+        if (style.getStyle() != writtenStyle.getStyle()) {
+            final int end = off + len;
+            int i = off;
+            while (i < end && (b[i] == '\r' || b[i] == '\n')) {
+                i++;
+            }
+            if (i == end) {
+                out.write(b, off, len);
+                return;
+            }
+            out.write(b, off, i - off);
+            writeStyle();
+            out.write(b, i, end - i);
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void note(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    @Override
+    public void sgr(int[] params, int count) {
+        final AnsiStyle.Change change = parser.getSgrChange();
+        style.apply(change != null ? change : AnsiStyle.Change.of(params, count));
+    }
+
+    @Override
+    public void osc(int command, String param) throws IOException {
+        writeSequence();
+    }
+
+    private void writeStyle() throws IOException {
+        out.write(style.toSgrFrom(writtenStyle).getBytes(StandardCharsets.US_ASCII));
+        writtenStyle.set(style.getStyle(), style.getOrder());
+    }
+
+    private void writeSequence() throws IOException {
+        final char[] sequence = parser.getSequence();
+        final int length = parser.getSequenceLength();
+        final byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) sequence[i];
+        }
+        out.write(b);
+    }
+
+    /**
+     * Writes what the parser holds of an unfinished console note preamble, the current style if it was not written yet,
+     * so that the log ends in the same style, and any unfinished escape sequence as it is.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            parser.endInput();
+            if (style.getStyle() != writtenStyle.getStyle()) {
+                writeStyle();
+            }
+            if (parser.isInSequence()) {
+                writeSequence();
+                parser.reset();
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
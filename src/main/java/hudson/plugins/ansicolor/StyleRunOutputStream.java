@@ -0,0 +1,243 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the lines of a log as JSON, each as its plain text and the runs of text in a style other than the default.
+ * <p>
+ * Each line is an object with its {@code text}, without escape sequences, console notes and the line break, and unless
+ * all of it is in the default style, its {@code runs}: arrays of the start and end of the run in UTF-16 code units,
+ * the foreground and background color, each {@code null} for the default color, a palette index or an
+ * {@code #RRGGBB} string, and the attributes as the bits of {@link AnsiStyle#getStyle()} below the colors. Lines are
+ * written until they cover the given number of bytes, the rest is ignored, so that the log is read in pages.
+ */
+final class StyleRunOutputStream extends OutputStream implements AnsiParser.Listener {
+
+    private static final long ATTRIBUTES = (1L << AnsiStyle.FG_SHIFT) - 1;
+
+    private final JsonWriter json;
+    private final long maxBytes;
+    private final AnsiParser parser = new AnsiParser(this, true);
+    private final AnsiStyle style;
+    private final AnsiStyle lineEndStyle = new AnsiStyle();
+    private final long start;
+    private long lineEnd;
+    private long offset;
+
+    // The text of the current line, and where each part in another style starts
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private int[] partStarts = new int[8];
+    private long[] partStyles = new long[8];
+    private int parts;
+
+    /**
+     * @param start the offset into the log the stream starts at
+     * @param style the style at {@code start}, followed as the log is written
+     * @param maxBytes the number of bytes after which no more lines are written
+     */
+    StyleRunOutputStream(JsonWriter json, long start, AnsiStyle style, long maxBytes) {
+        this.json = json;
+        this.start = start;
+        this.lineEnd = start;
+        this.offset = start;
+        this.style = style;
+        this.lineEndStyle.set(style.getStyle(), style.getOrder());
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return whether enough lines were written, so that the rest is ignored
+     */
+    boolean isFull() {
+        return lineEnd - start >= maxBytes;
+    }
+
+    /**
+     * @return the offset into the log after the last line written
+     */
+    long getLineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * @return the style at {@link #getLineEnd()}
+     */
+    AnsiStyle getLineEndStyle() {
+        return lineEndStyle;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int from = off;
+        while (from < end && !isFull()) {
+            int to = from;
+            while (to < end && b[to] != '\n') {
+                to++;
+            }
+            if (to == end) {
+                parser.parse(b, from, to - from);
+                offset += to - from;
+                return;
+            }
+            parser.parse(b, from, to + 1 - from);
+            offset += to + 1 - from;
+            writeLine();
+            from = to + 1;
+        }
+    }
+
+    /**
+     * Writes the last line, if it was not ended by a line break yet.
+     */
+    void finish() throws IOException {
+        if (!isFull() && offset > lineEnd) {
+            writeLine();
+        }
+    }
+
+    @Override
+    public void text(byte[] b, int off, int len) {
+        if (parts > 0 && partStarts[parts - 1] == line.size()) {
+            // Nothing in the previous style
+            parts--;
+        }
+        if (parts == 0 || partStyles[parts - 1] != style.getStyle()) {
+            if (parts == partStarts.length) {
+                partStarts = Arrays.copyOf(partStarts, parts * 2);
+                partStyles = Arrays.copyOf(partStyles, parts * 2);
+            }
+            partStarts[parts] = line.size();
+            partStyles[parts] = style.getStyle();
+            parts++;
+        }
+        line.write(b, off, len);
+    }
+
+    @Override
+    public void note(byte[] b, int off, int len) {
+        // Console notes are not part of the text
+    }
+
+    @Override
+    public void sgr(int[] params, int count) {
+        final AnsiStyle.Change change = parser.getSgrChange();
+        style.apply(change != null ? change : AnsiStyle.Change.of(params, count));
+    }
+
+    private void writeLine() throws IOException {
+        if (parser.isInSequence()) {
+            // An unfinished sequence does not go on to the next line
+            parser.reset();
+        }
+        final byte[] b = line.toByteArray();
+        int length = b.length;
+        if (length > 0 && b[length - 1] == '\n') {
+            length--;
+            if (length > 0 && b[length - 1] == '\r') {
+                length--;
+            }
+        }
+        final StringBuilder text = new StringBuilder(length);
+        boolean styled = false;
+        for (int i = 0; i < parts; i++) {
+            final int end = i + 1 < parts ? Math.min(partStarts[i + 1], length) : length;
+            if (partStarts[i] < end) {
+                text.append(new String(b, partStarts[i], end - partStarts[i], StandardCharsets.UTF_8));
+                styled |= partStyles[i] != 0;
+            }
+        }
+        json.beginObject().name("text").value(text.toString());
+        if (styled) {
+            json.name("runs").beginArray();
+            int position = 0;
+            for (int i = 0; i < parts; i++) {
+                final int end = i + 1 < parts ? Math.min(partStarts[i + 1], length) : length;
+                if (partStarts[i] >= end) {
+                    continue;
+                }
+                final int runLength = new String(b, partStarts[i], end - partStarts[i], StandardCharsets.UTF_8).length();
+                if (partStyles[i] != 0) {
+                    json.beginArray().value(position).value(position + runLength);
+                    writeStyle(json, partStyles[i]);
+                    json.endArray();
+                }
+                position += runLength;
+            }
+            json.endArray();
+        }
+        json.endObject();
+        line.reset();
+        parts = 0;
+        lineEnd = offset;
+        // Concealing never lasts beyond the end of the line
+        lineEndStyle.set(style.getStyle() & ~AnsiStyle.CONCEAL, style.getOrder());
+        style.set(lineEndStyle.getStyle(), lineEndStyle.getOrder());
+    }
+
+    /**
+     * Writes the foreground and background color and the attributes of a style, as in the runs.
+     */
+    static void writeStyle(JsonWriter json, long style) throws IOException {
+        writeColor(json, style >>> AnsiStyle.FG_SHIFT);
+        writeColor(json, style >>> AnsiStyle.BG_SHIFT);
+        json.value(style & ATTRIBUTES);
+    }
+
+    private static void writeColor(JsonWriter json, long field) throws IOException {
+        final int color = (int) field & ((1 << 26) - 1);
+        final int value = color & 0xFFFFFF;
+        if ((color & AnsiStyle.COLOR_RGB) != 0) {
+            json.value(String.format("#%06X", value));
+        } else if ((color & AnsiStyle.COLOR_PALETTE) != 0) {
+            json.value(value);
+        } else {
+            json.nullValue();
+        }
+    }
+
+    /**
+     * @return the style as a string to continue from, see {@link #parseStyle(String)}
+     */
+    static String formatStyle(AnsiStyle style) {
+        return Long.toHexString(style.getStyle()) + "." + Long.toHexString(style.getOrder());
+    }
+
+    /**
+     * @return the style formatted by {@link #formatStyle(AnsiStyle)}, or null if it is malformed
+     */
+    @CheckForNull
+    static AnsiStyle parseStyle(String s) {
+        final int dot = s.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        final long styleBits;
+        final long order;
+        try {
+            styleBits = Long.parseUnsignedLong(s.substring(0, dot), 16);
+            order = Long.parseUnsignedLong(s.substring(dot + 1), 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if ((styleBits & ~AnsiStyle.ALL) != 0) {
+            return null;
+        }
+        for (int position = 0, slot; (slot = AnsiStyle.slotAt(order, position)) >= 0; position++) {
+            if (slot >= AnsiStyle.SLOT_MASKS.length) {
+                return null;
+            }
+        }
+        return new AnsiStyle(styleBits, order);
+    }
+}
@@ -0,0 +1,163 @@
+package hudson.plugins.ansicolor;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderProperty;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderPropertyDescriptor;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.console.ConsoleLogFilter;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.ItemGroup;
+import hudson.model.Queue;
+import hudson.model.Run;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.log.TaskListenerDecorator;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Strips escape sequences from the logs of builds which do not use colors.
+ * <p>
+ * Freestyle builds without {@link AnsiColorBuildWrapper} are stripped if enabled by
+ * {@link AnsiColorBuildWrapper.DescriptorImpl#isStripUncoloredBuilds()} or by a {@link FolderPropertyImpl} of a folder
+ * they are in. Pipeline builds are stripped only if enabled by a {@link FolderPropertyImpl}: whether the output of a step
+ * is colored depends on the {@code ansiColor} blocks around it, which a decorator of the whole build cannot tell, so
+ * the property declares that the builds of the folder do not use colors at all.
+ */
+public final class UncoloredLogStripping {
+
+    private static final Logger LOGGER = Logger.getLogger(UncoloredLogStripping.class.getName());
+
+    private UncoloredLogStripping() {
+    }
+
+    /**
+     * @return whether a global color map is set, which colors all builds, so that nothing is stripped
+     */
+    private static boolean isColoredGlobally() {
+        return Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).getGlobalColorMapName() != null;
+    }
+
+    /**
+     * @return whether a folder the build is in has stripping enabled
+     */
+    private static boolean isEnabledByFolder(@NonNull Run<?, ?> build) {
+        return Jenkins.get().getPlugin("cloudbees-folder") != null && FolderPropertyImpl.isEnabledFor(build);
+    }
+
+    /**
+     * Strips the logs of freestyle builds without {@link AnsiColorBuildWrapper}. Their output reaches the log on the
+     * controller, so that is where it is stripped. Not serializable, so that Pipeline builds leave it out.
+     */
+    @Extension
+    public static final class BuildLogFilter extends ConsoleLogFilter {
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public OutputStream decorateLogger(Run build, OutputStream logger) {
+            if (isColoredGlobally() || !(build.getParent() instanceof BuildableItemWithBuildWrappers)) {
+                return logger;
+            }
+            final BuildableItemWithBuildWrappers project = (BuildableItemWithBuildWrappers) build.getParent();
+            if (project.getBuildWrappersList().get(AnsiColorBuildWrapper.class) != null) {
+                return logger;
+            }
+            final boolean enabled = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).isStripUncoloredBuilds();
+            if (!enabled && !isEnabledByFolder(build)) {
+                return logger;
+            }
+            LOGGER.log(Level.FINE, "Stripping escape sequences from the log of {0}", build);
+            return new AnsiStrippingOutputStream(logger);
+        }
+    }
+
+    /**
+     * Strips the output of all steps of Pipeline builds in folders with stripping enabled. The decision depends on the
+     * folder of the build only, so it is the same for all steps. The decorator is sent along with the steps, so output
+     * from agents is stripped before it crosses the channel.
+     */
+    @Extension(optional = true)
+    public static final class PipelineDecoratorFactory implements TaskListenerDecorator.Factory {
+
+        @CheckForNull
+        @Override
+        public TaskListenerDecorator of(@NonNull FlowExecutionOwner owner) {
+            if (isColoredGlobally()) {
+                return null;
+            }
+            try {
+                final Queue.Executable executable = owner.getExecutable();
+                if (!(executable instanceof Run) || !isEnabledByFolder((Run<?, ?>) executable)) {
+                    return null;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cannot tell whether " + owner + " is stripped", e);
+                return null;
+            }
+            return new StrippingDecorator();
+        }
+    }
+
+    static final class StrippingDecorator extends TaskListenerDecorator {
+        private static final long serialVersionUID = 1L;
+
+        @NonNull
+        @Override
+        public OutputStream decorate(@NonNull OutputStream logger) {
+            return new AnsiStrippingOutputStream(logger);
+        }
+    }
+
+    /**
+     * Enables stripping for the builds of a folder and of the folders within, see {@link UncoloredLogStripping}.
+     */
+    public static final class FolderPropertyImpl extends AbstractFolderProperty<AbstractFolder<?>> {
+
+        private boolean stripUncoloredBuilds;
+
+        @DataBoundConstructor
+        public FolderPropertyImpl() {
+        }
+
+        public boolean isStripUncoloredBuilds() {
+            return stripUncoloredBuilds;
+        }
+
+        @DataBoundSetter
+        public void setStripUncoloredBuilds(boolean stripUncoloredBuilds) {
+            this.stripUncoloredBuilds = stripUncoloredBuilds;
+        }
+
+        /**
+         * @return whether a folder the build is in, directly or not, has stripping enabled
+         */
+        static boolean isEnabledFor(@NonNull Run<?, ?> build) {
+            ItemGroup<?> group = build.getParent().getParent();
+            while (group instanceof AbstractFolder) {
+                final AbstractFolder<?> folder = (AbstractFolder<?>) group;
+                final FolderPropertyImpl property = folder.getProperties().get(FolderPropertyImpl.class);
+                if (property != null && property.isStripUncoloredBuilds()) {
+                    return true;
+                }
+                group = folder.getParent();
+            }
+            return false;
+        }
+
+        @Extension(optional = true)
+        public static final class DescriptorImpl extends AbstractFolderPropertyDescriptor {
+
+            @NonNull
+            @Override
+            public String getDisplayName() {
+                return Messages.UncoloredLogStripping_FolderPropertyImpl_DisplayName();
+            }
+        }
+    }
+}
@@ -1,18 +1,28 @@
 package hudson.plugins.ansicolor.action;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.MarkupText;
 import hudson.console.ConsoleAnnotator;
 import hudson.console.ConsoleNote;
 import hudson.model.Run;
 
+import java.lang.ref.WeakReference;
+
 /**
  * Marker note accompanying a ColorizedAction showing where an action needs to take place
  */
 public class ActionNote extends ConsoleNote<Run<?, ?>> {
+    // As computed for the fields and methods the note had before, so that the notes in existing logs can still be read
+    private static final long serialVersionUID = -5021312518855482745L;
+
     static final String TAG_ACTION_BEGIN = "<div style=\"display:none\" data-ansicolor-action=";
     private static final String TAG_ACTION_ID_TEMPLATE = "\"%s\"";
     static final String TAG_ACTION_END = "></div>";
 
+    // The first note on the line being annotated, as notes are annotated before the annotators of the console. The line
+    // is only weakly referenced, so that a pooled thread which annotates nothing more does not keep it.
+    private static final ThreadLocal<Noted> NOTED = new ThreadLocal<>();
+
     private final String actionId;
 
     public ActionNote(ColorizedAction action) {
@@ -22,6 +32,33 @@ public class ActionNote extends ConsoleNote<Run<?, ?>> {
     @Override
     public ConsoleAnnotator<Run<?, ?>> annotate(Run<?, ?> context, MarkupText text, int charPos) {
         text.addMarkup(charPos, TAG_ACTION_BEGIN + String.format(TAG_ACTION_ID_TEMPLATE, actionId) + TAG_ACTION_END);
+        final Noted noted = NOTED.get();
+        if (noted == null || noted.text.get() != text) {
+            NOTED.set(new Noted(actionId, text));
+        }
         return null;
     }
+
+    /**
+     * @return the id of the action whose note is on the line, or null if there is none
+     */
+    @CheckForNull
+    public static String takeActionId(MarkupText text) {
+        final Noted noted = NOTED.get();
+        if (noted == null) {
+            return null;
+        }
+        NOTED.remove();
+        return noted.text.get() == text ? noted.actionId : null;
+    }
+
+    private static final class Noted {
+        private final String actionId;
+        private final WeakReference<MarkupText> text;
+
+        Noted(String actionId, MarkupText text) {
+            this.actionId = actionId;
+            this.text = new WeakReference<>(text);
+        }
+    }
 }
@@ -0,0 +1,43 @@
+package hudson.plugins.ansicolor.action;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.InvisibleAction;
+import hudson.plugins.ansicolor.AnsiColorMap;
+import org.jenkinsci.plugins.workflow.actions.PersistentAction;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+
+/**
+ * Marks the start of the body of an {@code ansiColor} block with its color map, so that the log of a node can be
+ * colored by the block it is in, whatever runs in parallel to it.
+ */
+public class ColorMapAction extends InvisibleAction implements PersistentAction {
+
+    private final String colorMapName;
+
+    public ColorMapAction(String colorMapName) {
+        this.colorMapName = colorMapName == null || colorMapName.isEmpty() ? AnsiColorMap.DefaultName : colorMapName;
+    }
+
+    public String getColorMapName() {
+        return colorMapName;
+    }
+
+    /**
+     * @return the color map of the innermost {@code ansiColor} block the node is in, or null if it is in none
+     */
+    @CheckForNull
+    public static String find(FlowNode node) {
+        final ColorMapAction own = node.getPersistentAction(ColorMapAction.class);
+        if (own != null) {
+            return own.colorMapName;
+        }
+        for (BlockStartNode block : node.iterateEnclosingBlocks()) {
+            final ColorMapAction action = block.getPersistentAction(ColorMapAction.class);
+            if (action != null) {
+                return action.colorMapName;
+            }
+        }
+        return null;
+    }
+}
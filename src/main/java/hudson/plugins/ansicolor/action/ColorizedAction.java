@@ -31,6 +31,7 @@ import hudson.plugins.ansicolor.AnsiColorMap;
 
 import java.util.Optional;
 import java.util.UUID;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static hudson.plugins.ansicolor.action.ActionNote.TAG_ACTION_BEGIN;
@@ -41,6 +42,8 @@ import static hudson.plugins.ansicolor.action.ActionNote.TAG_ACTION_BEGIN;
 public class ColorizedAction extends InvisibleAction {
     private static final Logger LOGGER = Logger.getLogger(ColorizedAction.class.getName());
     private static final String TAG_PIPELINE_INTERNAL = "<span class=\"pipeline-new-node\"";
+    // How the lines which Pipeline marks with new nodes start, possibly after a timestamp
+    private static final String PIPELINE_PREFIX = "[Pipeline] ";
     static final ColorizedAction CONTINUE = new ColorizedAction("", Command.CONTINUE);
     static final ColorizedAction IGNORE = new ColorizedAction("", Command.IGNORE);
 
@@ -69,9 +72,13 @@ public class ColorizedAction extends InvisibleAction {
     }
 
     public ColorizedAction(String id, ColorizedAction other) {
+        this(id, other.colorMapName, other.command);
+    }
+
+    ColorizedAction(String id, String colorMapName, Command command) {
         this.id = id;
-        colorMapName = other.colorMapName;
-        command = other.command;
+        this.colorMapName = colorMapName;
+        this.command = command;
     }
 
     public String getId() {
@@ -92,15 +99,44 @@ public class ColorizedAction extends InvisibleAction {
         if (actionIdOffset != -1) {
             final int from = actionIdOffset + TAG_ACTION_BEGIN.length() + 1;
             final int to = line.indexOf("\"", from);
-            final String id = line.substring(from, to);
-            return run.getActions(ColorizedAction.class).stream().filter(a -> id.equals(a.getId())).findAny().orElse(CONTINUE);
+            return find(run, line.substring(from, to)).orElse(CONTINUE);
         }
         if (line.contains(TAG_PIPELINE_INTERNAL)) {
             return IGNORE;
         }
+        return current(run);
+    }
+
+    /**
+     * Like {@link #parseAction(MarkupText, Run)}, but takes the action from the {@link ActionNote} on the line, which
+     * is annotated before, instead of searching the markup of every line for it. Only the markup of lines written by
+     * Pipeline itself is searched, for the nodes it starts. On the first line, a shortlog action is looked for as by
+     * {@link #parseAction(String, long, Run, LineIdentifier)}, unless there is a note.
+     */
+    public static ColorizedAction parseNotedAction(MarkupText text, long lineNo, Run<?, ?> run, LineIdentifier lineIdentifier) {
+        final String id = ActionNote.takeActionId(text);
+        if (id != null) {
+            return find(run, id).orElse(CONTINUE);
+        }
+        if (lineNo == 1) {
+            return parseAction(text.getText(), lineNo, run, lineIdentifier);
+        }
+        if (text.getText().contains(PIPELINE_PREFIX) && text.toString(false).contains(TAG_PIPELINE_INTERNAL)) {
+            return IGNORE;
+        }
+        return current(run);
+    }
+
+    private static ColorizedAction current(Run<?, ?> run) {
         final boolean isBuilding = run.isBuilding();
-        LOGGER.fine("Run is building: " + isBuilding);
+        LOGGER.log(Level.FINE, "Run is building: {0}", isBuilding);
         if (isBuilding) {
+            final ColorizedActions actions = run.getAction(ColorizedActions.class);
+            if (actions != null) {
+                // Runs which keep their actions together have no CURRENT actions of their own
+                final ColorizedAction current = actions.getCurrent();
+                return current != null ? current : CONTINUE;
+            }
             Optional<ColorizedAction> currentAction = run.getActions(ColorizedAction.class).stream()
                 .filter(a -> Command.CURRENT.equals(a.getCommand()))
                 .findFirst();
@@ -112,6 +148,16 @@ public class ColorizedAction extends InvisibleAction {
     }
 
     public static ColorizedAction parseAction(String lineContent, long lineNo, Run<?, ?> run, LineIdentifier lineIdentifier) {
-        return run.getActions(ColorizedAction.class).stream().filter(a -> lineIdentifier.isEqual(lineContent, lineNo, a.id)).findAny().orElse(CONTINUE);
+        return find(run, lineIdentifier.hash(lineContent, lineNo)).orElse(CONTINUE);
+    }
+
+    private static Optional<ColorizedAction> find(Run<?, ?> run, String id) {
+        final ColorizedActions actions = run.getAction(ColorizedActions.class);
+        final ColorizedAction action = actions != null ? actions.get(id) : null;
+        if (action != null) {
+            return Optional.of(action);
+        }
+        // Added on their own by older versions
+        return run.getActions(ColorizedAction.class).stream().filter(a -> id.equals(a.getId())).findAny();
     }
 }
@@ -0,0 +1,175 @@
+package hudson.plugins.ansicolor.action;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@link ColorizedAction}s of a run, kept in a single action instead of one action each, so that a Pipeline which
+ * enters many {@code ansiColor} blocks does not make the run slow to load and to look actions up in.
+ * <p>
+ * The ids of the markers are kept sorted and looked up by binary search. Each marker takes an id, its command and the
+ * index of its color map, which are listed once. The color maps of the blocks which were started but not yet stopped
+ * take the place of the {@link ColorizedAction.Command#CURRENT} actions.
+ */
+public class ColorizedActions extends InvisibleAction {
+    private static final int COMMAND_BITS = 4;
+    private static final int COMMAND_MASK = (1 << COMMAND_BITS) - 1;
+    private static final ColorizedAction.Command[] COMMANDS = ColorizedAction.Command.values();
+
+    // Replaced as a whole on each change, so that a run saved meanwhile is saved consistently
+    private volatile State state = new State(new String[0], new String[0], new int[0], new int[0]);
+
+    /**
+     * @return the action of the run, which is added if there is none yet
+     */
+    public static ColorizedActions of(Run<?, ?> run) {
+        synchronized (ColorizedActions.class) {
+            ColorizedActions actions = run.getAction(ColorizedActions.class);
+            if (actions == null) {
+                actions = new ColorizedActions();
+                run.addAction(actions);
+            }
+            return actions;
+        }
+    }
+
+    /**
+     * @return the actions of the run, both those kept in this action and those added on their own by older versions
+     */
+    static List<ColorizedAction> getAll(Run<?, ?> run) {
+        final List<ColorizedAction> all = new ArrayList<>();
+        final ColorizedActions actions = run.getAction(ColorizedActions.class);
+        if (actions != null) {
+            all.addAll(actions.getActions());
+        }
+        all.addAll(run.getActions(ColorizedAction.class));
+        return all;
+    }
+
+    /**
+     * @return the color map of the first block the run started, or null if it started none
+     */
+    @CheckForNull
+    public static String getFirstColorMapName(Run<?, ?> run) {
+        final ColorizedActions actions = run.getAction(ColorizedActions.class);
+        if (actions != null) {
+            // Color maps are listed in the order they were first used, which is by a start
+            final String[] colorMapNames = actions.state.colorMapNames;
+            if (colorMapNames.length > 0) {
+                return colorMapNames[0];
+            }
+        }
+        for (ColorizedAction action : run.getActions(ColorizedAction.class)) {
+            if (action.getCommand() == ColorizedAction.Command.START) {
+                return action.getColorMapName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a marker, and starts or stops a block for {@link ColorizedAction.Command#START} and
+     * {@link ColorizedAction.Command#STOP}.
+     */
+    public synchronized void add(ColorizedAction action) {
+        final State s = state;
+        String[] colorMapNames = s.colorMapNames;
+        int colorMap = Arrays.asList(colorMapNames).indexOf(action.getColorMapName());
+        if (colorMap < 0) {
+            colorMap = colorMapNames.length;
+            colorMapNames = Arrays.copyOf(colorMapNames, colorMap + 1);
+            colorMapNames[colorMap] = action.getColorMapName();
+        }
+        String[] ids = s.ids;
+        int[] markers = s.markers.clone();
+        int i = Arrays.binarySearch(ids, action.getId());
+        if (i < 0) {
+            i = -i - 1;
+            ids = new String[s.ids.length + 1];
+            markers = new int[s.markers.length + 1];
+            System.arraycopy(s.ids, 0, ids, 0, i);
+            System.arraycopy(s.markers, 0, markers, 0, i);
+            System.arraycopy(s.ids, i, ids, i + 1, s.ids.length - i);
+            System.arraycopy(s.markers, i, markers, i + 1, s.markers.length - i);
+            ids[i] = action.getId();
+        }
+        markers[i] = colorMap << COMMAND_BITS | action.getCommand().ordinal();
+        int[] open = s.open;
+        if (action.getCommand() == ColorizedAction.Command.START) {
+            open = Arrays.copyOf(open, open.length + 1);
+            open[open.length - 1] = colorMap;
+        } else if (action.getCommand() == ColorizedAction.Command.STOP) {
+            for (int o = open.length - 1; o >= 0; o--) {
+                if (open[o] == colorMap) {
+                    final int[] stopped = new int[open.length - 1];
+                    System.arraycopy(open, 0, stopped, 0, o);
+                    System.arraycopy(open, o + 1, stopped, o, stopped.length - o);
+                    open = stopped;
+                    break;
+                }
+            }
+        }
+        state = new State(colorMapNames, ids, markers, open);
+    }
+
+    /**
+     * @return the marker with the given id, or null if there is none
+     */
+    @CheckForNull
+    public ColorizedAction get(String id) {
+        final State s = state;
+        final int i = Arrays.binarySearch(s.ids, id);
+        return i >= 0 ? s.toAction(i) : null;
+    }
+
+    /**
+     * @return a {@link ColorizedAction.Command#CURRENT} action with the color map of the innermost block which was
+     * started and not yet stopped, or null if there is none
+     */
+    @CheckForNull
+    public ColorizedAction getCurrent() {
+        final State s = state;
+        return s.open.length > 0 ? new ColorizedAction("", s.colorMapNames[s.open[s.open.length - 1]], ColorizedAction.Command.CURRENT) : null;
+    }
+
+    /**
+     * @return the markers, in the order of their ids
+     */
+    public List<ColorizedAction> getActions() {
+        final State s = state;
+        final List<ColorizedAction> actions = new ArrayList<>(s.ids.length);
+        for (int i = 0; i < s.ids.length; i++) {
+            actions.add(s.toAction(i));
+        }
+        return actions;
+    }
+
+    public int size() {
+        return state.ids.length;
+    }
+
+    private static final class State {
+        private final String[] colorMapNames;
+        // Sorted; the marker with each id is the index of its color map shifted by COMMAND_BITS, with the ordinal of its command
+        private final String[] ids;
+        private final int[] markers;
+        // The indexes of the color maps of the blocks which were started and not yet stopped, innermost last
+        private final int[] open;
+
+        State(String[] colorMapNames, String[] ids, int[] markers, int[] open) {
+            this.colorMapNames = colorMapNames;
+            this.ids = ids;
+            this.markers = markers;
+            this.open = open;
+        }
+
+        ColorizedAction toAction(int i) {
+            return new ColorizedAction(ids[i], colorMapNames[markers[i] >>> COMMAND_BITS], COMMANDS[markers[i] & COMMAND_MASK]);
+        }
+    }
+}
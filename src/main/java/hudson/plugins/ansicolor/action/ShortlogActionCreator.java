@@ -117,7 +117,7 @@ public class ShortlogActionCreator {
         public void onCompleted(Run<?, ?> run, @NonNull TaskListener listener) {
             super.onCompleted(run, listener);
             final List<ColorizedAction.Command> commands = Arrays.asList(ColorizedAction.Command.START, ColorizedAction.Command.STOP);
-            final Map<String, ColorizedAction> actions = run.getActions(ColorizedAction.class).stream()
+            final Map<String, ColorizedAction> actions = ColorizedActions.getAll(run).stream()
                 .filter(a -> commands.contains(a.getCommand()))
                 .collect(Collectors.toMap(a -> {
                     try {
@@ -0,0 +1,322 @@
+/*
+ * Colors the lines which ColorConsoleAnnotator left to the browser: elements with the class ansicolor-raw, whose text
+ * still holds the escape sequences. The color map is described by data attributes along with the first line, and the
+ * style is followed from line to line, like AnsiHtmlOutputStream does on the controller. Lines are colored in small
+ * batches while the browser is idle, so that a large console does not block the page, and new lines are picked up as
+ * they are appended to the console.
+ */
+(function () {
+  "use strict";
+
+  var BATCH_SIZE = 200;
+  var SEQUENCE = /\x1b(?:\[([0-9;:?<=>]*)[ -\/]*([@-~])|\][^\x07\x1b]*(?:\x07|\x1b\\)?|[@-Z\\-_]?)/g;
+
+  var colorMap = {
+    name: "xterm",
+    palette: [
+      "#000000", "#CD0000", "#00CD00", "#CDCD00", "#1E90FF", "#CD00CD", "#00CDCD", "#E5E5E5",
+      "#4C4C4C", "#FF0000", "#00FF00", "#FFFF00", "#4682B4", "#FF00FF", "#00FFFF", "#FFFFFF"
+    ],
+    defaultFg: null,
+    defaultBg: null,
+    collapse: false
+  };
+  var style = newStyle();
+  var scheduled = false;
+
+  function newStyle() {
+    return {
+      bold: false, faint: false, italic: false, underline: 0, strikeout: false, framed: false, overline: false,
+      inverse: false, conceal: false, fg: null, bg: null
+    };
+  }
+
+  function hex(n) {
+    return (n < 16 ? "0" : "") + n.toString(16).toUpperCase();
+  }
+
+  function rgb(r, g, b) {
+    return "#" + hex(r) + hex(g) + hex(b);
+  }
+
+  // Like AnsiHtmlOutputStream#getPaletteColor
+  function paletteColor(index) {
+    if (index < 16) {
+      return colorMap.palette[index];
+    }
+    if (index < 232) {
+      var c = index - 16;
+      var levels = [c / 36 | 0, (c / 6 | 0) % 6, c % 6].map(function (v) {
+        return v === 0 ? 0 : 55 + v * 40;
+      });
+      return rgb(levels[0], levels[1], levels[2]);
+    }
+    var gray = (index - 232) * 10 + 8;
+    return rgb(gray, gray, gray);
+  }
+
+  // Reads an extended color like 38;5;<index> or 38;2;<r>;<g>;<b> at params[i], returns [color, next index]
+  function extendedColor(params, i) {
+    if (params[i + 1] === 5 && params[i + 2] >= 0 && params[i + 2] <= 255) {
+      return [paletteColor(params[i + 2]), i + 3];
+    }
+    if (params[i + 1] === 2 && [2, 3, 4].every(function (k) { return params[i + k] >= 0 && params[i + k] <= 255; })) {
+      return [rgb(params[i + 2], params[i + 3], params[i + 4]), i + 5];
+    }
+    return [undefined, params.length];
+  }
+
+  function applySgr(text) {
+    var params = text === "" ? [0] : text.split(/[;:]/).map(function (p) {
+      return p === "" ? 0 : parseInt(p, 10);
+    });
+    for (var i = 0; i < params.length; i++) {
+      var p = params[i];
+      if (p === 0) {
+        style = newStyle();
+      } else if (p === 1) {
+        style.bold = true;
+      } else if (p === 2) {
+        style.faint = true;
+      } else if (p === 3) {
+        style.italic = true;
+      } else if (p === 4) {
+        style.underline = 1;
+      } else if (p === 7) {
+        style.inverse = true;
+      } else if (p === 8) {
+        style.conceal = true;
+      } else if (p === 9) {
+        style.strikeout = true;
+      } else if (p === 21) {
+        style.underline = 2;
+      } else if (p === 22) {
+        style.bold = style.faint = false;
+      } else if (p === 23) {
+        style.italic = false;
+      } else if (p === 24) {
+        style.underline = 0;
+      } else if (p === 27) {
+        style.inverse = false;
+      } else if (p === 28) {
+        style.conceal = false;
+      } else if (p === 29) {
+        style.strikeout = false;
+      } else if (p >= 30 && p <= 37) {
+        style.fg = colorMap.palette[p - 30];
+      } else if (p === 38 || p === 48) {
+        var color = extendedColor(params, i);
+        if (color[0] !== undefined) {
+          style[p === 38 ? "fg" : "bg"] = color[0];
+        }
+        i = color[1] - 1;
+      } else if (p === 39) {
+        style.fg = null;
+      } else if (p >= 40 && p <= 47) {
+        style.bg = colorMap.palette[p - 40];
+      } else if (p === 49) {
+        style.bg = null;
+      } else if (p === 51) {
+        style.framed = true;
+      } else if (p === 53) {
+        style.overline = true;
+      } else if (p === 54) {
+        style.framed = false;
+      } else if (p === 55) {
+        style.overline = false;
+      } else if (p >= 90 && p <= 97) {
+        style.fg = colorMap.palette[p - 90 + 8];
+      } else if (p >= 100 && p <= 107) {
+        style.bg = colorMap.palette[p - 100 + 8];
+      }
+    }
+  }
+
+  function isDefault() {
+    return !style.bold && !style.faint && !style.italic && !style.underline && !style.strikeout && !style.framed &&
+      !style.overline && !style.inverse && style.fg === null && style.bg === null;
+  }
+
+  // The text in the current style, like the elements AnsiHtmlOutputStream opens
+  function styled(text) {
+    var node = document.createTextNode(text);
+    if (isDefault()) {
+      return node;
+    }
+    var span = document.createElement("span");
+    var css = span.style;
+    var fg = style.fg;
+    var bg = style.bg;
+    if (style.inverse) {
+      fg = style.bg || colorMap.defaultBg || "var(--background)";
+      bg = style.fg || colorMap.defaultFg || "var(--text-color)";
+    }
+    if (fg !== null) {
+      css.color = fg;
+    }
+    if (bg !== null) {
+      css.backgroundColor = bg;
+    }
+    if (style.bold) {
+      css.fontWeight = "bold";
+    } else if (style.faint) {
+      css.fontWeight = "lighter";
+    }
+    if (style.italic) {
+      css.fontStyle = "italic";
+    }
+    var decorations = [];
+    if (style.underline === 1) {
+      decorations.push("underline");
+    } else if (style.underline === 2) {
+      css.borderBottom = "3px double";
+    }
+    if (style.strikeout) {
+      decorations.push("line-through");
+    }
+    if (style.overline) {
+      decorations.push("overline");
+    }
+    css.textDecoration = decorations.join(" ");
+    if (style.framed) {
+      css.border = "1px solid";
+    }
+    span.appendChild(node);
+    return span;
+  }
+
+  // Follows the style through text and returns its rendering, or just follows it if no fragment is given
+  function render(text, fragment) {
+    SEQUENCE.lastIndex = 0;
+    var from = 0;
+    var match;
+    while ((match = SEQUENCE.exec(text)) !== null) {
+      if (match.index > from && fragment && !style.conceal) {
+        fragment.appendChild(styled(text.substring(from, match.index)));
+      }
+      if (match[2] === "m") {
+        applySgr(match[1]);
+      }
+      from = SEQUENCE.lastIndex;
+    }
+    if (from < text.length && fragment && !style.conceal) {
+      fragment.appendChild(styled(text.substring(from)));
+    }
+  }
+
+  // Like ColorConsoleAnnotator.LineRenderer#lastFrameStart
+  function lastFrameStart(text) {
+    var end = text.length;
+    while (end > 0 && (text.charAt(end - 1) === "\n" || text.charAt(end - 1) === "\r")) {
+      end--;
+    }
+    return text.lastIndexOf("\r", end - 1) + 1;
+  }
+
+  function describe(line) {
+    var data = line.dataset;
+    if (data.palette) {
+      // Described again by each poll, the style goes on unless the color map changed
+      if (data.colorMap !== colorMap.name) {
+        style = newStyle();
+      }
+      colorMap = {
+        name: data.colorMap,
+        palette: data.palette.split("|"),
+        defaultFg: data.defaultFg || null,
+        defaultBg: data.defaultBg || null,
+        collapse: data.collapse === "true"
+      };
+    }
+  }
+
+  function colorLine(line) {
+    describe(line);
+    if (colorMap.defaultFg) {
+      line.style.color = colorMap.defaultFg;
+    }
+    if (colorMap.defaultBg) {
+      line.style.backgroundColor = colorMap.defaultBg;
+    }
+    var walker = document.createTreeWalker(line, NodeFilter.SHOW_TEXT);
+    var nodes = [];
+    while (walker.nextNode()) {
+      nodes.push(walker.currentNode);
+    }
+    nodes.forEach(function (node, i) {
+      var text = node.nodeValue;
+      if (text.indexOf("\x1b") === -1 && isDefault() && !style.conceal) {
+        return;
+      }
+      var fragment = document.createDocumentFragment();
+      var frameStart = colorMap.collapse && nodes.length === 1 ? lastFrameStart(text) : 0;
+      if (frameStart > 0) {
+        render(text.substring(0, frameStart), null);
+        text = text.substring(frameStart);
+      }
+      render(text, fragment);
+      node.parentNode.replaceChild(fragment, node);
+    });
+    // Concealing never lasts beyond the end of the line
+    style.conceal = false;
+    line.classList.remove("ansicolor-raw");
+    line.classList.add("ansicolor");
+  }
+
+  function colorBatch(deadline) {
+    scheduled = false;
+    var lines = document.querySelectorAll("span.ansicolor-raw");
+    var count = 0;
+    while (count < lines.length && count < BATCH_SIZE) {
+      colorLine(lines[count++]);
+      if (deadline && deadline.timeRemaining && deadline.timeRemaining() <= 0) {
+        break;
+      }
+    }
+    if (count < lines.length) {
+      schedule();
+    }
+  }
+
+  function schedule() {
+    if (scheduled) {
+      return;
+    }
+    scheduled = true;
+    if (window.requestIdleCallback) {
+      window.requestIdleCallback(colorBatch, { timeout: 200 });
+    } else {
+      window.setTimeout(colorBatch, 0);
+    }
+  }
+
+  /*
+   * The "Show full colors" link of ColorConsoleAnnotator reloads the console with ?ansicolor=full, which the requests
+   * fetching the rest of a running build's log do not carry. A cookie for the run passes the choice on to them.
+   */
+  function keepFullColors() {
+    if (/(?:^|[?&])ansicolor=full(?:&|$)/.test(window.location.search)) {
+      var runPath = window.location.pathname.replace(/[^\/]*$/, "");
+      document.cookie = "ansicolor=full; path=" + runPath + "; SameSite=Lax";
+    }
+  }
+
+  function start() {
+    keepFullColors();
+    schedule();
+    new MutationObserver(function (mutations) {
+      for (var i = 0; i < mutations.length; i++) {
+        if (mutations[i].addedNodes.length > 0) {
+          schedule();
+          return;
+        }
+      }
+    }).observe(document.body, { childList: true, subtree: true });
+  }
+
+  if (document.readyState === "loading") {
+    document.addEventListener("DOMContentLoaded", start);
+  } else {
+    start();
+  }
+})();
@@ -0,0 +1,95 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AlertIndexTest {
+
+    private static final String LOG = "ok\n"
+        + "\033[31merror\033[0m: failed\n"
+        + "\033[1;33mwarning\n"
+        + "still bold yellow\033[0m\n"
+        + "\033[41m  \033[0m\n"
+        + "\033[8;31mhidden\n"
+        + "\033[1;31mbold red\033[0m";
+
+    @TempDir
+    File dir;
+
+    private static AlertIndex index(String alertStyles, int chunk) throws IOException {
+        final AlertIndex index = new AlertIndex(alertStyles);
+        final byte[] log = LOG.getBytes(StandardCharsets.UTF_8);
+        for (int off = 0; off < log.length; off += chunk) {
+            index.write(log, off, Math.min(chunk, log.length - off));
+        }
+        index.finish();
+        return index;
+    }
+
+    @Test
+    void findsLinesInAlertStyles() throws IOException {
+        for (int chunk : new int[]{1, 5, 1000}) {
+            final AlertIndex index = index("31 41", chunk);
+            // Blank and concealed text is no alert
+            assertEquals(2, index.getCount());
+            assertArrayEquals(new int[]{1, 6}, index.getLines());
+            assertArrayEquals(new long[]{3, LOG.lastIndexOf('\n') + 1}, index.getOffsets());
+        }
+    }
+
+    @Test
+    void matchesOnlyTheSlotsOfTheAlertStyle() throws IOException {
+        final AlertIndex index = index("1;33 1;31", 1000);
+        assertArrayEquals(new int[]{2, 3, 6}, index.getLines());
+        // The style at the start of each line, to render it from there
+        final AnsiStyle style = StyleRunOutputStream.parseStyle(index.getStyles()[1]);
+        assertEquals(AnsiStyle.BOLD | (long) (AnsiStyle.COLOR_PALETTE | 3) << AnsiStyle.FG_SHIFT, style.getStyle());
+        assertEquals(0, StyleRunOutputStream.parseStyle(index.getStyles()[0]).getStyle());
+    }
+
+    @Test
+    void rendersFromAnAlert() throws IOException {
+        final AlertIndex index = index("1;33", 1000);
+        final int offset = (int) index.getOffsets()[1];
+        final byte[] log = LOG.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream html = new ByteArrayOutputStream();
+        HtmlLogExport.writeLines(new ByteArrayInputStream(log, offset, log.length - offset), html, AnsiColorMap.XTerm,
+            StyleRunOutputStream.parseStyle(index.getStyles()[1]), 2);
+        assertEquals("<b><span style=\"color: #CDCD00;\">still bold yellow</span></b>\n"
+            + "<span style=\"background-color: #CD0000;\">  </span>\n", html.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void readsTheRecordedLinesBackFromTheFile() throws IOException {
+        final AlertIndex index = index("31 1;33", 1000);
+        final File file = new File(dir, "ansicolor-alerts.idx");
+        index.writeTo(file);
+        final AlertIndex.Recorded recorded = AlertIndex.Recorded.read(file);
+        assertEquals(4, recorded.size());
+        assertArrayEquals(index.getOffsets(), recorded.offsets);
+        assertArrayEquals(index.getLines(), recorded.lines);
+        assertArrayEquals(index.getStyles(), recorded.styles);
+    }
+
+    @Test
+    void validatesAlertStyles() {
+        assertNull(AlertIndex.findMalformed(" 31, 41 1;33 38;5;196 "));
+        assertNull(AlertIndex.findMalformed(""));
+        assertEquals("red", AlertIndex.findMalformed("31 red"));
+        assertEquals("31m", AlertIndex.findMalformed("31m"));
+        assertThrows(IllegalArgumentException.class, () -> new AlertIndex("38;5"));
+        assertTrue(new AlertIndex(" ").isEmpty());
+    }
+}
@@ -384,8 +384,7 @@ class AnsiColorBuildWrapperTest {
             Arrays.asList(
                 "<span style=\"color: #00FF00;\">" + msg0 + "</span>",
                 "<span style=\"color: #00FF00;\">" + msg1 + "</span>",
-                "<span style=\"color: #00FF00;\"><b>" + msg2 + "</b></span>",
-                "<span style=\"color: #00FF00;\">" + msg3 + "</span>",
+                "<span style=\"color: #00FF00;\"><b>" + msg2 + "</b>" + msg3 + "</span>",
                 "<span style=\"color: #00FF00;\">" + msg4 + "</span>",
                 msg5
             ),
@@ -6,7 +6,11 @@ import hudson.plugins.ansicolor.mock.kubernetes.pipeline.SecretsMasker;
 import hudson.plugins.ansicolor.mock.plugins.pipeline.maven.WithMavenStep;
 import hudson.plugins.ansicolor.mock.timestamper.pipeline.GlobalDecorator;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.actions.LogAction;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
+import org.jenkinsci.plugins.workflow.graphanalysis.DepthFirstScanner;
+import org.jenkinsci.plugins.workflow.graphanalysis.NodeStepTypePredicate;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.log.TaskListenerDecorator;
@@ -225,6 +229,31 @@ class AnsiColorStepTest {
         );
     }
 
+    @Test
+    void colorsNodeLogsByTheirEnclosingBlock(JenkinsRule jenkinsRule) throws Exception {
+        final WorkflowJob project = jenkinsRule.jenkins.createProject(WorkflowJob.class, "p");
+        project.setDefinition(new CpsFlowDefinition(
+            "parallel colored: {\n"
+                + "  ansiColor('xterm') { echo 'is \u001B[31mred\u001B[0m' }\n"
+                + "}, plain: {\n"
+                + "  echo 'is not \u001B[32mgreen\u001B[0m'\n"
+                + "}"
+            , true));
+        final WorkflowRun run = jenkinsRule.assertBuildStatusSuccess(project.scheduleBuild2(0));
+        final List<FlowNode> echoes = new DepthFirstScanner().filteredNodes(run.getExecution(), new NodeStepTypePredicate("echo"));
+        assertEquals(2, echoes.size());
+        for (FlowNode echo : echoes) {
+            final StringWriter writer = new StringWriter();
+            echo.getAction(LogAction.class).getLogText().writeHtmlTo(0, writer);
+            final String html = writer.toString().replaceAll("<!--.+?-->", "");
+            if (html.contains("red")) {
+                assertThat(html, containsString("<span style=\"color: #CD0000;\">red</span>"));
+            } else {
+                assertThat(html, not(containsString("<span style=\"color:")));
+            }
+        }
+    }
+
     @Issue("JENKINS-66684")
     @Test
     void canGetConstructorParametersForSnippetGenerator(JenkinsRule jenkinsRule) {
@@ -122,96 +122,75 @@ class AnsiHtmlOutputStreamTest {
 
         assertThatAnnotateIs(
             "\033[33;7mon\033[27moff",
-            "<span style=\"color: #CDCD00;\"></span>" +                                                            // unnecessary <span> tag, could be removed …
-                "<span style=\"background-color: #CDCD00; color: var(--background);\">on</span>" +
+            "<span style=\"background-color: #CDCD00; color: var(--background);\">on</span>" +
                 "<span style=\"color: #CDCD00;\">off</span>");
 
         assertThatAnnotateIs(
             "\033[7;33mon\033[27moff",
-            "<span style=\"background-color: var(--text-color); color: var(--background);\">" +
-                "<span style=\"background-color: #CDCD00;\">on</span></span>" +
+            "<span style=\"background-color: #CDCD00; color: var(--background);\">on</span>" +
                 "<span style=\"color: #CDCD00;\">off</span>");
 
         assertThatAnnotateIs(
             "\033[41;7mon\033[27moff",
-            "<span style=\"background-color: #CD0000;\"></span>" +                                                 // unnecessary <span> tag, could be removed …
-                "<span style=\"background-color: var(--text-color); color: #CD0000;\">on</span>" +
+            "<span style=\"background-color: var(--text-color); color: #CD0000;\">on</span>" +
                 "<span style=\"background-color: #CD0000;\">off</span>");
 
         assertThatAnnotateIs(
             "\033[7;41mon\033[27moff",
-            "<span style=\"background-color: var(--text-color); color: var(--background);\">" +
-                "<span style=\"color: #CD0000;\">on</span>" +
-                "</span>" +
+            "<span style=\"background-color: var(--text-color); color: #CD0000;\">on</span>" +
                 "<span style=\"background-color: #CD0000;\">off</span>");
 
         assertThatAnnotateIs(
             "\033[33;41;7mon\033[27moff",
-            "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\"></span></span>" +          // unnecessary <span> tag, could be removed …
-                "<span style=\"background-color: #CDCD00; color: #CD0000;\">on</span>" +
-                "<span style=\"background-color: #CD0000; color: #CDCD00;\">off</span>");
+            "<span style=\"background-color: #CDCD00; color: #CD0000;\">on</span>" +
+                "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\">off</span></span>");
 
         assertThatAnnotateIs(
             "\033[7;33;41mon\033[27moff",
-            "<span style=\"background-color: var(--text-color); color: var(--background);\">" +
-                "<span style=\"background-color: #CDCD00;\"><span style=\"color: #CD0000;\">on</span></span></span>" +        // could be optimized to be a single <span> tag
-                "<span style=\"background-color: #CD0000; color: #CDCD00;\">off</span>");
+            "<span style=\"background-color: #CDCD00; color: #CD0000;\">on</span>" +
+                "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\">off</span></span>");
 
 
         // reset foreground / background to default while [7m is active
         assertThatAnnotateIs(
             "\033[33;7mon\033[39mdefault",
-            "<span style=\"color: #CDCD00;\"></span>" +                                                            // unnecessary <span> tag, could be removed …
-                "<span style=\"background-color: #CDCD00; color: var(--background);\">on" +
-                "<span style=\"background-color: var(--text-color);\">default</span></span>");
+            "<span style=\"background-color: #CDCD00; color: var(--background);\">on</span>" +
+                "<span style=\"background-color: var(--text-color); color: var(--background);\">default</span>");
 
         assertThatAnnotateIs(
             "\033[7;33mon\033[39mdefault",
-            "<span style=\"background-color: var(--text-color); color: var(--background);\">" +
-                "<span style=\"background-color: #CDCD00;\">on</span>" +
-                "<span style=\"background-color: var(--text-color);\">default</span></span>");
+            "<span style=\"background-color: #CDCD00; color: var(--background);\">on</span>" +
+                "<span style=\"background-color: var(--text-color); color: var(--background);\">default</span>");
 
         assertThatAnnotateIs(
             "\033[41;7mon\033[49mdefault",
-            "<span style=\"background-color: #CD0000;\"></span>" +                                                 // unnecessary <span> tag, could be removed …
-                "<span style=\"background-color: var(--text-color); color: #CD0000;\">on" +
-                "<span style=\"color: var(--background);\">default</span>" +
-                "</span>");
+            "<span style=\"background-color: var(--text-color); color: #CD0000;\">on</span>" +
+                "<span style=\"background-color: var(--text-color); color: var(--background);\">default</span>");
 
         assertThatAnnotateIs(
             "\033[7;41mon\033[49mdefault",
-            "<span style=\"background-color: var(--text-color); color: var(--background);\">" +
-                "<span style=\"color: #CD0000;\">on</span>" +
-                "<span style=\"color: var(--background);\">default</span>" +
-                "</span>");
+            "<span style=\"background-color: var(--text-color); color: #CD0000;\">on</span>" +
+                "<span style=\"background-color: var(--text-color); color: var(--background);\">default</span>");
 
         assertThatAnnotateIs(
             "\033[33;41;7mon\033[39mdefault",
-            "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\"></span></span>" +          // unnecessary <span> tag, could be removed …
-                "<span style=\"background-color: #CDCD00; color: #CD0000;\">on" +
-                "<span style=\"background-color: var(--text-color);\">default</span></span>");
+            "<span style=\"background-color: #CDCD00; color: #CD0000;\">on</span>" +
+                "<span style=\"background-color: var(--text-color); color: #CD0000;\">default</span>");
 
         assertThatAnnotateIs(
             "\033[7;33;41mon\033[39mdefault",
-            "<span style=\"background-color: var(--text-color); color: var(--background);\">" +
-                "<span style=\"background-color: #CDCD00;\"><span style=\"color: #CD0000;\">on</span></span>" +
-                "<span style=\"color: #CD0000;\"><span style=\"background-color: var(--text-color);\">default</span></span></span>");
+            "<span style=\"background-color: #CDCD00; color: #CD0000;\">on</span>" +
+                "<span style=\"background-color: var(--text-color); color: #CD0000;\">default</span>");
 
         assertThatAnnotateIs(
             "\033[33;41;7mon\033[49mdefault",
-            "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\"></span></span>" +          // unnecessary <span> tag, could be removed …
-                "<span style=\"background-color: #CDCD00; color: #CD0000;\">" +
-                "on" +
-                "<span style=\"color: var(--background);\">default</span>" +
-                "</span>");
+            "<span style=\"background-color: #CDCD00; color: #CD0000;\">on</span>" +
+                "<span style=\"background-color: #CDCD00; color: var(--background);\">default</span>");
 
         assertThatAnnotateIs(
             "\033[7;33;41mon\033[49mdefault",
-            "<span style=\"background-color: var(--text-color); color: var(--background);\">" +
-                "<span style=\"background-color: #CDCD00;\">" +
-                "<span style=\"color: #CD0000;\">on</span>" +
-                "<span style=\"color: var(--background);\">default</span>" +
-                "</span></span>");
+            "<span style=\"background-color: #CDCD00; color: #CD0000;\">on</span>" +
+                "<span style=\"background-color: #CDCD00; color: var(--background);\">default</span>");
 
         // simple tests with dark theme, as there has been default foreground / background colors defined (in contrast to xterm scheme)
         assertThatAnnotateIs(AnsiColorMap.VGA,
@@ -229,7 +208,6 @@ class AnsiHtmlOutputStreamTest {
         assertThatAnnotateIs(AnsiColorMap.VGA,
             "\033[33;7mon\033[27moff",
             "<div style=\"background-color: #000000;color: #AAAAAA;\">" +
-                "<span style=\"color: #AA5500;\"></span>" +                                                          // unnecessary <span> tag, could be removed …
                 "<span style=\"background-color: #AA5500; color: #000000;\">on</span>" +
                 "<span style=\"color: #AA5500;\">off</span>" +
                 "</div>");
@@ -237,16 +215,13 @@ class AnsiHtmlOutputStreamTest {
         assertThatAnnotateIs(AnsiColorMap.VGA,
             "\033[7;33mon\033[27moff",
             "<div style=\"background-color: #000000;color: #AAAAAA;\">" +
-                "<span style=\"background-color: #AAAAAA; color: #000000;\">" +                                      // unnecessary <span> tag, could be removed / merged with the following <span>
-                "<span style=\"background-color: #AA5500;\">on</span>" +
-                "</span>" +
+                "<span style=\"background-color: #AA5500; color: #000000;\">on</span>" +
                 "<span style=\"color: #AA5500;\">off</span>" +
                 "</div>");
 
         assertThatAnnotateIs(AnsiColorMap.VGA,
             "\033[41;7mon\033[27moff",
             "<div style=\"background-color: #000000;color: #AAAAAA;\">" +
-                "<span style=\"background-color: #AA0000;\"></span>" +                                               // unnecessary <span> tag, could be removed …
                 "<span style=\"background-color: #AAAAAA; color: #AA0000;\">on</span>" +
                 "<span style=\"background-color: #AA0000;\">off</span>" +
                 "</div>");
@@ -254,9 +229,7 @@ class AnsiHtmlOutputStreamTest {
         assertThatAnnotateIs(AnsiColorMap.VGA,
             "\033[7;41mon\033[27moff",
             "<div style=\"background-color: #000000;color: #AAAAAA;\">" +
-                "<span style=\"background-color: #AAAAAA; color: #000000;\">" +                                      // unnecessary <span> tag, could be removed / merged with the following <span>
-                "<span style=\"color: #AA0000;\">on</span>" +
-                "</span>" +
+                "<span style=\"background-color: #AAAAAA; color: #AA0000;\">on</span>" +
                 "<span style=\"background-color: #AA0000;\">off</span>" +
                 "</div>");
 
@@ -267,9 +240,9 @@ class AnsiHtmlOutputStreamTest {
                 "\033[7m" + "now inverse, " +
                 "\033[7m" + "one more [7m should change nothing, " +
                 "\033[27m" + "turned back to non inverse",
-            "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\">yellow on red, </span></span>" +     // could be optimized to be a single <span> tag
+            "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\">yellow on red, </span></span>" +
                 "<span style=\"background-color: #CDCD00; color: #CD0000;\">now inverse, one more [7m should change nothing, </span>" +
-                "<span style=\"background-color: #CD0000; color: #CDCD00;\">turned back to non inverse</span>");
+                "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\">turned back to non inverse</span></span>");
 
         assertThatAnnotateIs(
             "\033[33;41m" + "yellow on red, " +
@@ -277,17 +250,25 @@ class AnsiHtmlOutputStreamTest {
                 "\033[30m" + "[30m → red on black, " +
                 "\033[103m" + "[103m  → yellow on black, " +
                 "\033[27m" + "[27m → black on yellow",
-            "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\">yellow on red, </span></span>" +     // could be optimized to be a single <span> tag
-                "<span style=\"background-color: #CDCD00; color: #CD0000;\">" +
-                "now inverse, " +
-                "<span style=\"background-color: #000000;\">" +
-                "[30m → red on black, " +
-                "<span style=\"color: #FFFF00;\">" +
-                "[103m  → yellow on black, " +
-                "</span>" +
-                "</span>" +
-                "</span>" +
-                "<span style=\"background-color: #FFFF00; color: #000000;\">[27m → black on yellow</span>");
+            "<span style=\"color: #CDCD00;\"><span style=\"background-color: #CD0000;\">yellow on red, </span></span>" +
+                "<span style=\"background-color: #CDCD00; color: #CD0000;\">now inverse, </span>" +
+                "<span style=\"background-color: #000000; color: #CD0000;\">[30m → red on black, </span>" +
+                "<span style=\"background-color: #000000; color: #FFFF00;\">[103m  → yellow on black, </span>" +
+                "<span style=\"color: #000000;\"><span style=\"background-color: #FFFF00;\">[27m → black on yellow</span></span>");
+    }
+
+    @Test
+    void testNestingFollowsAttributeOrder() throws IOException {
+        assertThatAnnotateIs("\033[1;34mINFO", "<b><span style=\"color: #1E90FF;\">INFO</span></b>");
+        assertThatAnnotateIs("\033[94;1mINFO", "<span style=\"color: #4682B4;\"><b>INFO</b></span>");
+        assertThatAnnotateIs("\033[1;34mbold blue\033[22m blue", "<b><span style=\"color: #1E90FF;\">bold blue</span></b><span style=\"color: #1E90FF;\"> blue</span>");
+    }
+
+    @Test
+    void testRedundantSequencesProduceNoMarkup() throws IOException {
+        assertThatAnnotateIs("\033[1m\033[22mplain\033[32m\033[0m text", "plain text");
+        assertThatAnnotateIs("\033[1mbold \033[1mstill bold\033[m", "<b>bold still bold</b>");
+        assertThatAnnotateIs("\033[32mgreen \033[1mbold\033[32m\033[22m green", "<span style=\"color: #00CD00;\">green <b>bold</b> green</span>");
     }
 
     @Test
@@ -596,6 +577,65 @@ class AnsiHtmlOutputStreamTest {
         assertThatAnnotateIs("(\033[10m)", "()");
     }
 
+    @Test
+    void canBeRestartedForEachLine() throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final AnsiHtmlOutputStream ansi = new AnsiHtmlOutputStream(bos, AnsiColorMap.VGA, html -> {
+            try {
+                bos.write(html.getBytes(UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException("error emitting HTML", e);
+            }
+        });
+        final AnsiStyle style = new AnsiStyle();
+        final String[] lines = {"a\033[1;31mb", "c\033[4m\033[8md\033[0", "e\033[m", "f"};
+        final String[] expected = {
+            "<div style=\"background-color: #000000;color: #AAAAAA;\">a<b><span style=\"color: #AA0000;\">b</span></b></div>",
+            "<div style=\"background-color: #000000;color: #AAAAAA;\"><b><span style=\"color: #AA0000;\">c</span></b></div>",
+            "<div style=\"background-color: #000000;color: #AAAAAA;\"><b><span style=\"color: #AA0000;\"><u>e</u></span></b></div>",
+            "<div style=\"background-color: #000000;color: #AAAAAA;\">f</div>",
+        };
+        for (int i = 0; i < lines.length; i++) {
+            bos.reset();
+            ansi.restart(style);
+            ansi.write(lines[i].getBytes(UTF_8));
+            ansi.copyStyleTo(style);
+            style.set(style.getStyle() & ~AnsiStyle.CONCEAL, style.getOrder());
+            ansi.finish();
+            assertThat(bos.toString(UTF_8.displayName()), is(expected[i]));
+        }
+    }
+
+    @Test
+    void stripsTheRestOfTheTextBeyondTheLimits() throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final AnsiHtmlOutputStream ansi = new AnsiHtmlOutputStream(bos, AnsiColorMap.Default, html -> {
+            try {
+                bos.write(html.getBytes(UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException("error emitting HTML", e);
+            }
+        });
+        ansi.setLimits(3, 2, 1000);
+        ansi.write("\033[1ma\033[22mb\033[1mc\033[22md\033[1me\033[m".getBytes(UTF_8));
+        ansi.finish();
+        assertThat(bos.toString(UTF_8.displayName()), is("<b>a</b>b<b>c</b>de"));
+        assertThat(ansi.isStripped(), is(true));
+
+        bos.reset();
+        ansi.restart(new AnsiStyle());
+        ansi.write("\033[1;3;4mx\033[mx".getBytes(UTF_8));
+        ansi.finish();
+        assertThat(bos.toString(UTF_8.displayName()), is("xx"));
+
+        bos.reset();
+        ansi.restart(new AnsiStyle());
+        ansi.write("\033[1;3mx".getBytes(UTF_8));
+        ansi.finish();
+        assertThat(bos.toString(UTF_8.displayName()), is("<b><i>x</i></b>"));
+        assertThat(ansi.isStripped(), is(false));
+    }
+
     private void assertThatAnnotateIs(String ansi, String html) throws IOException {
         assertThat(annotate(ansi), is(html));
     }
@@ -0,0 +1,204 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AnsiParserTest {
+
+    @Test
+    void reportsTextInRuns() throws IOException {
+        assertEquals("text(foo)sgr(1)text(bar baz)sgr()", parseBytes("foo\033[1mbar baz\033[m"));
+    }
+
+    @Test
+    void reportsOmittedParameters() throws IOException {
+        assertEquals("sgr(-1,1)sgr(38,5,100)cursor(H,-1,3)", parseBytes("\033[;1m\033[38;5;100m\033[;3H"));
+    }
+
+    @Test
+    void handlesSequencesSplitAcrossCalls() throws IOException {
+        String input = "a\033[1;31mb\033]0;title\007c\033(Bd\033[?25le";
+        String expected = "text(a)sgr(1,31)text(b)osc(0,title)text(c)charset(0,B)text(d)unknown(l,-2,25)text(e)";
+        assertEquals(expected, parseBytes(input));
+        assertEquals(expected, parseChars(input));
+
+        Recorder recorder = new Recorder();
+        AnsiParser parser = new AnsiParser(recorder);
+        for (byte b : input.getBytes(StandardCharsets.UTF_8)) {
+            parser.parse(b);
+        }
+        assertEquals(expected, recorder.events.toString());
+    }
+
+    @Test
+    void reportsInvalidSequencesAsText() throws IOException {
+        assertEquals("text(\033[38;5;300m)", parseBytes("\033[38;5;300m"));
+        assertEquals("text(\033[\"m)", parseBytes("\033[\"m"));
+        assertEquals("text(\033x)", parseBytes("\033x"));
+        assertEquals("text(\033[99999999999m)", parseBytes("\033[99999999999m"));
+        assertEquals("text(\033[G)", parseBytes("\033[G"));
+    }
+
+    @Test
+    void reportsOverlongSequencesAsText() throws IOException {
+        StringBuilder sb = new StringBuilder("\033[");
+        for (int i = 0; i < 60; i++) {
+            sb.append("1;");
+        }
+        sb.append('m');
+        String input = sb.toString();
+        assertEquals(input, stripText(parseBytes(input)));
+    }
+
+    @Test
+    void keepsOscTerminatedByStringTerminator() throws IOException {
+        assertEquals("osc(2,a;b)text(x)", parseBytes("\033]2;a;b\033\\x"));
+    }
+
+    @Test
+    void passesConsoleNotesThrough() throws IOException {
+        assertEquals("text(a)note(\033[8mha:NOTE\033[0m)text(b)sgr(8)text(hb)",
+            parseBytes("a\033[8mha:NOTE\033[0mb\033[8mhb", true));
+        // A note does not interrupt the escape sequence around it
+        assertEquals("note(\033[8mha:NOTE\033[0m)sgr(1,2)", parseBytes("\033[1;\033[8mha:NOTE\033[0m2m", true));
+        assertEquals("text(a)sgr(8)text(ha:NOTE)sgr(0)", parseBytes("a\033[8mha:NOTE\033[0m", false));
+    }
+
+    @Test
+    void reusesDecodedSequences() throws IOException {
+        final AnsiSequenceCache cache = AnsiSequenceCache.INSTANCE;
+        final long hits = cache.getHits();
+        final long misses = cache.getMisses();
+        assertEquals("sgr(1,33,53)text(a)sgr(1,33,53)text(b)", parseBytes("\033[1;33;53ma\033[1;33;53mb"));
+        assertEquals("sgr(1,33,53)", parseChars("\033[1;33;53m"));
+        assertEquals(2, cache.getHits() - hits);
+        assertEquals(1, cache.getMisses() - misses);
+        // Invalid sequences are remembered as such
+        assertEquals("text(\033[38;5;256m\033[38;5;256m)", parseBytes("\033[38;5;256m\033[38;5;256m"));
+        // Sequences with string parameters are not cached
+        assertEquals("unknown(p,-4)unknown(p,-4)", parseBytes("\033[\"\"p\033[\"\"p"));
+    }
+
+    @Test
+    void canStripEscapeSequences() {
+        assertEquals("foo bar", AnsiStripper.strip("\033[1;31mfoo\033[0m \033]0;title\007bar\033[K"));
+        assertEquals("broken\033[38;5;300m", AnsiStripper.strip("broken\033[38;5;300m"));
+        byte[] input = "\033[32mgrün\033[m".getBytes(StandardCharsets.UTF_8);
+        assertEquals("grün", new String(AnsiStripper.strip(input, 0, input.length), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void canStripStreamsKeepingConsoleNotes() throws IOException {
+        final String input = "\033[1;31mfoo\033[8mha:NOTE\033[0m\033[0m bar\033[K\n\033[3";
+        final byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (AnsiStrippingOutputStream out = new AnsiStrippingOutputStream(bos)) {
+                for (int off = 0; off < bytes.length; off += chunk) {
+                    out.write(bytes, off, Math.min(chunk, bytes.length - off));
+                }
+            }
+            assertEquals("foo\033[8mha:NOTE\033[0m bar\n", bos.toString(StandardCharsets.UTF_8), "chunk " + chunk);
+        }
+    }
+
+    private static String stripText(String events) {
+        return events.replace("text(", "").replace(")", "");
+    }
+
+    private static String parseBytes(String input) throws IOException {
+        return parseBytes(input, false);
+    }
+
+    private static String parseBytes(String input, boolean consoleNotes) throws IOException {
+        Recorder recorder = new Recorder();
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        new AnsiParser(recorder, consoleNotes).parse(bytes, 0, bytes.length);
+        return recorder.events.toString();
+    }
+
+    private static String parseChars(String input) throws IOException {
+        Recorder recorder = new Recorder();
+        char[] chars = input.toCharArray();
+        new AnsiParser(recorder).parse(chars, 0, chars.length);
+        return recorder.events.toString();
+    }
+
+    private static class Recorder implements AnsiParser.Listener {
+        private final StringBuilder events = new StringBuilder();
+        private String inText;
+
+        @Override
+        public void text(byte[] b, int off, int len) {
+            text("text", new String(b, off, len, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void text(char[] c, int off, int len) {
+            text("text", new String(c, off, len));
+        }
+
+        @Override
+        public void note(byte[] b, int off, int len) {
+            text("note", new String(b, off, len, StandardCharsets.UTF_8));
+        }
+
+        // Consecutive text events are merged, so that the result does not depend on how the input was split.
+        private void text(String name, String s) {
+            if (name.equals(inText)) {
+                events.setLength(events.length() - 1);
+            } else {
+                events.append(name).append('(');
+            }
+            events.append(s).append(')');
+            inText = name;
+        }
+
+        @Override
+        public void sgr(int[] params, int count) {
+            event("sgr", -1, params, count);
+        }
+
+        @Override
+        public void cursor(int command, int[] params, int count) {
+            event("cursor", command, params, count);
+        }
+
+        @Override
+        public void osc(int command, String param) {
+            inText = null;
+            events.append("osc(").append(command).append(',').append(param).append(')');
+        }
+
+        @Override
+        public void charset(int set, char seq) {
+            inText = null;
+            events.append("charset(").append(set).append(',').append(seq).append(')');
+        }
+
+        @Override
+        public void unknown(int command, int[] params, int count) {
+            event("unknown", command, params, count);
+        }
+
+        private void event(String name, int command, int[] params, int count) {
+            inText = null;
+            events.append(name).append('(');
+            if (command >= 0) {
+                events.append((char) command);
+                if (count > 0) {
+                    events.append(',');
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                events.append(i > 0 ? "," : "").append(params[i]);
+            }
+            events.append(')');
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package hudson.plugins.ansicolor;
+
+import hudson.console.ConsoleNote;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AnsiStrippingOutputStreamTest {
+
+    @Test
+    void keepsTextAndNotes() throws IOException {
+        final String note = ConsoleNote.PREAMBLE_STR + "NOTE" + ConsoleNote.POSTAMBLE_STR;
+        assertEquals("red " + note + "bold\n", strip("\033[31mred \033[0m" + note + "\033[1;2Kbold\n", 1));
+        assertEquals("red " + note + "bold\n", strip("\033[31mred \033[0m" + note + "\033[1;2Kbold\n", 1000));
+    }
+
+    @Test
+    void keepsTextAmongAnUnfinishedNotePreambleWhenClosed() throws IOException {
+        assertEquals("abch", strip("abc\033[8mh", 1));
+        assertEquals("abc", strip("abc\033[8", 1));
+        assertEquals("abc", strip("abc\033[31", 1));
+    }
+
+    private static String strip(String input, int chunk) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] b = input.getBytes(StandardCharsets.UTF_8);
+        try (AnsiStrippingOutputStream out = new AnsiStrippingOutputStream(bytes)) {
+            for (int off = 0; off < b.length; off += chunk) {
+                out.write(b, off, Math.min(chunk, b.length - off));
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
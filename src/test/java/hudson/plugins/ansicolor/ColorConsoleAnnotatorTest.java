@@ -1,14 +1,26 @@
 package hudson.plugins.ansicolor;
 
+import hudson.model.User;
+import hudson.plugins.ansicolor.action.LineIdentifier;
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.regex.Pattern;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -44,4 +56,148 @@ class ColorConsoleAnnotatorTest {
             "Color attribute was applied in following HTML log output even though the color map was not globally enabled:\n" + html
         );
     }
+
+    @Test
+    void canCollapseProgressLines(JenkinsRule jenkinsRule) throws Exception {
+        final AnsiColorBuildWrapper.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+        descriptor.setGlobalColorMapName("xterm");
+        descriptor.setCollapseProgressLines(true);
+        WorkflowJob p = jenkinsRule.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("echo 'Progress: \\u001B[32m 10%\\r\\u001B[1m 50%\\r\\u001B[22m100%\\u001B[0m'", true));
+        jenkinsRule.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        StringWriter writer = new StringWriter();
+        assertTrue(p.getLastBuild().getLogText().writeHtmlTo(0L, writer) > 0);
+        String html = writer.toString().replaceAll("(?s)<!--.*?-->", "");
+        assertTrue(html.contains("<span style=\"color: #00CD00;\">100%</span>"), html);
+        assertFalse(html.contains("50%"), html);
+    }
+
+    @Test
+    void canRoundTripSerialForm(JenkinsRule jenkinsRule) throws Exception {
+        final byte[] serialized = serialize(new ColorConsoleAnnotator("xterm", new LineIdentifier(), 42));
+        final Object deserialized = new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+        assertTrue(deserialized instanceof ColorConsoleAnnotator);
+        assertArrayEquals(serialized, serialize(deserialized));
+    }
+
+    @Test
+    void writesTheStateInAFewBytes(JenkinsRule jenkinsRule) throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            new ColorConsoleAnnotator("xterm", new LineIdentifier(), 42).writeExternal(oos);
+        }
+        final byte[] b = bos.toByteArray();
+        // Format, flags, the default color map, the line number, the empty style and its order, the policy
+        final byte[] state = {3, 1, 0, 5, 'x', 't', 'e', 'r', 'm', 42, 0, 0, 0};
+        assertArrayEquals(state, Arrays.copyOfRange(b, b.length - state.length, b.length));
+        // Only the stream and block headers come with it
+        assertEquals(4 + 2 + state.length, b.length);
+    }
+
+    @Test
+    void canRoundTripPolicy(JenkinsRule jenkinsRule) throws Exception {
+        final byte[] serialized = serialize(new ColorConsoleAnnotator("xterm", new LineIdentifier(), 42, ColorConsoleAnnotator.Policy.BUDGET));
+        final Object deserialized = new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+        assertArrayEquals(serialized, serialize(deserialized));
+    }
+
+    @Test
+    void selectsPolicyByLogSizeAndLoad() {
+        final long mb = 1024 * 1024;
+        assertEquals(ColorConsoleAnnotator.Policy.FULL, ColorConsoleAnnotator.Policy.select(1000 * mb, 100, 0, 0, 0));
+        assertEquals(ColorConsoleAnnotator.Policy.FULL, ColorConsoleAnnotator.Policy.select(10 * mb, 0, 10, 100, 0));
+        assertEquals(ColorConsoleAnnotator.Policy.BUDGET, ColorConsoleAnnotator.Policy.select(11 * mb, 0, 10, 100, 0));
+        assertEquals(ColorConsoleAnnotator.Policy.STRIP, ColorConsoleAnnotator.Policy.select(101 * mb, 0, 10, 100, 0));
+        assertEquals(ColorConsoleAnnotator.Policy.STRIP, ColorConsoleAnnotator.Policy.select(101 * mb, 0, 0, 100, 0));
+        assertEquals(ColorConsoleAnnotator.Policy.BUDGET, ColorConsoleAnnotator.Policy.select(mb, 4, 10, 100, 4));
+        assertEquals(ColorConsoleAnnotator.Policy.STRIP, ColorConsoleAnnotator.Policy.select(11 * mb, 4, 10, 100, 4));
+        assertEquals(ColorConsoleAnnotator.Policy.FULL, ColorConsoleAnnotator.Policy.select(mb, 3, 10, 100, 4));
+    }
+
+    @Test
+    void countsAnnotatorsActiveWithinTheWindow() {
+        final ColorConsoleAnnotator.Activity activity = new ColorConsoleAnnotator.Activity(1000);
+        final long first = activity.newId();
+        final long second = activity.newId();
+        activity.touch(first, 10_000);
+        activity.touch(second, 10_500);
+        // Touching again does not count an annotator twice
+        activity.touch(first, 10_600);
+        assertEquals(2, activity.count(10_700));
+        assertEquals(1, activity.count(11_550));
+        assertEquals(0, activity.count(11_600));
+    }
+
+    @Test
+    void leavesLinesToTheBrowserWhenEnabledGlobally(JenkinsRule jenkinsRule) throws Exception {
+        Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).setClientSideRendering(true);
+        final WorkflowRun run = buildTwoBlocks(jenkinsRule);
+        final String html = consoleHtml(jenkinsRule.createWebClient(), run, "");
+        assertTrue(html.contains("<span class=\"ansicolor-raw\"") && html.contains("\u001B[31mred"), html);
+        assertFalse(html.contains("<span style=\"color: #CD0000;\">red</span>"), html);
+        // The color map is described along with the first line, and again when it changes
+        assertEquals(1, count(html, "data-color-map=\"xterm\" data-palette=\"#000000|#CD0000|#00CD00|"), html);
+        assertEquals(1, count(html, "data-color-map=\"vga\" data-palette=\"#000000|#AA0000|"), html);
+        assertEquals(1, count(html, "data-default-fg=\"#AAAAAA\" data-default-bg=\"#000000\""), html);
+        assertEquals(2, count(html, "data-palette="), html);
+        assertTrue(Pattern.compile("<span class=\"ansicolor-raw\">(<[^>]+>)*second line").matcher(html).find(), html);
+    }
+
+    @Test
+    void leavesLinesToTheBrowserOfUsersWhoAskForIt(JenkinsRule jenkinsRule) throws Exception {
+        jenkinsRule.jenkins.setSecurityRealm(jenkinsRule.createDummySecurityRealm());
+        final AnsiColorUserProperty property = new AnsiColorUserProperty();
+        property.setClientSideRendering(true);
+        User.getById("alice", true).addProperty(property);
+        final WorkflowRun run = buildTwoBlocks(jenkinsRule);
+
+        final String alice = consoleHtml(jenkinsRule.createWebClient().login("alice"), run, "");
+        assertTrue(alice.contains("<span class=\"ansicolor-raw\""), alice);
+        assertFalse(alice.contains("<span style=\"color: #CD0000;\">red</span>"), alice);
+
+        final String anonymous = consoleHtml(jenkinsRule.createWebClient(), run, "");
+        assertFalse(anonymous.contains("ansicolor-raw"), anonymous);
+        assertTrue(anonymous.contains("<span style=\"color: #CD0000;\">red</span>"), anonymous);
+    }
+
+    @Test
+    void rendersFullColorsWhenAskedForThem(JenkinsRule jenkinsRule) throws Exception {
+        jenkinsRule.jenkins.setSecurityRealm(jenkinsRule.createDummySecurityRealm());
+        final AnsiColorUserProperty property = new AnsiColorUserProperty();
+        property.setClientSideRendering(true);
+        User.getById("alice", true).addProperty(property);
+        final WorkflowRun run = buildTwoBlocks(jenkinsRule);
+        final String html = consoleHtml(jenkinsRule.createWebClient().login("alice"), run, "?ansicolor=full");
+        assertFalse(html.contains("ansicolor-raw"), html);
+        assertTrue(html.contains("<span style=\"color: #CD0000;\">red</span>"), html);
+    }
+
+    private static WorkflowRun buildTwoBlocks(JenkinsRule jenkinsRule) throws Exception {
+        final WorkflowJob p = jenkinsRule.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("ansiColor('xterm') {\n"
+            + "  echo 'first \\u001B[31mred\\u001B[0m'\n"
+            + "  echo 'second line'\n"
+            + "}\n"
+            + "ansiColor('vga') {\n"
+            + "  echo 'third \\u001B[32mgreen\\u001B[0m'\n"
+            + "}", true));
+        return jenkinsRule.buildAndAssertSuccess(p);
+    }
+
+    private static String consoleHtml(JenkinsRule.WebClient webClient, WorkflowRun run, String query) throws Exception {
+        final String html = webClient.goTo(run.getUrl() + "logText/progressiveHtml" + query, null).getWebResponse().getContentAsString();
+        return html.replaceAll("(?s)<!--.*?-->", "");
+    }
+
+    private static int count(String s, String part) {
+        return s.split(Pattern.quote(part), -1).length - 1;
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(o);
+        }
+        return bos.toByteArray();
+    }
 }
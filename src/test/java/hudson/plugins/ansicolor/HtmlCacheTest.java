@@ -0,0 +1,99 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HtmlCacheTest {
+
+    @TempDir
+    File dir;
+
+    private static void put(HtmlCache cache, String key, String fingerprint, String... lines) throws IOException {
+        try (HtmlCache.Builder builder = cache.create(key, fingerprint)) {
+            long logOffset = 0;
+            for (String line : lines) {
+                builder.html().write(line.getBytes(StandardCharsets.UTF_8));
+                logOffset += line.length();
+                builder.lineEnd(logOffset);
+            }
+            builder.commit(logOffset);
+        }
+    }
+
+    private static String htmlFrom(HtmlCache.Entry entry, long logOffset) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(entry.writeHtml(logOffset, out));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void servesFromEachBlock() throws IOException {
+        final HtmlCache cache = new HtmlCache(dir, Long.MAX_VALUE);
+        final String big = "x".repeat(HtmlCache.BLOCK_SIZE - 1) + "\n";
+        put(cache, "run", "settings", "first\n", big, "third\n");
+
+        final HtmlCache.Entry entry = cache.get("run", "settings");
+        assertNotNull(entry);
+        assertEquals(6 + big.length() + 6, entry.getLogEnd());
+        assertEquals(0, entry.lineAt(0));
+        assertEquals(-1, entry.lineAt(6));
+        assertEquals(2, entry.lineAt(6 + big.length()));
+        assertEquals("first\n" + big + "third\n", htmlFrom(entry, 0));
+        assertEquals("third\n", htmlFrom(entry, 6 + big.length()));
+        assertEquals("", htmlFrom(entry, entry.getLogEnd()));
+        assertFalse(entry.writeHtml(6, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void dropsEntriesRenderedWithOtherSettings() throws IOException {
+        final HtmlCache cache = new HtmlCache(dir, Long.MAX_VALUE);
+        put(cache, "run", "before", "line\n");
+        assertNull(cache.get("run", "after"));
+        assertNull(cache.get("run", "before"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedAndSurvivesRestart() throws IOException {
+        final HtmlCache cache = new HtmlCache(dir, Long.MAX_VALUE);
+        put(cache, "a", "s", "a\n");
+        put(cache, "b", "s", "b\n");
+        final long each = cache.getBytes() / 2;
+        assertNotNull(cache.get("a", "s"));
+        cache.setMaxBytes(2 * each + each / 2);
+        put(cache, "c", "s", "c\n");
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b", "s"));
+
+        final HtmlCache reloaded = new HtmlCache(dir, Long.MAX_VALUE);
+        assertEquals(2, reloaded.size());
+        assertEquals("c\n", htmlFrom(reloaded.get("c", "s"), 0));
+        reloaded.setMaxBytes(0);
+        assertEquals(0, reloaded.size());
+    }
+
+    @Test
+    void dropsUncommittedEntries() throws IOException {
+        final HtmlCache cache = new HtmlCache(dir, Long.MAX_VALUE);
+        try (HtmlCache.Builder builder = cache.create("run", "s")) {
+            builder.html().write('x');
+            builder.lineEnd(2);
+        }
+        assertNull(cache.get("run", "s"));
+        final String[] files = dir.list();
+        assertNotNull(files);
+        assertEquals(0, files.length);
+    }
+}
@@ -0,0 +1,58 @@
+package hudson.plugins.ansicolor;
+
+import hudson.console.ConsoleNote;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HtmlLogExportTest {
+
+    private static String export(String log, AnsiColorMap colorMap) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HtmlLogExport.write(new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)), out, colorMap, "job <#1>");
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String body(String page) {
+        return page.substring(page.indexOf("<pre>") + 5, page.indexOf("</pre>"));
+    }
+
+    @Test
+    void writesAStandalonePage() throws IOException {
+        final String page = export("hello\n", AnsiColorMap.XTerm);
+        assertTrue(page.startsWith("<!DOCTYPE html>"), page);
+        assertTrue(page.contains("<title>job &lt;#1&gt;</title>"), page);
+        assertTrue(page.endsWith("</pre>\n</body>\n</html>\n"), page);
+        assertEquals("hello\n", body(page));
+    }
+
+    @Test
+    void colorsAndEscapesTheText() throws IOException {
+        assertEquals("a <span style=\"color: #CD0000;\">&lt;b&gt; &amp; c</span>\n",
+            body(export("a \033[31m<b> & c\033[0m\n", AnsiColorMap.XTerm)));
+    }
+
+    @Test
+    void leavesOutConsoleNotes() throws IOException {
+        assertEquals("a b\n", body(export("a " + ConsoleNote.PREAMBLE_STR + "note" + ConsoleNote.POSTAMBLE_STR + "b\n", AnsiColorMap.XTerm)));
+    }
+
+    @Test
+    void closesWhatIsLeftOpen() throws IOException {
+        assertEquals("<b>bold</b>", body(export("\033[1mbold", AnsiColorMap.XTerm)));
+    }
+
+    @Test
+    void stylesThePageWithTheDefaultColors() throws IOException {
+        final AnsiColorMap colorMap = new AnsiColorMap("dark", "#000000", "#FF0000", "#00FF00", "#FFFF00", "#0000FF", "#FF00FF", "#00FFFF", "#FFFFFF",
+            "#000000", "#FF0000", "#00FF00", "#FFFF00", "#0000FF", "#FF00FF", "#00FFFF", "#FFFFFF", 7, 0);
+        final String page = export("x\n", colorMap);
+        assertTrue(page.contains("background-color: #000000; color: #FFFFFF; }"), page);
+    }
+}
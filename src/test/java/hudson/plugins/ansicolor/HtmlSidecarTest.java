@@ -0,0 +1,94 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HtmlSidecarTest {
+
+    @TempDir
+    File dir;
+
+    @Test
+    void servesRenderedLinesFromCheckpoints() throws IOException {
+        final HtmlSidecar sidecar = new HtmlSidecar(dir);
+        assertFalse(sidecar.exists());
+        try (OutputStream html = sidecar.create()) {
+            html.write("<b>one</b>\n".getBytes(StandardCharsets.UTF_8));
+            sidecar.checkpoint(12, 11);
+            assertEquals(11, sidecar.readIndex().getHtmlEnd());
+            assertFalse(sidecar.readIndex().isComplete());
+            html.write("two\nthree\n".getBytes(StandardCharsets.UTF_8));
+            sidecar.checkpoint(22, 21);
+            sidecar.complete();
+        }
+        final HtmlSidecar.Index index = sidecar.readIndex();
+        assertTrue(index.isComplete());
+        assertEquals(22, index.getLogEnd());
+        assertEquals(0, index.htmlOffsetOf(0));
+        assertEquals(11, index.htmlOffsetOf(12));
+        assertEquals(-1, index.htmlOffsetOf(5));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sidecar.copyHtml(index.htmlOffsetOf(12), index.getHtmlEnd(), out);
+        assertEquals("two\nthree\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void keepsTheCheckpointsItWrote() throws IOException {
+        final HtmlSidecar sidecar = new HtmlSidecar(dir);
+        try (OutputStream html = sidecar.create()) {
+            for (int i = 1; i <= 100; i++) {
+                html.write('x');
+                sidecar.checkpoint(2L * i, i);
+            }
+            final HtmlSidecar.Index index = sidecar.getIndex();
+            assertEquals(200, index.getLogEnd());
+            assertEquals(50, index.htmlOffsetOf(100));
+            sidecar.checkpoint(202, 101);
+            // Earlier indexes stay as they were
+            assertEquals(200, index.getLogEnd());
+            assertEquals(-1, index.htmlOffsetOf(202));
+            sidecar.complete();
+        }
+        assertTrue(sidecar.getIndex().isComplete());
+        assertEquals(101, sidecar.getIndex().htmlOffsetOf(202));
+        // Another instance reads them from the file
+        final HtmlSidecar.Index read = new HtmlSidecar(dir).getIndex();
+        assertTrue(read.isComplete());
+        assertEquals(202, read.getLogEnd());
+        assertEquals(50, read.htmlOffsetOf(100));
+    }
+
+    @Test
+    void deletesTheRendering() throws IOException {
+        final HtmlSidecar sidecar = new HtmlSidecar(dir);
+        try (OutputStream html = sidecar.create()) {
+            html.write('x');
+            sidecar.checkpoint(2, 1);
+        }
+        sidecar.delete();
+        assertFalse(sidecar.exists());
+        assertFalse(new File(dir, HtmlSidecar.HTML_FILE).exists());
+    }
+
+    @Test
+    void startsOver() throws IOException {
+        final HtmlSidecar sidecar = new HtmlSidecar(dir);
+        try (OutputStream html = sidecar.create()) {
+            html.write('x');
+            sidecar.checkpoint(2, 1);
+        }
+        sidecar.create().close();
+        assertEquals(0, sidecar.readIndex().getLogEnd());
+    }
+}
@@ -0,0 +1,67 @@
+package hudson.plugins.ansicolor;
+
+import hudson.MarkupText;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LineAnnotationCacheTest {
+
+    private static final String LINE = "\033[1mbold\033[0m";
+
+    @Test
+    void replaysRecordedMarkup() {
+        final LineAnnotationCache cache = new LineAnnotationCache(64 * 1024);
+        final AnsiStyle style = new AnsiStyle();
+        assertNull(cache.get(AnsiColorMap.Default, 0, style, LINE));
+
+        final LineAnnotationCache.Recorder recorder = new LineAnnotationCache.Recorder();
+        recorder.markup(4, "<b>");
+        recorder.hide(0, 4);
+        recorder.markup(12, "</b>");
+        recorder.hide(8, 12);
+        cache.put(AnsiColorMap.Default, 0, style, LINE, recorder.toEntry(new AnsiStyle(AnsiStyle.BOLD, AnsiStyle.SLOT_BOLD + 1)));
+
+        final LineAnnotationCache.Entry entry = cache.get(AnsiColorMap.Default, 0, new AnsiStyle(), LINE);
+        assertNotNull(entry);
+        final MarkupText text = new MarkupText(LINE);
+        final AnsiStyle endStyle = new AnsiStyle();
+        entry.applyTo(text, endStyle);
+        final MarkupText expected = new MarkupText(LINE);
+        expected.addMarkup(4, "<b>");
+        expected.addMarkup(0, 4, "<!--", "-->");
+        expected.addMarkup(12, "</b>");
+        expected.addMarkup(8, 12, "<!--", "-->");
+        assertEquals(expected.toString(false), text.toString(false));
+        assertEquals(AnsiStyle.BOLD, endStyle.getStyle());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void distinguishesColorMapOptionsAndIncomingStyle() {
+        final LineAnnotationCache cache = new LineAnnotationCache(64 * 1024);
+        final AnsiStyle style = new AnsiStyle();
+        cache.put(AnsiColorMap.Default, 0, style, LINE, new LineAnnotationCache.Recorder().toEntry(style));
+        assertNull(cache.get(AnsiColorMap.VGA, 0, style, LINE));
+        assertNull(cache.get(AnsiColorMap.Default, 1, style, LINE));
+        assertNull(cache.get(AnsiColorMap.Default, 0, new AnsiStyle(AnsiStyle.BOLD, AnsiStyle.SLOT_BOLD + 1), LINE));
+        assertNotNull(cache.get(AnsiColorMap.Default, 0, style, LINE));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedLines() {
+        final LineAnnotationCache cache = new LineAnnotationCache(8 * 1024);
+        final AnsiStyle style = new AnsiStyle();
+        for (int i = 0; i < 100; i++) {
+            cache.put(AnsiColorMap.Default, 0, style, "line " + i, new LineAnnotationCache.Recorder().toEntry(style));
+            // Keep the first line in use
+            assertNotNull(cache.get(AnsiColorMap.Default, 0, style, "line 0"));
+        }
+        assertNotNull(cache.get(AnsiColorMap.Default, 0, style, "line 99"));
+        assertNull(cache.get(AnsiColorMap.Default, 0, style, "line 1"));
+        assertEquals(100 - cache.size(), cache.getEvictions());
+    }
+}
@@ -0,0 +1,137 @@
+package hudson.plugins.ansicolor;
+
+import hudson.console.ConsoleNote;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogSearchTest {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE / 2;
+
+    @TempDir
+    File dir;
+
+    private static String describe(LogSearch.Hit hit) {
+        return hit.getLine() + ":" + hit.getLineOffset() + ":" + hit.getOffset() + ":" + hit.getColumn() + ":" + hit.getLength()
+            + ":" + hit.getText() + ":" + StyleRunOutputStream.formatStyle(new AnsiStyle(hit.getStyle(), 0)).split("\\.")[0];
+    }
+
+    private static List<String> search(String log, Pattern pattern, int maxHits) throws IOException {
+        final List<String> hits = new ArrayList<>();
+        LogSearch.search(new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)), pattern, System.nanoTime() + NO_DEADLINE,
+            maxHits, true, hit -> hits.add(describe(hit)));
+        return hits;
+    }
+
+    private static String style(String sgr) {
+        final AnsiStyle style = new AnsiStyle();
+        style.apply(AnsiStyle.Change.of(Arrays.stream(sgr.split(";")).mapToInt(Integer::parseInt).toArray(), sgr.split(";").length));
+        return StyleRunOutputStream.formatStyle(style).split("\\.")[0];
+    }
+
+    @Test
+    void findsVisibleTextWithOffsetsAndStyle() throws IOException {
+        final String log = "ok\n"
+            + "\033[31mer\033[1mror\033[0m: failed\n"
+            + "\033[8msecret error\033[0m error\n"
+            + "no\033[31m\033[0mte error";
+        final List<String> hits = search(log, Pattern.compile("error", Pattern.LITERAL), 10);
+        assertEquals(3, hits.size(), hits.toString());
+        // The match starts in red, at "er", which comes right after the first sequence
+        assertEquals("1:3:8:0:5:error: failed:" + style("31"), hits.get(0));
+        // Concealed text is not searched, and concealing ends with the sequence which resets it
+        assertEquals("2:30:51:1:5: error:0", hits.get(1));
+        assertEquals("3:57:71:5:5:note error:0", hits.get(2));
+    }
+
+    @Test
+    void leavesOutConsoleNotes() throws IOException {
+        final String log = "a " + ConsoleNote.PREAMBLE_STR + "error" + ConsoleNote.POSTAMBLE_STR + "b\n";
+        assertTrue(search(log, Pattern.compile("error"), 10).isEmpty());
+        assertEquals(1, search(log, Pattern.compile("a b"), 10).size());
+    }
+
+    @Test
+    void treatsQueriesAsLiteralOrRegex() throws IOException {
+        final String log = "a.c\nabc\n";
+        assertEquals(1, search(log, Pattern.compile("a.c", Pattern.LITERAL), 10).size());
+        assertEquals(2, search(log, Pattern.compile("a.c"), 10).size());
+        assertEquals(1, search(log, Pattern.compile("^abc$"), 10).size());
+    }
+
+    @Test
+    void stopsAtMaxHits() throws IOException {
+        final StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            log.append("x x\n");
+        }
+        assertEquals(5, search(log.toString(), Pattern.compile("x"), 5).size());
+        assertTrue(LogSearch.search(new ByteArrayInputStream(log.toString().getBytes(StandardCharsets.UTF_8)), Pattern.compile("x"),
+            System.nanoTime() + NO_DEADLINE, 5, true, hit -> { }));
+        assertFalse(LogSearch.search(new ByteArrayInputStream(log.toString().getBytes(StandardCharsets.UTF_8)), Pattern.compile("x"),
+            System.nanoTime() + NO_DEADLINE, 500, true, hit -> { }));
+    }
+
+    @Test
+    void searchesChunksInParallelLikeSequentially() throws IOException, InterruptedException {
+        final StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            log.append(i % 7 == 0 ? "\033[3" + (i % 8) + "m" : "").append("line ").append(i).append(i % 5 == 0 ? " error" : "")
+                .append(i % 11 == 0 ? "\033[0m" : "").append('\n');
+        }
+        final File file = new File(dir, "log");
+        Files.write(file.toPath(), log.toString().getBytes(StandardCharsets.UTF_8));
+        final Pattern pattern = Pattern.compile("error|line 4\\d\\b");
+        final List<String> expected = search(log.toString(), pattern, 1000);
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (long chunkBytes : new long[]{1, 100, 997, 1 << 20}) {
+                final List<String> hits = new ArrayList<>();
+                assertFalse(LogSearch.search(file, pattern, System.nanoTime() + NO_DEADLINE, 1000, hit -> hits.add(describe(hit)), executor, 3, chunkBytes));
+                assertEquals(expected, hits);
+                final List<String> first = new ArrayList<>();
+                assertTrue(LogSearch.search(file, pattern, System.nanoTime() + NO_DEADLINE, 10, hit -> first.add(describe(hit)), executor, 3, chunkBytes));
+                assertEquals(expected.subList(0, 10), first);
+            }
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void failsOnceTheTimeIsUp() {
+        final String log = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\n";
+        assertThrows(LogSearch.TimeoutException.class, () -> LogSearch.search(new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)),
+            Pattern.compile("((a+)+)+b"), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100), 10, true, hit -> { }));
+    }
+
+    @Test
+    void failsOnceTheTimeIsUpAmongShortLines() {
+        final StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            log.append("line ").append(i).append('\n');
+        }
+        final byte[] b = log.toString().getBytes(StandardCharsets.UTF_8);
+        assertThrows(LogSearch.TimeoutException.class, () -> LogSearch.search(new ByteArrayInputStream(b), Pattern.compile("nothing"),
+            System.nanoTime() - 1, 10, true, hit -> { }));
+    }
+}
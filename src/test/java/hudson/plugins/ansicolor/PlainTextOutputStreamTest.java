@@ -0,0 +1,87 @@
+package hudson.plugins.ansicolor;
+
+import hudson.console.ConsoleNote;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlainTextOutputStreamTest {
+
+    private static final String NOTE = ConsoleNote.PREAMBLE_STR + "bm90ZQ==" + ConsoleNote.POSTAMBLE_STR;
+
+    private static String log() {
+        final StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            log.append("\033[1;3").append(i % 8).append("mline ").append(i).append("\033[0m ").append(i % 7 == 0 ? NOTE : "")
+                .append("and \033]8;;http://example.com\007a link\033]8;;\007 é\n");
+        }
+        return log.toString();
+    }
+
+    private static String plain() {
+        final StringBuilder plain = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            plain.append("line ").append(i).append(" and a link é\n");
+        }
+        return plain.toString();
+    }
+
+    private static String write(byte[] log, int chunk, long from, long to) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final PlainTextOutputStream plain = new PlainTextOutputStream(out, 0, 0, from, to, null);
+        for (int off = 0; off < log.length && !plain.isDone(); off += chunk) {
+            plain.write(log, off, Math.min(chunk, log.length - off));
+        }
+        plain.close();
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void stripsSequencesAndNotes() throws IOException {
+        final byte[] log = log().getBytes(StandardCharsets.UTF_8);
+        assertEquals(plain(), write(log, log.length, 0, Long.MAX_VALUE));
+        // However the log is split, even within sequences and notes
+        assertEquals(plain(), write(log, 1, 0, Long.MAX_VALUE));
+        assertEquals(plain(), write(log, 7, 0, Long.MAX_VALUE));
+    }
+
+    @Test
+    void writesRanges() throws IOException {
+        final byte[] log = log().getBytes(StandardCharsets.UTF_8);
+        final byte[] plain = plain().getBytes(StandardCharsets.UTF_8);
+        assertEquals(new String(plain, 100, 250, StandardCharsets.UTF_8), write(log, 13, 100, 350));
+        assertEquals("", write(log, 13, 100, 100));
+    }
+
+    @Test
+    void startsRangesAtCheckpoints() throws IOException {
+        final byte[] log = log().getBytes(StandardCharsets.UTF_8);
+        final byte[] plain = plain().getBytes(StandardCharsets.UTF_8);
+        final PlainTextOutputStream.Checkpoints checkpoints = new PlainTextOutputStream.Checkpoints(1000);
+        final PlainTextOutputStream indexer = new PlainTextOutputStream(OutputStream.nullOutputStream(), 0, 0, Long.MAX_VALUE, Long.MAX_VALUE, checkpoints);
+        for (int off = 0; off < log.length; off += 4096) {
+            indexer.write(log, off, Math.min(4096, log.length - off));
+        }
+        checkpoints.setEnd(indexer.getRawOffset(), indexer.getPlainOffset());
+        assertEquals(log.length, checkpoints.getEndRaw());
+        assertEquals(plain.length, checkpoints.getEndPlain());
+        assertTrue(checkpoints.size() > 10, "checkpoints: " + checkpoints.size());
+
+        for (long first : new long[]{0, 1, 5000, 9876, plain.length - 1}) {
+            final int checkpoint = checkpoints.floor(first);
+            final long raw = checkpoints.getRaw(checkpoint);
+            assertTrue(checkpoints.getPlain(checkpoint) <= first);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final PlainTextOutputStream range = new PlainTextOutputStream(out, raw, checkpoints.getPlain(checkpoint), first, first + 100, null);
+            range.write(log, (int) raw, log.length - (int) raw);
+            final int length = (int) Math.min(100, plain.length - first);
+            assertEquals(new String(plain, (int) first, length, StandardCharsets.ISO_8859_1), out.toString(StandardCharsets.ISO_8859_1));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ProgressCompactingOutputStreamTest {
+
+    @Test
+    void keepsOnlyTheLastFrame() throws IOException {
+        assertEquals("before\n\033[K100%\nafter\r\n", compact("before\n10%\r50%\r\033[K100%\nafter\r\n", 1));
+        assertEquals("100%\n", compact("10%\r50%\r\r100%\n", 1));
+        assertEquals("unterminated\r", compact("unterminated\r", 1));
+    }
+
+    @Test
+    void handlesFramesSplitAcrossWrites() throws IOException {
+        final String input = "a\n\033[1m1/3\r\033[32m2/3\r\033[0;4m3/3\033[m\r\n";
+        final String expected = "a\n\033[0;1;32m\033[0;4m3/3\033[m\r\n";
+        for (int chunk = 1; chunk <= input.length(); chunk++) {
+            assertEquals(expected, compact(input, chunk), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void keepsStyleAndNotesOfDroppedFrames() throws IOException {
+        final String note = "\033[8mha:NOTE\033[0m";
+        assertEquals(note + "\033[0;1m\033[32mdone\n", compact("\033[1m1" + note + "\r\033[32mdone\n", 7));
+    }
+
+    @Test
+    void writesPlainLinesWhenFlushed() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ProgressCompactingOutputStream out = new ProgressCompactingOutputStream(bytes);
+        out.write("Pulling".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        assertEquals("Pulling", bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void writesTheLatestFrameWhenFlushed() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ProgressCompactingOutputStream out = new ProgressCompactingOutputStream(bytes);
+        out.write("10%\r50%".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        assertEquals("50%", bytes.toString(StandardCharsets.UTF_8));
+        out.write("\r60%\r\033[K100%".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        assertEquals("50%\r\033[K100%", bytes.toString(StandardCharsets.UTF_8));
+        out.write("\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("50%\r\033[K100%\n", bytes.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void writesAnUnfinishedNotePreambleWhenClosed() throws IOException {
+        final String preamble = "\033[8mha:";
+        for (int matched = 1; matched <= preamble.length(); matched++) {
+            assertEquals("50%" + preamble.substring(0, matched), compact("10%\r50%" + preamble.substring(0, matched), 1), "matched " + matched);
+        }
+    }
+
+    @Test
+    void canReproduceStyles() {
+        final AnsiStyle style = new AnsiStyle();
+        final AnsiParser parser = new AnsiParser(new AnsiParser.Listener() {
+            @Override
+            public void text(byte[] b, int off, int len) {
+            }
+
+            @Override
+            public void sgr(int[] params, int count) {
+                style.apply(AnsiStyle.Change.of(params, count));
+            }
+        });
+        for (String sgr : new String[] {"\033[1;21;93;48;5;200m", "\033[3;38;2;1;2;3;9;41;8m", "\033[53;51;2;7m"}) {
+            final AnsiStyle expected = new AnsiStyle();
+            parse(parser, sgr);
+            expected.set(style.getStyle(), style.getOrder());
+            style.reset();
+            parse(parser, expected.toSgr());
+            assertEquals(expected.getStyle(), style.getStyle(), sgr);
+            assertEquals(expected.getOrder(), style.getOrder(), sgr);
+            style.reset();
+        }
+    }
+
+    private static void parse(AnsiParser parser, String input) {
+        final byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        try {
+            parser.parse(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String compact(String input, int chunk) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] b = input.getBytes(StandardCharsets.UTF_8);
+        try (ProgressCompactingOutputStream out = new ProgressCompactingOutputStream(bytes)) {
+            for (int off = 0; off < b.length; off += chunk) {
+                out.write(b, off, Math.min(chunk, b.length - off));
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
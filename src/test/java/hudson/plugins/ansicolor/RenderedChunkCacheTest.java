@@ -0,0 +1,66 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RenderedChunkCacheTest {
+
+    private static final String RUN = "job#1";
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void sharesChunksAlongTheChainOfStates() {
+        final RenderedChunkCache cache = new RenderedChunkCache(64 * 1024);
+        assertNull(cache.get(RUN, 0, RenderedChunkCache.INITIAL_STATE));
+        final RenderedChunkCache.Chunk first = cache.put(RUN, 0, RenderedChunkCache.INITIAL_STATE, 10, bytes("<b>one</b>"), bytes("bold"));
+
+        final RenderedChunkCache.Chunk hit = cache.get(RUN, 0, RenderedChunkCache.INITIAL_STATE);
+        assertNotNull(hit);
+        assertEquals(10, hit.getEnd());
+        assertArrayEquals(bytes("<b>one</b>"), hit.getHtml());
+        assertArrayEquals(bytes("bold"), cache.getState(first.getEndState()));
+
+        cache.put(RUN, 10, first.getEndState(), 20, bytes("two"), bytes("plain"));
+        assertNotNull(cache.get(RUN, 10, first.getEndState()));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(20, cache.getSavedLogBytes());
+    }
+
+    @Test
+    void distinguishesRunsOffsetsAndStates() {
+        final RenderedChunkCache cache = new RenderedChunkCache(64 * 1024);
+        final RenderedChunkCache.Chunk chunk = cache.put(RUN, 0, RenderedChunkCache.INITIAL_STATE, 4, bytes("one\n"), bytes("a"));
+        assertNull(cache.get("job#2", 0, RenderedChunkCache.INITIAL_STATE));
+        assertNull(cache.get(RUN, 4, RenderedChunkCache.INITIAL_STATE));
+        assertNull(cache.get(RUN, 0, chunk.getEndState()));
+        assertNull(cache.getState("unknown"));
+        assertNotEquals(chunk.getEndState(), cache.put(RUN, 0, RenderedChunkCache.INITIAL_STATE, 4, bytes("one\n"), bytes("b")).getEndState());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedChunks() {
+        final RenderedChunkCache cache = new RenderedChunkCache(8 * 1024);
+        final byte[] html = new byte[1024];
+        for (int i = 0; i < 20; i++) {
+            cache.put(RUN, i * 100L, RenderedChunkCache.INITIAL_STATE, i * 100L + 100, html, bytes("state"));
+            // Keep the first chunk in use
+            assertNotNull(cache.get(RUN, 0, RenderedChunkCache.INITIAL_STATE));
+        }
+        assertTrue(cache.getBytes() <= 8 * 1024);
+        assertTrue(cache.getEvictions() > 0);
+        assertNull(cache.peek(RUN, 100, RenderedChunkCache.INITIAL_STATE));
+        assertNotNull(cache.peek(RUN, 1900, RenderedChunkCache.INITIAL_STATE));
+    }
+}
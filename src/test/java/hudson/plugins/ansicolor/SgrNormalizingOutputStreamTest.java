@@ -0,0 +1,66 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SgrNormalizingOutputStreamTest {
+
+    @Test
+    void mergesSequencesAndDropsRedundantOnes() throws IOException {
+        assertEquals("\033[1;31mred\033[m plain\n", normalize("\033[1m\033[31mred\033[0m\033[0m plain\033[K\n"));
+        assertEquals("\033[32mAB\033[m", normalize("\033[32mA\033[32mB\033[0m"));
+        assertEquals("\033[33mA\033[1mB", normalize("\033[33mA\033[m\033[33;1mB"));
+        assertEquals("\033[1mA\033[0;2mfaint", normalize("\033[1mA\033[22;2mfaint"));
+        assertEquals("\033[1;31mA\033[39;4mB", normalize("\033[1;31mA\033[0;1;4mB"));
+    }
+
+    @Test
+    void movesSequencesPastLineBreaks() throws IOException {
+        assertEquals("\033[36mcyan\r\n\033[mplain\n", normalize("\033[36mcyan\033[m\r\n\033[0mplain\n"));
+        // The log ends in the style it was written with
+        assertEquals("\033[36mcyan\n\033[m", normalize("\033[36mcyan\n\033[m"));
+    }
+
+    @Test
+    void keepsNotesAndOperatingSystemCommands() throws IOException {
+        final String note = "\033[8mha:NOTE\033[0m";
+        assertEquals(note + "\033]0;title\007\033[1mbold", normalize("\033[?25l\033(B" + note + "\033]0;title\007\033[1mbold"));
+    }
+
+    @Test
+    void handlesSequencesSplitAcrossWrites() throws IOException {
+        final String input = "\033[1;31mA\033[0m\033[38;2;1;2;3mB\033[48;5;100mC\033[m\n";
+        final String expected = normalize(input, input.length());
+        for (int chunk = 1; chunk < input.length(); chunk++) {
+            assertEquals(expected, normalize(input, chunk), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void keepsAnUnfinishedNotePreambleWhenClosed() throws IOException {
+        // Not a note after all, so the sequence takes effect for the text after it
+        assertEquals("abc\033[8mh", normalize("abc\033[8mh"));
+        assertEquals("abc\033[8", normalize("abc\033[8"));
+        assertEquals("abc\033[8mha:NO", normalize("abc\033[8mha:NO"));
+    }
+
+    private static String normalize(String input) throws IOException {
+        return normalize(input, input.length());
+    }
+
+    private static String normalize(String input, int chunk) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] b = input.getBytes(StandardCharsets.UTF_8);
+        try (SgrNormalizingOutputStream out = new SgrNormalizingOutputStream(bytes)) {
+            for (int off = 0; off < b.length; off += chunk) {
+                out.write(b, off, Math.min(chunk, b.length - off));
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,70 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StyleRunOutputStreamTest {
+
+    private static String lines(String log, long maxBytes, boolean complete) throws IOException {
+        final StringWriter out = new StringWriter();
+        final JsonWriter json = new JsonWriter(out);
+        json.beginArray();
+        final StyleRunOutputStream stream = new StyleRunOutputStream(json, 0, new AnsiStyle(), maxBytes);
+        stream.write(log.getBytes(StandardCharsets.UTF_8));
+        if (complete) {
+            stream.finish();
+        }
+        json.endArray();
+        return out.toString();
+    }
+
+    @Test
+    void writesTextAndStyleRuns() throws IOException {
+        assertEquals("[{\"text\":\"plain\"},"
+                + "{\"text\":\"a bold red é \\\"b\\\"\",\"runs\":[[2,6,null,null,1],[7,16,1,null,0]]},"
+                + "{\"text\":\"rgb\",\"runs\":[[0,3,\"#0A0B0C\",4,0]]}]",
+            lines("plain\r\na \033[1mbold\033[0m \033[31mred é \"b\"\033[0m\n\033[38;2;10;11;12;44mrgb\033[0m\n", Long.MAX_VALUE, true));
+    }
+
+    @Test
+    void carriesTheStyleAcrossLinesButNotConcealing() throws IOException {
+        assertEquals("[{\"text\":\"ab\",\"runs\":[[1,2,2,null,512]]},{\"text\":\"c\",\"runs\":[[0,1,2,null,0]]}]",
+            lines("a\033[32;8mb\nc\n", Long.MAX_VALUE, true));
+    }
+
+    @Test
+    void writesPagesOfCompleteLines() throws IOException {
+        final String log = "one\n\033[1mtwo\nthree\npartial";
+        assertEquals("[{\"text\":\"one\"},{\"text\":\"two\",\"runs\":[[0,3,null,null,1]]}]", lines(log, 5, false));
+        assertEquals("[{\"text\":\"one\"},{\"text\":\"two\",\"runs\":[[0,3,null,null,1]]},{\"text\":\"three\",\"runs\":[[0,5,null,null,1]]}]",
+            lines(log, Long.MAX_VALUE, false));
+
+        final StyleRunOutputStream stream = new StyleRunOutputStream(new JsonWriter(new StringWriter()), 100, new AnsiStyle(), 5);
+        stream.write(log.getBytes(StandardCharsets.UTF_8));
+        assertTrue(stream.isFull());
+        assertEquals(112, stream.getLineEnd());
+        assertEquals(AnsiStyle.BOLD, stream.getLineEndStyle().getStyle());
+    }
+
+    @Test
+    void parsesStylesToContinueFrom() {
+        final AnsiStyle style = new AnsiStyle(AnsiStyle.BOLD | AnsiStyle.UNDERLINE, (AnsiStyle.SLOT_UNDERLINE + 1) << 4 | AnsiStyle.SLOT_BOLD + 1);
+        final AnsiStyle parsed = StyleRunOutputStream.parseStyle(StyleRunOutputStream.formatStyle(style));
+        assertNotNull(parsed);
+        assertEquals(style.getStyle(), parsed.getStyle());
+        assertEquals(style.getOrder(), parsed.getOrder());
+        assertNull(StyleRunOutputStream.parseStyle("1"));
+        assertNull(StyleRunOutputStream.parseStyle("1.f"));
+        assertNull(StyleRunOutputStream.parseStyle("x.1"));
+        assertFalse(StyleRunOutputStream.parseStyle("0.0").getStyle() != 0);
+    }
+}
@@ -0,0 +1,100 @@
+package hudson.plugins.ansicolor;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+
+@WithJenkins
+class UncoloredLogStrippingTest {
+    private static final String RED = "The following word is supposed to be \u001B[31mred\u001B[0m";
+    private static final String STRIPPED = "The following word is supposed to be red";
+
+    @Test
+    void stripsFreestyleBuildsWhenEnabledGlobally(JenkinsRule jenkinsRule) throws Exception {
+        getDescriptor().setStripUncoloredBuilds(true);
+        final FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(printingProject(jenkinsRule.createFreeStyleProject()));
+        assertThat(JenkinsRule.getLog(build), containsString(STRIPPED));
+    }
+
+    @Test
+    void leavesFreestyleBuildsWithTheBuildWrapperAlone(JenkinsRule jenkinsRule) throws Exception {
+        getDescriptor().setStripUncoloredBuilds(true);
+        final FreeStyleProject project = printingProject(jenkinsRule.createFreeStyleProject());
+        project.getBuildWrappersList().add(new AnsiColorBuildWrapper(null));
+        assertThat(JenkinsRule.getLog(jenkinsRule.buildAndAssertSuccess(project)), not(containsString(STRIPPED)));
+    }
+
+    @Test
+    void stripsFreestyleBuildsInFoldersWithTheProperty(JenkinsRule jenkinsRule) throws Exception {
+        final Folder folder = strippingFolder(jenkinsRule);
+        final FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(printingProject(folder.createProject(FreeStyleProject.class, "p")));
+        assertThat(JenkinsRule.getLog(build), containsString(STRIPPED));
+    }
+
+    @Test
+    void stripsPipelineBuildsInFoldersWithTheProperty(JenkinsRule jenkinsRule) throws Exception {
+        final Folder folder = strippingFolder(jenkinsRule);
+        final Folder inner = folder.createProject(Folder.class, "inner");
+        final WorkflowJob job = inner.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition("echo 'The following word is supposed to be \\u001B[31mred\\u001B[0m'", true));
+        final WorkflowRun run = jenkinsRule.buildAndAssertSuccess(job);
+        assertThat(JenkinsRule.getLog(run), containsString(STRIPPED));
+    }
+
+    @Test
+    void leavesPipelineBuildsAloneWhenEnabledGlobally(JenkinsRule jenkinsRule) throws Exception {
+        getDescriptor().setStripUncoloredBuilds(true);
+        final WorkflowJob job = jenkinsRule.jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsFlowDefinition("echo 'The following word is supposed to be \\u001B[31mred\\u001B[0m'", true));
+        assertThat(JenkinsRule.getLog(jenkinsRule.buildAndAssertSuccess(job)), not(containsString(STRIPPED)));
+    }
+
+    @Test
+    void leavesBuildsAloneWhileColoredGlobally(JenkinsRule jenkinsRule) throws Exception {
+        getDescriptor().setStripUncoloredBuilds(true);
+        getDescriptor().setGlobalColorMapName("xterm");
+        final Folder folder = strippingFolder(jenkinsRule);
+        final FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(printingProject(folder.createProject(FreeStyleProject.class, "p")));
+        assertThat(JenkinsRule.getLog(build), not(containsString(STRIPPED)));
+    }
+
+    private static AnsiColorBuildWrapper.DescriptorImpl getDescriptor() {
+        return Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+    }
+
+    private static Folder strippingFolder(JenkinsRule jenkinsRule) throws IOException {
+        final Folder folder = jenkinsRule.jenkins.createProject(Folder.class, "f");
+        final UncoloredLogStripping.FolderPropertyImpl property = new UncoloredLogStripping.FolderPropertyImpl();
+        property.setStripUncoloredBuilds(true);
+        folder.addProperty(property);
+        return folder;
+    }
+
+    private static FreeStyleProject printingProject(FreeStyleProject project) {
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+                listener.getLogger().println(RED);
+                return true;
+            }
+        });
+        return project;
+    }
+}
@@ -8,10 +8,12 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.ObjectInputStream;
 import java.util.UUID;
 
 import static hudson.plugins.ansicolor.action.ActionNote.TAG_ACTION_BEGIN;
 import static hudson.plugins.ansicolor.action.ActionNote.TAG_ACTION_END;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.when;
@@ -41,4 +43,26 @@ class ActionNoteTest {
         final String output = markupText.toString(false);
         assertTrue(output.contains(TAG_ACTION_BEGIN + "\"" + UUID + "\"" + TAG_ACTION_END));
     }
+
+    @Test
+    void tellsTheIdOnlyForTheLineItIsOn() {
+        final MarkupText markupText = new MarkupText("abc123");
+        actionNote.annotate(buildRun, markupText, 0);
+        assertEquals(UUID.toString(), ActionNote.takeActionId(markupText));
+        assertNull(ActionNote.takeActionId(markupText));
+        actionNote.annotate(buildRun, markupText, 0);
+        assertNull(ActionNote.takeActionId(new MarkupText("abc123")));
+    }
+
+    @Test
+    void canReadNotesOfEarlierVersions() throws Exception {
+        // Taken from a log written before the note declared its serialVersionUID
+        final ActionNote note;
+        try (ObjectInputStream in = new ObjectInputStream(getClass().getResourceAsStream("ActionNoteTest/action-note.ser"))) {
+            note = (ActionNote) in.readObject();
+        }
+        final MarkupText markupText = new MarkupText("abc123");
+        note.annotate(buildRun, markupText, 0);
+        assertEquals("627c08ca-9713-4cd9-a354-339f140a3014", ActionNote.takeActionId(markupText));
+    }
 }
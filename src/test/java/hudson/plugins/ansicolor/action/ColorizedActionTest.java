@@ -123,6 +123,27 @@ class ColorizedActionTest {
         assertEquals(ColorizedAction.Command.IGNORE, colorizedAction.getCommand());
     }
 
+    @Test
+    void canParseNotedAction() {
+        final MarkupText markupText = new MarkupText("Log line");
+        new ActionNote(ACTION_3).annotate(buildRunMultipleStarts, markupText, 0);
+        assertEquals(ACTION_3, ColorizedAction.parseNotedAction(markupText, 2, buildRunMultipleStarts, new LineIdentifier()));
+    }
+
+    @Test
+    void willNotSearchMarkupOfLinesWithoutNote() {
+        final MarkupText markupText = new MarkupText("Log line");
+        markupText.addMarkup(0, TAG_ACTION_BEGIN + "\"" + ACTION_3.getId() + "\"" + TAG_ACTION_END);
+        assertEquals(CONTINUE, ColorizedAction.parseNotedAction(markupText, 2, buildRunMultipleStarts, new LineIdentifier()));
+    }
+
+    @Test
+    void willReturnCommandIgnoreOnNotedPipelineInternalLine() {
+        final MarkupText markupText = new MarkupText("[Pipeline] sh");
+        markupText.addMarkup(0, "<span class=\"pipeline-new-node\">");
+        assertEquals(ColorizedAction.Command.IGNORE, ColorizedAction.parseNotedAction(markupText, 2, buildRunSingleStart, new LineIdentifier()).getCommand());
+    }
+
     @Test
     void canParseActionCurrentWhileBuildRunning() {
         when(buildRunOneCurrent.isBuilding()).thenReturn(true);
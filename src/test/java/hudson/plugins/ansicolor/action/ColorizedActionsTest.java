@@ -0,0 +1,51 @@
+package hudson.plugins.ansicolor.action;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ColorizedActionsTest {
+
+    @Test
+    void findsMarkersById() {
+        final ColorizedActions actions = new ColorizedActions();
+        final List<ColorizedAction> added = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final ColorizedAction action = new ColorizedAction("map" + i % 3, i % 2 == 0 ? ColorizedAction.Command.START : ColorizedAction.Command.STOP);
+            actions.add(action);
+            added.add(action);
+        }
+        assertEquals(1000, actions.size());
+        for (ColorizedAction action : added) {
+            final ColorizedAction found = actions.get(action.getId());
+            assertEquals(action.getId(), found.getId());
+            assertEquals(action.getColorMapName(), found.getColorMapName());
+            assertEquals(action.getCommand(), found.getCommand());
+        }
+        assertNull(actions.get("unknown"));
+        // Adding a marker again replaces it
+        actions.add(new ColorizedAction(added.get(0).getId(), "map9", ColorizedAction.Command.STOP));
+        assertEquals(1000, actions.size());
+        assertEquals("map9", actions.get(added.get(0).getId()).getColorMapName());
+    }
+
+    @Test
+    void tracksTheInnermostStartedBlock() {
+        final ColorizedActions actions = new ColorizedActions();
+        assertNull(actions.getCurrent());
+        actions.add(new ColorizedAction("xterm", ColorizedAction.Command.START));
+        actions.add(new ColorizedAction("css", ColorizedAction.Command.START));
+        assertEquals("css", actions.getCurrent().getColorMapName());
+        assertEquals(ColorizedAction.Command.CURRENT, actions.getCurrent().getCommand());
+        actions.add(new ColorizedAction("css", ColorizedAction.Command.STOP));
+        assertEquals("xterm", actions.getCurrent().getColorMapName());
+        actions.add(new ColorizedAction("xterm", ColorizedAction.Command.STOP));
+        assertNull(actions.getCurrent());
+        // Each marker is kept, not only the open blocks
+        assertEquals(4, actions.getActions().size());
+    }
+}